@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Builds the deterministic test data shared by the benchmarks, so that results of different runs can be compared.
+ */
+final class BenchmarkData {
+    static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BenchmarkData() {
+    }
+
+    static Context context() {
+        Context context = new Context(PARAMS);
+        Context.propagate(context);
+        return context;
+    }
+
+    static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Creates a key from the given source of randomness rather than from {@link java.security.SecureRandom}. */
+    static ECKey randomKey(Random random) {
+        BigInteger privKey;
+        do {
+            privKey = new BigInteger(256, random);
+        } while (privKey.signum() == 0 || privKey.compareTo(ECKey.CURVE.getN()) >= 0);
+        return ECKey.fromPrivate(privKey);
+    }
+
+    /**
+     * Creates a transaction that spends the given number of made up P2PKH outputs of the given key to two outputs,
+     * like a typical payment with change.
+     */
+    static Transaction createTransaction(Random random, ECKey key, int inputs) {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key));
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, randomKey(random)));
+        tx.addOutput(Coin.CENT, LegacyAddress.fromKey(PARAMS, key));
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS,
+                    random.nextInt(4), Sha256Hash.wrap(randomBytes(random, 32)))));
+        // Sign once all inputs are there, as each signature covers all of them.
+        for (int i = 0; i < inputs; i++) {
+            TransactionSignature signature = tx.calculateSignature(i, key, scriptPubKey, SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+        return tx;
+    }
+
+    /** Creates a block on top of the genesis block holding the given number of transactions besides the coinbase. */
+    static Block createBlock(Random random, ECKey key, int transactions) {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(null);
+        for (int i = 0; i < transactions; i++)
+            block.addTransaction(createTransaction(random, key, 1 + random.nextInt(2)));
+        return block;
+    }
+}
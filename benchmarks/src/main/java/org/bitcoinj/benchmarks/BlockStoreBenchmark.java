@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.LevelDBBlockStore;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BlockStore#get} and {@link BlockStore#put} of headers on disk backed stores. The store is filled with
+ * {@link #HEADERS} headers before measuring, of which the gets pick the ones most recently put, like a chain does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockStoreBenchmark {
+    private static final int HEADERS = 4000;
+    private static final int RECENT_HEADERS = 100;
+
+    @Param({ "SPV", "LevelDB" })
+    public String store;
+
+    private File directory;
+    private BlockStore blockStore;
+    private StoredBlock[] headers;
+    private int nextHeader, nextGet;
+
+    @Setup
+    public void setUp() throws IOException, BlockStoreException {
+        Context context = BenchmarkData.context();
+        directory = Files.createTempDirectory("blockstore").toFile();
+        if (store.equals("SPV"))
+            blockStore = new SPVBlockStore(BenchmarkData.PARAMS, new File(directory, "spvchain"));
+        else if (store.equals("LevelDB"))
+            blockStore = new LevelDBBlockStore(context, directory);
+        else
+            throw new IllegalArgumentException(store);
+        // Headers that differ by nonce are enough here; nothing checks the proof of work.
+        Block genesis = BenchmarkData.PARAMS.getGenesisBlock().cloneAsHeader();
+        headers = new StoredBlock[HEADERS * 8];
+        for (int i = 0; i < headers.length; i++) {
+            Block header = genesis.cloneAsHeader();
+            header.setNonce(i);
+            headers[i] = new StoredBlock(header, BigInteger.valueOf(i), i);
+        }
+        for (nextHeader = 0; nextHeader < HEADERS; nextHeader++)
+            blockStore.put(headers[nextHeader]);
+    }
+
+    @TearDown
+    public void tearDown() throws BlockStoreException {
+        blockStore.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public StoredBlock get() throws BlockStoreException {
+        nextGet = (nextGet + 1) % RECENT_HEADERS;
+        return blockStore.get(headers[nextHeader - 1 - nextGet].getHeader().getHash());
+    }
+
+    @Benchmark
+    public void put() throws BlockStoreException {
+        // Cycle through the prepared headers, so that puts keep writing headers the store hasn't seen recently.
+        blockStore.put(headers[nextHeader]);
+        nextHeader = (nextHeader + 1) % headers.length;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.BloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BloomFilter#contains(byte[])} for elements that were and weren't inserted, using pubkey hash sized
+ * elements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BloomFilterBenchmark {
+    private static final int ELEMENT_COUNT = 1024;
+
+    @Param({ "100", "10000" })
+    public int elements;
+
+    private BloomFilter filter;
+    private byte[][] inserted, notInserted;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        filter = new BloomFilter(elements, 0.0001, random.nextInt());
+        inserted = new byte[ELEMENT_COUNT][];
+        notInserted = new byte[ELEMENT_COUNT][];
+        for (int i = 0; i < ELEMENT_COUNT; i++) {
+            inserted[i] = BenchmarkData.randomBytes(random, 20);
+            notInserted[i] = BenchmarkData.randomBytes(random, 20);
+            if (i < elements)
+                filter.insert(inserted[i]);
+        }
+        for (int i = ELEMENT_COUNT; i < elements; i++)
+            filter.insert(BenchmarkData.randomBytes(random, 20));
+    }
+
+    @Benchmark
+    public boolean containsInserted() {
+        index = (index + 1) % Math.min(ELEMENT_COUNT, elements);
+        return filter.contains(inserted[index]);
+    }
+
+    @Benchmark
+    public boolean containsNotInserted() {
+        index = (index + 1) % ELEMENT_COUNT;
+        return filter.contains(notInserted[index]);
+    }
+}
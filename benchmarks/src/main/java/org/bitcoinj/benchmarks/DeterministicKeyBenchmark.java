@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures BIP32 child key derivation, which dominates filling the lookahead of a key chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeterministicKeyBenchmark {
+    private DeterministicKey parent, watchingParent;
+    private int childNumber;
+
+    @Setup
+    public void setUp() {
+        parent = HDKeyDerivation.createMasterPrivateKey(BenchmarkData.randomBytes(new Random(1), 32));
+        watchingParent = parent.dropPrivateBytes().dropParent();
+    }
+
+    // Use a different child every time, so that nothing can be cached.
+    private ChildNumber nextChild(boolean hardened) {
+        childNumber = (childNumber + 1) & ~ChildNumber.HARDENED_BIT;
+        return new ChildNumber(childNumber, hardened);
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivate() {
+        return HDKeyDerivation.deriveChildKey(parent, nextChild(false));
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivateHardened() {
+        return HDKeyDerivation.deriveChildKey(parent, nextChild(true));
+    }
+
+    @Benchmark
+    public DeterministicKey derivePublic() {
+        return HDKeyDerivation.deriveChildKey(watchingParent, nextChild(false));
+    }
+
+    /** Fills a lookahead window of 1000 keys, as a watching key chain does. */
+    @Benchmark
+    public List<DeterministicKey> deriveLookahead() {
+        return HDKeyDerivation.deriveChildKeys(watchingParent, 0, 1000);
+    }
+}
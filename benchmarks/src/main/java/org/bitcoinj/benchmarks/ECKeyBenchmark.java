@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.crypto.JavaSecp256k1;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ECDSA signing and verification. The {@link ECKey} benchmarks take whatever path the library would, which is
+ * libsecp256k1 if it is loaded. The Bouncy Castle and {@link JavaSecp256k1} benchmarks always use the pure Java
+ * implementation; see {@link NativeSecp256k1Benchmark} for calling libsecp256k1 directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ECKeyBenchmark {
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature signature;
+    private byte[] pubKey;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        key = BenchmarkData.randomKey(random);
+        pubKey = key.getPubKey();
+        hash = Sha256Hash.wrap(BenchmarkData.randomBytes(random, 32));
+        signature = key.sign(hash);
+    }
+
+    @Benchmark
+    public ECKey.ECDSASignature sign() {
+        return key.sign(hash);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return ECKey.verify(hash.getBytes(), signature, pubKey);
+    }
+
+    @Benchmark
+    public BigInteger[] signBouncyCastle() {
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, new ECPrivateKeyParameters(key.getPrivKey(), ECKey.CURVE));
+        return signer.generateSignature(hash.getBytes());
+    }
+
+    @Benchmark
+    public boolean verifyJavaSecp256k1() {
+        return JavaSecp256k1.verify(hash.getBytes(), signature.r, signature.s, JavaSecp256k1.decodePublicKey(pubKey));
+    }
+
+    @Benchmark
+    public boolean verifyBouncyCastle() {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE));
+        return signer.verifySignature(hash.getBytes(), signature.r, signature.s);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util.AssertFailException;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ECDSA signing and verification with libsecp256k1. This needs the native library on the
+ * {@code java.library.path}, for example by passing {@code -jvmArgs -Djava.library.path=...} to JMH.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NativeSecp256k1Benchmark {
+    private byte[] privKey, pubKey, hash, signature;
+
+    @Setup
+    public void setUp() throws AssertFailException {
+        if (!Secp256k1Context.isEnabled())
+            throw new IllegalStateException("libsecp256k1 is not available, check java.library.path");
+        Random random = new Random(1);
+        ECKey key = BenchmarkData.randomKey(random);
+        privKey = Utils.bigIntegerToBytes(key.getPrivKey(), 32);
+        pubKey = key.getPubKey();
+        hash = Sha256Hash.wrap(BenchmarkData.randomBytes(random, 32)).getBytes();
+        signature = NativeSecp256k1.sign(hash, privKey);
+    }
+
+    @Benchmark
+    public byte[] sign() throws AssertFailException {
+        return NativeSecp256k1.sign(hash, privKey);
+    }
+
+    @Benchmark
+    public boolean verify() throws AssertFailException {
+        return NativeSecp256k1.verify(hash, signature, pubKey);
+    }
+}
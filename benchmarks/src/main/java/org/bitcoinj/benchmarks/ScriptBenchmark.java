@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.SigHashCache;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures verifying all P2PKH inputs of a transaction with {@link Script#correctlySpends}, both one input at a time
+ * and sharing the signature hashing work through a {@link SigHashCache}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScriptBenchmark {
+    @Param({ "1", "20", "200" })
+    public int inputs;
+
+    private Transaction tx;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.context();
+        Random random = new Random(1);
+        ECKey key = BenchmarkData.randomKey(random);
+        tx = BenchmarkData.createTransaction(random, key, inputs);
+        scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(BenchmarkData.PARAMS, key));
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        for (int i = 0; i < inputs; i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+    }
+
+    @Benchmark
+    public void correctlySpendsWithSigHashCache() {
+        SigHashCache sigHashes = new SigHashCache(tx);
+        for (int i = 0; i < inputs; i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(sigHashes, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+    }
+}
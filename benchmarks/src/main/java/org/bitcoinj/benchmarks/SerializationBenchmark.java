@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing blocks and transactions as wire messages with {@link MessageSerializer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+    @Param({ "1", "2000" })
+    public int transactionsPerBlock;
+
+    private MessageSerializer serializer;
+    private Block block;
+    private Transaction transaction;
+    private byte[] blockMessage, transactionMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.context();
+        Random random = new Random(1);
+        serializer = BenchmarkData.PARAMS.getDefaultSerializer();
+        block = BenchmarkData.createBlock(random, BenchmarkData.randomKey(random), transactionsPerBlock);
+        transaction = block.getTransactions().get(block.getTransactions().size() - 1);
+        blockMessage = serialize(block);
+        transactionMessage = serialize(transaction);
+        // Deserialize again, so that nothing is cached from building the messages.
+        block = (Block) serializer.deserialize(ByteBuffer.wrap(blockMessage));
+        transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(transactionMessage));
+    }
+
+    private byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserializeBlock() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(blockMessage));
+    }
+
+    @Benchmark
+    public byte[] serializeBlock() throws IOException {
+        return serialize(block);
+    }
+
+    @Benchmark
+    public Object deserializeTransaction() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(transactionMessage));
+    }
+
+    @Benchmark
+    public byte[] serializeTransaction() throws IOException {
+        return serialize(transaction);
+    }
+}
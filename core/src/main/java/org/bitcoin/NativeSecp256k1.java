@@ -55,9 +55,50 @@ public class NativeSecp256k1 {
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) throws AssertFailException {
         Preconditions.checkArgument(data.length == 32 && signature.length <= 520 && pub.length <= 520);
 
+        ByteBuffer byteBuff = verifyBuffer(data, signature, pub);
+        r.lock();
+        try {
+            return secp256k1_ecdsa_verify(byteBuff, Secp256k1Context.getContext(), signature.length, pub.length) == 1;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * Verifies many secp256k1 signatures in native code, e.g. all signatures of a block. This is cheaper than calling
+     * {@link #verify(byte[], byte[], byte[])} for each of them, as the context is only locked once and the native
+     * buffer of the calling thread is reused throughout. Calling when enabled == false is undefined (probably library
+     * not loaded)
+     *
+     * @param data The data which was signed, each must be exactly 32 bytes
+     * @param signatures The signatures, in the same order
+     * @param pubs The public keys which did the signing, in the same order
+     * @return whether each of the signatures is valid
+     */
+    public static boolean[] verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) throws AssertFailException {
+        Preconditions.checkArgument(data.length == signatures.length && data.length == pubs.length);
+        for (int i = 0; i < data.length; i++)
+            Preconditions.checkArgument(data[i].length == 32 && signatures[i].length <= 520 && pubs[i].length <= 520);
+
+        boolean[] results = new boolean[data.length];
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            for (int i = 0; i < data.length; i++) {
+                ByteBuffer byteBuff = verifyBuffer(data[i], signatures[i], pubs[i]);
+                results[i] = secp256k1_ecdsa_verify(byteBuff, context, signatures[i].length, pubs[i].length) == 1;
+            }
+        } finally {
+            r.unlock();
+        }
+        return results;
+    }
+
+    private static ByteBuffer verifyBuffer(byte[] data, byte[] signature, byte[] pub) {
+        int length = data.length + signature.length + pub.length;
         ByteBuffer byteBuff = nativeECDSABuffer.get();
-        if (byteBuff == null || byteBuff.capacity() < 520) {
-            byteBuff = ByteBuffer.allocateDirect(520);
+        if (byteBuff == null || byteBuff.capacity() < length) {
+            byteBuff = ByteBuffer.allocateDirect(Math.max(length, 520));
             byteBuff.order(ByteOrder.nativeOrder());
             nativeECDSABuffer.set(byteBuff);
         }
@@ -65,13 +106,7 @@ public class NativeSecp256k1 {
         byteBuff.put(data);
         byteBuff.put(signature);
         byteBuff.put(pub);
-
-        r.lock();
-        try {
-            return secp256k1_ecdsa_verify(byteBuff, Secp256k1Context.getContext(), signature.length, pub.length) == 1;
-        } finally {
-            r.unlock();
-        }
+        return byteBuff;
     }
 
     /**
@@ -394,7 +394,87 @@ public abstract class AbstractBlockChain {
                     block.toString(), e);
         }
     }
-    
+
+    /**
+     * <p>Adds a run of consecutive block headers to the top of the best chain, as they are downloaded when syncing
+     * headers first. Each header is checked as by {@link #add(Block)}, but the chain head is only moved once, after
+     * all of them were stored, and the lock is taken only once. Headers at the start which are already part of the
+     * best chain are skipped. Only supported when not verifying transactions.</p>
+     *
+     * <p>If a header fails to verify, the ones before it are kept and the exception is thrown.</p>
+     *
+     * @return the number of headers added
+     * @throws VerificationException if the headers don't connect to the best chain or a header is invalid
+     */
+    public int addHeaders(List<Block> headers) throws VerificationException {
+        return addHeaders(headers, false);
+    }
+
+    /**
+     * Like {@link #addHeaders(List)}. If {@code proofOfWorkChecked} is true, the proof of work of the headers was
+     * already checked off the network thread and isn't checked again while holding the lock.
+     */
+    int addHeaders(List<Block> headers, boolean proofOfWorkChecked) throws VerificationException {
+        checkState(!shouldVerifyTransactions(), "Only headers can be added in full-block mode");
+        lock.lock();
+        try {
+            StoredBlock head = getChainHead();
+            int first = 0;
+            // Skip what we have already, which happens if blocks were added while the headers were downloaded.
+            while (first < headers.size() && !headers.get(first).getPrevBlockHash().equals(head.getHeader().getHash())) {
+                StoredBlock stored = blockStore.get(headers.get(first).getHash());
+                if (stored == null || stored.getHeight() > head.getHeight())
+                    throw new VerificationException("Headers don't connect to the best chain: " +
+                            headers.get(first).getHashAsString());
+                first++;
+            }
+            List<StoredBlock> added = new ArrayList<>(headers.size() - first);
+            StoredBlock prev = head;
+            VerificationException failure = null;
+            for (Block header : headers.subList(first, headers.size())) {
+                try {
+                    if (!header.getPrevBlockHash().equals(prev.getHeader().getHash()))
+                        throw new VerificationException("Header does not connect: " + header.getHashAsString());
+                    if (proofOfWorkChecked)
+                        header.verifyHeaderExceptProofOfWork();
+                    else
+                        header.verifyHeader();
+                    params.checkDifficultyTransitions(prev, header, blockStore);
+                    if (!params.passesCheckpoint(prev.getHeight() + 1, header.getHash()))
+                        throw new VerificationException("Block failed checkpoint lockin at " + (prev.getHeight() + 1));
+                    if (header.getVersion() == Block.BLOCK_VERSION_BIP34
+                        || header.getVersion() == Block.BLOCK_VERSION_BIP66) {
+                        final Integer count = versionTally.getCountAtOrAbove(header.getVersion() + 1);
+                        if (count != null
+                            && count >= params.getMajorityRejectBlockOutdated()) {
+                            throw new VerificationException.BlockVersionOutOfDate(header.getVersion());
+                        }
+                    }
+                } catch (VerificationException e) {
+                    log.error("Failed to verify header {}: ", header.getHashAsString(), e);
+                    failure = e;
+                    break;
+                }
+                prev = addToBlockStore(prev, header.transactions == null ? header : header.cloneAsHeader());
+                versionTally.add(header.getVersion());
+                added.add(prev);
+            }
+            if (!added.isEmpty()) {
+                setChainHead(prev);
+                log.debug("Chain is now {} blocks high, running listeners", prev.getHeight());
+                for (StoredBlock block : added)
+                    informListenersForNewBlock(block.getHeader(), NewBlockType.BEST_CHAIN, null, null, block);
+            }
+            if (failure != null)
+                throw failure;
+            return added.size();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -28,6 +28,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -44,7 +45,7 @@ import static org.bitcoinj.core.Utils.*;
  */
 public class BitcoinSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
-    private static final int COMMAND_LEN = 12;
+    static final int COMMAND_LEN = 12;
 
     private final NetworkParameters params;
     private final boolean parseRetain;
@@ -165,7 +166,20 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    /**
+     * Like {@link #deserializePayload(BitcoinPacketHeader, ByteBuffer)}, but parses the message from the given array,
+     * which must hold exactly the payload, without copying it. The caller hands the array over and must not modify it
+     * afterwards. Used by {@link PeerSocketHandler} for messages it assembled from several reads.
+     */
+    Message deserializeOwnedPayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload doesn't match the header");
+        return deserializePayload(header, payloadBytes);
+    }
 
+    private Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
         // Verify the checksum.
         byte[] hash;
         hash = Sha256Hash.hashTwice(payloadBytes);
@@ -727,6 +727,14 @@ public class Block extends Message {
         checkTimestamp();
     }
 
+    /**
+     * Like {@link #verifyHeader()}, but leaves out the proof of work. Only for headers whose proof of work was
+     * already checked, like the ones {@link HeadersFirstSync} hands to the chain.
+     */
+    void verifyHeaderExceptProofOfWork() throws VerificationException {
+        checkTimestamp();
+    }
+
     /**
      * Checks the block contents
      *
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Downloads the blocks announced to the download peer from several peers at once, for
+ * {@link PeerGroup#setMaxBlocksInFlight(int)}.</p>
+ *
+ * <p>Instead of requesting the blocks of an inv from the peer that sent it, the download peer hands them to the
+ * scheduler, which spreads the requests over all peers that serve the block chain, keeping up to a configured number
+ * of blocks requested or waiting at a time. Requests that aren't answered in time are given to another peer. Received
+ * blocks are put back into the order they were announced in, and then added to the chain by the peer that announced
+ * them, just as if it had downloaded them itself. That peer keeps driving the chain download, so the last block of
+ * every announcement is requested from it: that is what makes the remote peer announce the next blocks. It is requested
+ * as soon as the announcement arrives, ahead of the window, so the next announcement arrives while the window is still
+ * busy with this one. To bound what is downloaded ahead, at most {@link #MAX_REQUESTED_AHEAD} blocks are requested like
+ * this at a time; otherwise the last block waits for its turn in the window. A single announced block, usually a newly
+ * solved one, is requested from the announcer too, as other peers may not have it yet.</p>
+ *
+ * <p>When a filtered block uses up the Bloom filter, the announcer takes back the blocks it announced and downloads
+ * them again itself once the new filter is in place, see {@link #filterExhausted(Peer)}. Nothing is requested until
+ * then, and answers to requests sent before are dropped, as they were filtered with the old filter.</p>
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** A request that isn't answered within this time is given to another peer. */
+    static final long STALL_TIMEOUT_MILLIS = 10 * 1000;
+
+    /** The maximum number of blocks requested ahead of the window, to make the announcer announce the next blocks. */
+    static final int MAX_REQUESTED_AHEAD = 2;
+
+    private final NetworkParameters params;
+    private final int maxBlocksInFlight;
+
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+    // Announced blocks which weren't added to the chain yet, in the order they were announced in.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Download> downloads = new LinkedHashMap<>();
+    // The blocks requested from each peer which it didn't send yet, including ones that were given to another peer.
+    @GuardedBy("lock") private final Map<Peer, Set<Sha256Hash>> requested = new HashMap<>();
+    // The blocks requested from each peer before the Bloom filter was used up, whose answers are dropped.
+    @GuardedBy("lock") private final Map<Peer, Set<Sha256Hash>> stale = new HashMap<>();
+    // The peer whose blocks used up the Bloom filter, until the new filter is in place. Nothing is requested meanwhile.
+    @GuardedBy("lock") @Nullable private Peer awaitingFreshFilter;
+    @GuardedBy("lock") private int inFlight;
+    // Blocks requested ahead of the window which weren't added to the chain yet.
+    @GuardedBy("lock") private int requestedAhead;
+    @GuardedBy("lock") private boolean delivering;
+
+    BlockDownloadScheduler(NetworkParameters params, int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight > 0, "maxBlocksInFlight must be positive");
+        this.params = params;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /** Returns the maximum number of blocks which are requested or waiting to be added to the chain at a time. */
+    int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    /** Lets the scheduler request blocks from the given peer, if it serves the block chain. */
+    void addPeer(Peer peer) {
+        if (!peer.getPeerVersionMessage().hasBlockChain())
+            return;
+        Map<Peer, GetDataMessage> sends;
+        lock.lock();
+        try {
+            if (!requested.containsKey(peer))
+                requested.put(peer, new HashSet<Sha256Hash>());
+            sends = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /**
+     * Stops requesting blocks from the given peer, and asks others for what it didn't send. Blocks it announced are
+     * forgotten, as whichever peer takes over the chain download will announce them again.
+     */
+    void removePeer(Peer peer) {
+        Map<Peer, GetDataMessage> sends;
+        lock.lock();
+        try {
+            stale.remove(peer);
+            if (awaitingFreshFilter == peer)
+                awaitingFreshFilter = null;
+            Set<Sha256Hash> hashes = requested.remove(peer);
+            if (hashes != null) {
+                for (Sha256Hash hash : hashes) {
+                    Download download = downloads.get(hash);
+                    if (download != null && download.peer == peer)
+                        requeue(download);
+                }
+            }
+            Iterator<Download> it = downloads.values().iterator();
+            while (it.hasNext()) {
+                Download download = it.next();
+                if (download.announcer != peer)
+                    continue;
+                if (download.peer != null || download.block != null)
+                    inFlight--;
+                if (download.ahead)
+                    requestedAhead--;
+                it.remove();
+            }
+            sends = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Called by the download peer with the blocks it was told about, in the order it was told. */
+    void announced(Peer announcer, List<Sha256Hash> hashes, boolean filtered) {
+        Map<Peer, GetDataMessage> sends;
+        lock.lock();
+        try {
+            int added = 0;
+            Download last = null;
+            for (int i = 0; i < hashes.size(); i++) {
+                Sha256Hash hash = hashes.get(i);
+                if (downloads.containsKey(hash))
+                    continue;
+                // The last block is requested from the announcer, which makes it announce what comes next. A single
+                // block was likely just solved, and the announcer is the one peer known to have it.
+                boolean fromAnnouncer = i == hashes.size() - 1;
+                Download download = new Download(hash, announcer, filtered, fromAnnouncer);
+                downloads.put(hash, download);
+                if (fromAnnouncer)
+                    last = download;
+                added++;
+            }
+            log.debug("{}: Scheduled {} block download(s), {} pending", announcer, added, downloads.size());
+            sends = assign();
+            // Don't let the last block wait behind the window, so the next announcement comes in while it is busy.
+            if (last != null && last.peer == null && awaitingFreshFilter == null
+                    && requestedAhead < MAX_REQUESTED_AHEAD && requested.containsKey(announcer)) {
+                request(last, announcer, sends);
+                inFlight++;
+                last.ahead = true;
+                requestedAhead++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /**
+     * Called by a peer with a block it received. Returns true if the block was requested by the scheduler, in which
+     * case the peer must not process it any further.
+     */
+    boolean received(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        Sha256Hash hash = block.getHash();
+        Map<Peer, GetDataMessage> sends;
+        lock.lock();
+        try {
+            // The answer to an earlier request comes first, as peers answer in order.
+            Set<Sha256Hash> staleHashes = stale.get(peer);
+            if (staleHashes != null && staleHashes.remove(hash)) {
+                log.debug("{}: Dropping block {}, it was filtered with the old Bloom filter", peer, hash);
+                return true;
+            }
+            Set<Sha256Hash> hashes = requested.get(peer);
+            if (hashes == null || !hashes.remove(hash))
+                return false;
+            Download download = downloads.get(hash);
+            if (download == null || download.block != null)
+                return true;  // Given to another peer and already received or added.
+            // This may be a peer we had given up on, and the request to the other peer stays so that its answer is
+            // recognized and dropped.
+            download.block = block;
+            download.filteredBlock = filteredBlock;
+            download.peer = null;
+            sends = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+        deliver();
+        return true;
+    }
+
+    /**
+     * Called by the announcer when a block it was delivered used up the Bloom filter. Returns the blocks it announced
+     * which weren't delivered yet, in order, whether they were requested or received already. They are forgotten, so
+     * that the announcer can download them again once the new filter is in place. Blocks announced by others are
+     * requested again. Until {@link #filterReplaced(Peer)}, nothing is requested, and answers to the requests sent
+     * so far are dropped.
+     */
+    List<Sha256Hash> filterExhausted(Peer announcer) {
+        lock.lock();
+        try {
+            awaitingFreshFilter = announcer;
+            List<Sha256Hash> hashes = new ArrayList<>();
+            Iterator<Download> it = downloads.values().iterator();
+            while (it.hasNext()) {
+                Download download = it.next();
+                if (download.peer != null || download.block != null)
+                    inFlight--;
+                if (download.ahead)
+                    requestedAhead--;
+                download.peer = null;
+                download.block = null;
+                download.filteredBlock = null;
+                download.ahead = false;
+                if (download.announcer == announcer) {
+                    hashes.add(download.hash);
+                    it.remove();
+                }
+            }
+            for (Map.Entry<Peer, Set<Sha256Hash>> entry : requested.entrySet()) {
+                if (entry.getValue().isEmpty())
+                    continue;
+                Set<Sha256Hash> staleHashes = stale.get(entry.getKey());
+                if (staleHashes == null) {
+                    staleHashes = new HashSet<>();
+                    stale.put(entry.getKey(), staleHashes);
+                }
+                staleHashes.addAll(entry.getValue());
+                entry.getValue().clear();
+            }
+            log.info("{}: Bloom filter used up, taking back {} block download(s)", announcer, hashes.size());
+            return hashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the peer passed to {@link #filterExhausted(Peer)} once the new Bloom filter is in place, to request
+     * blocks again.
+     */
+    void filterReplaced(Peer announcer) {
+        Map<Peer, GetDataMessage> sends;
+        lock.lock();
+        try {
+            if (awaitingFreshFilter != announcer)
+                return;
+            awaitingFreshFilter = null;
+            sends = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Gives requests which took too long to another peer. */
+    void checkStalls() {
+        Map<Peer, GetDataMessage> sends = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            if (awaitingFreshFilter != null)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Download download : downloads.values()) {
+                if (download.peer == null || now - download.requestTimeMillis < STALL_TIMEOUT_MILLIS)
+                    continue;
+                Peer other = leastBusyPeer(download, download.peer);
+                if (other == null)
+                    continue;
+                log.info("{}: Block {} took too long, requesting it from {}", download.peer, download.hash, other);
+                // The request stays with the stalled peer, which makes it less likely to be picked again.
+                request(download, other, sends);
+            }
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    // Adds the blocks at the front which were received to the chain, one at a time and in order.
+    private void deliver() {
+        while (true) {
+            Download download;
+            lock.lock();
+            try {
+                if (delivering)
+                    return;
+                Iterator<Download> it = downloads.values().iterator();
+                if (!it.hasNext())
+                    return;
+                download = it.next();
+                if (download.block == null)
+                    return;
+                it.remove();
+                inFlight--;
+                if (download.ahead)
+                    requestedAhead--;
+                delivering = true;
+            } finally {
+                lock.unlock();
+            }
+            Map<Peer, GetDataMessage> sends;
+            try {
+                download.announcer.addScheduledBlock(download.block, download.filteredBlock);
+            } finally {
+                lock.lock();
+                try {
+                    delivering = false;
+                    sends = assign();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            send(sends);
+        }
+    }
+
+    // Requests the blocks at the front which weren't requested yet, while fewer than the maximum are in flight.
+    // Returns the getdata messages to send, which must be sent without holding the lock.
+    @GuardedBy("lock")
+    private Map<Peer, GetDataMessage> assign() {
+        Map<Peer, GetDataMessage> sends = new LinkedHashMap<>();
+        if (awaitingFreshFilter != null)
+            return sends;
+        for (Download download : downloads.values()) {
+            if (inFlight >= maxBlocksInFlight)
+                break;
+            if (download.peer != null || download.block != null)
+                continue;
+            Peer peer = download.fromAnnouncer ? download.announcer : leastBusyPeer(download, null);
+            if (peer == null || !requested.containsKey(peer))
+                break;
+            request(download, peer, sends);
+            inFlight++;
+        }
+        return sends;
+    }
+
+    @GuardedBy("lock")
+    private void request(Download download, Peer peer, Map<Peer, GetDataMessage> sends) {
+        download.peer = peer;
+        download.requestTimeMillis = Utils.currentTimeMillis();
+        requested.get(peer).add(download.hash);
+        GetDataMessage getdata = sends.get(peer);
+        if (getdata == null) {
+            getdata = new GetDataMessage(params);
+            sends.put(peer, getdata);
+        }
+        if (download.filtered)
+            getdata.addFilteredBlock(download.hash);
+        else
+            getdata.addBlock(download.hash);
+    }
+
+    @GuardedBy("lock")
+    private void requeue(Download download) {
+        download.peer = null;
+        inFlight--;
+        // The announcer is gone, so somebody else must do.
+        download.fromAnnouncer = false;
+    }
+
+    // The peer which has the fewest blocks outstanding, and which can send filtered blocks if those are wanted.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer leastBusyPeer(Download download, @Nullable Peer except) {
+        Peer best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Map.Entry<Peer, Set<Sha256Hash>> entry : requested.entrySet()) {
+            Peer peer = entry.getKey();
+            if (peer == except)
+                continue;
+            if (download.filtered && !peer.getPeerVersionMessage().isBloomFilteringSupported())
+                continue;
+            if (entry.getValue().size() < bestCount) {
+                best = peer;
+                bestCount = entry.getValue().size();
+            }
+        }
+        return best;
+    }
+
+    private void send(Map<Peer, GetDataMessage> sends) {
+        for (Map.Entry<Peer, GetDataMessage> entry : sends.entrySet()) {
+            Peer peer = entry.getKey();
+            GetDataMessage getdata = entry.getValue();
+            peer.sendMessage(getdata);
+            // Like the peer itself, send a ping after filtered blocks, so that the transactions of the last one end.
+            if (getdata.getItems().get(0).type == InventoryItem.Type.FilteredBlock)
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    private static class Download {
+        final Sha256Hash hash;
+        final Peer announcer;
+        final boolean filtered;
+        boolean fromAnnouncer;
+        // Whether it was requested ahead of the window.
+        boolean ahead;
+        // The peer it is requested from, if it is.
+        @Nullable Peer peer;
+        long requestTimeMillis;
+        @Nullable Block block;
+        @Nullable FilteredBlock filteredBlock;
+
+        Download(Sha256Hash hash, Peer announcer, boolean filtered, boolean fromAnnouncer) {
+            this.hash = hash;
+            this.announcer = announcer;
+            this.filtered = filtered;
+            this.fromAnnouncer = fromAnnouncer;
+        }
+    }
+}
@@ -41,6 +41,8 @@ import java.nio.charset.StandardCharsets;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -203,6 +205,11 @@ public class CheckpointManager {
         }
     }
 
+    /** Returns the checkpoints that were loaded, ordered by time and so by height. */
+    public Collection<StoredBlock> getCheckpoints() {
+        return Collections.unmodifiableCollection(checkpoints.values());
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
         return checkpoints.size();
@@ -58,6 +58,7 @@ import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -600,7 +601,25 @@ public class ECKey implements EncryptableItem {
 
         protected ByteArrayOutputStream derByteStream() throws IOException {
             // Usually 70-72 bytes.
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(72);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(73);
+            byte[] rBytes = r.toByteArray();
+            byte[] sBytes = s.toByteArray();
+            int length = 2 + rBytes.length + 2 + sBytes.length;
+            if (length < 128) {
+                // The components of a signature are small enough for short form lengths, so the encoding can be
+                // written directly. This is what the signature verification path does for every signature, and it
+                // is much cheaper than going through the ASN.1 classes. BigInteger.toByteArray() is the minimal two's
+                // complement representation that DER requires for integers.
+                bos.write(0x30);
+                bos.write(length);
+                bos.write(0x02);
+                bos.write(rBytes.length);
+                bos.write(rBytes);
+                bos.write(0x02);
+                bos.write(sBytes.length);
+                bos.write(sBytes);
+                return bos;
+            }
             DERSequenceGenerator seq = new DERSequenceGenerator(bos);
             seq.addObject(new ASN1Integer(r));
             seq.addObject(new ASN1Integer(s));
@@ -713,11 +732,12 @@ public class ECKey implements EncryptableItem {
             }
         }
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
+        return verifyInJava(data, signature, JavaSecp256k1.decodePublicKey(pub));
+    }
+
+    private static boolean verifyInJava(byte[] data, ECDSASignature signature, ECPoint pub) {
         try {
-            return signer.verifySignature(data, signature.r, signature.s);
+            return JavaSecp256k1.verify(data, signature.r, signature.s, pub);
         } catch (NullPointerException e) {
             // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
             // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
@@ -745,6 +765,45 @@ public class ECKey implements EncryptableItem {
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /**
+     * <p>Verifies many ECDSA signatures at once, e.g. all signatures of a block. With native ECDSA verification this
+     * avoids most of the per-call overhead of {@link #verify(byte[], ECDSASignature, byte[])}, otherwise the
+     * signatures are verified one by one.</p>
+     *
+     * <p>The same restrictions on the size of the data, signatures and public keys apply as for a single
+     * verification. The three lists must have the same size.</p>
+     *
+     * @param data       Hashes of the data to verify.
+     * @param signatures Signatures, in the same order.
+     * @param pubs       Public key bytes, in the same order.
+     * @return whether each of the signatures is valid
+     */
+    public static boolean[] verify(List<byte[]> data, List<ECDSASignature> signatures, List<byte[]> pubs) {
+        checkArgument(data.size() == signatures.size() && data.size() == pubs.size());
+        boolean[] results = new boolean[data.size()];
+        if (FAKE_SIGNATURES) {
+            Arrays.fill(results, true);
+            return results;
+        }
+
+        if (Secp256k1Context.isEnabled()) {
+            byte[][] derSignatures = new byte[signatures.size()][];
+            for (int i = 0; i < derSignatures.length; i++)
+                derSignatures[i] = signatures.get(i).encodeToDER();
+            try {
+                return NativeSecp256k1.verifyBatch(data.toArray(new byte[data.size()][]), derSignatures,
+                        pubs.toArray(new byte[pubs.size()][]));
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+                return results;
+            }
+        }
+
+        for (int i = 0; i < results.length; i++)
+            results[i] = verify(data.get(i), signatures.get(i), pubs.get(i));
+        return results;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -752,14 +811,19 @@ public class ECKey implements EncryptableItem {
      * @param signature ASN.1 encoded signature.
      */
     public boolean verify(byte[] hash, byte[] signature) throws SignatureDecodeException {
-        return ECKey.verify(hash, signature, getPubKey());
+        if (FAKE_SIGNATURES || Secp256k1Context.isEnabled())
+            return ECKey.verify(hash, signature, getPubKey());
+        return verifyInJava(hash, ECDSASignature.decodeFromDER(signature), pub.get());
     }
 
     /**
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        if (FAKE_SIGNATURES || Secp256k1Context.isEnabled())
+            return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        // Use the point of this key, so that precomputation for it is kept for the next verification.
+        return verifyInJava(sigHash.getBytes(), signature, pub.get());
     }
 
     /**
@@ -999,7 +1063,9 @@ public class ECKey implements EncryptableItem {
         // So it's encoded in the recId.
         ECPoint R = decompressKey(x, (recId & 1) == 1);
         //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
-        if (!R.multiply(n).isInfinity())
+        //        The cofactor of secp256k1 is one, so every point on the curve has order n and this multiplication,
+        //        which is as expensive as the rest of the recovery, can be skipped.
+        if (!CURVE.getH().equals(BigInteger.ONE) && !R.multiply(n).isInfinity())
             return null;
         //   1.5. Compute e from M using Steps 2 and 3 of ECDSA signature verification.
         BigInteger e = message.toBigInteger();
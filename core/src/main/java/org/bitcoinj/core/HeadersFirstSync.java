@@ -0,0 +1,465 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Downloads the block headers of the best chain from several peers at once, for
+ * {@link PeerGroup#setHeadersFirstSync(boolean, CheckpointManager)}.</p>
+ *
+ * <p>The chain from the current head up to the fast catchup time is split into ranges at the known checkpoints, and
+ * each range is requested with getheaders from a different peer. As responses arrive, their headers are checked for
+ * proof of work and for linking up on the given executor, not on the network thread, and are then added to the block
+ * chain in order and in large batches with {@link AbstractBlockChain#addHeaders(List, boolean)}, which doesn't check
+ * their proof of work again. Past the last checkpoint the chain can only be requested a message at a time, but adding
+ * the previous headers overlaps with fetching the next.</p>
+ *
+ * <p>The sync finishes when the headers up to the fast catchup time, or up to the best block of the peers, were added,
+ * or early if no usable peer is left. Either way, the normal block chain download picks up from there.</p>
+ */
+class HeadersFirstSync implements PreMessageReceivedEventListener {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstSync.class);
+
+    // Checkpoints are only used as range boundaries when they are this much older than the fast catchup time. Block
+    // timestamps may be hours off, and no block after the fast catchup time may be added as a header only.
+    private static final long CHECKPOINT_MARGIN_SECS = 7 * 86400;
+    /** How many ranges may be requested or waiting to be added at once, which bounds the headers held in memory. */
+    static final int MAX_PENDING_RANGES = 16;
+    /** A peer which doesn't answer a request within this time isn't asked again. */
+    static final long REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final long stopTimeSecs;
+    private final Executor executor;
+    private final Executor committer;
+    private final SettableFuture<StoredBlock> future = SettableFuture.create();
+
+    private final ReentrantLock lock = Threading.lock("headersfirstsync");
+    // Ranges which still have to be requested, by the height they start after.
+    @GuardedBy("lock") private final TreeMap<Integer, Range> queue = new TreeMap<>();
+    @GuardedBy("lock") private final Map<Peer, Request> requests = new HashMap<>();
+    @GuardedBy("lock") private final Set<Peer> peers = new LinkedHashSet<>();
+    // Peers the sync is registered with as a listener, which includes those it gave up on but may still answer.
+    @GuardedBy("lock") private final Set<Peer> listening = new HashSet<>();
+    // Checked headers which wait for the ones before them to be added, by the height of the first header.
+    @GuardedBy("lock") private final TreeMap<Integer, List<Block>> checked = new TreeMap<>();
+    @GuardedBy("lock") private int checking;
+    @GuardedBy("lock") private int nextHeight;
+    @GuardedBy("lock") private boolean reachedEnd;
+    @GuardedBy("lock") private boolean stopped;
+
+    /**
+     * @param checkpoints  where to split the chain into ranges, or null to fetch it from one peer at a time
+     * @param stopTimeSecs the fast catchup time: blocks from this time on are left to the normal download
+     * @param executor     where headers are checked and added to the chain
+     */
+    HeadersFirstSync(NetworkParameters params, AbstractBlockChain chain, @Nullable CheckpointManager checkpoints,
+                     long stopTimeSecs, Executor executor) {
+        this.params = params;
+        this.chain = chain;
+        this.stopTimeSecs = stopTimeSecs;
+        this.executor = executor;
+        this.committer = MoreExecutors.newSequentialExecutor(executor);
+        StoredBlock head = chain.getChainHead();
+        nextHeight = head.getHeight() + 1;
+        Sha256Hash start = head.getHeader().getHash();
+        int startHeight = head.getHeight();
+        if (checkpoints != null) {
+            for (StoredBlock checkpoint : checkpoints.getCheckpoints()) {
+                if (checkpoint.getHeight() <= startHeight
+                        || checkpoint.getHeader().getTimeSeconds() >= stopTimeSecs - CHECKPOINT_MARGIN_SECS)
+                    continue;
+                Sha256Hash end = checkpoint.getHeader().getHash();
+                queue.put(startHeight, new Range(start, startHeight, end, checkpoint.getHeight()));
+                start = end;
+                startHeight = checkpoint.getHeight();
+            }
+        }
+        queue.put(startHeight, new Range(start, startHeight, null, -1));
+        log.info("Syncing headers from height {} in {} range(s)", head.getHeight(), queue.size());
+    }
+
+    /** Returns a future which completes with the new chain head when the sync has finished. */
+    ListenableFuture<StoredBlock> getFuture() {
+        return future;
+    }
+
+    /** Starts asking the given peers for headers. */
+    void start(Collection<Peer> initialPeers) {
+        for (Peer peer : initialPeers)
+            addPeer(peer);
+        lock.lock();
+        try {
+            maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lets the sync ask the given peer for headers, if it serves the block chain. */
+    void addPeer(Peer peer) {
+        if (!peer.getPeerVersionMessage().hasBlockChain())
+            return;
+        List<Map.Entry<Peer, Range>> sends;
+        lock.lock();
+        try {
+            if (stopped)
+                return;
+            if (listening.add(peer))
+                peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, this);
+            peers.add(peer);
+            sends = assignRanges();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Stops asking the given peer for headers, and asks others for what it was requested. */
+    void removePeer(Peer peer) {
+        List<Map.Entry<Peer, Range>> sends;
+        lock.lock();
+        try {
+            stopListening(peer);
+            boolean known = peers.remove(peer);
+            Request request = requests.remove(peer);
+            if (!known && request == null)
+                return;
+            if (request != null && !request.timedOut)
+                queue.put(request.range.startHeight, request.range);
+            sends = assignRanges();
+            maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Gives up on peers which take too long to answer, and asks others for their ranges instead. */
+    void checkTimeouts() {
+        List<Map.Entry<Peer, Range>> sends;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Peer, Request> entry : requests.entrySet()) {
+                Request request = entry.getValue();
+                if (request.timedOut || now - request.timeMillis < REQUEST_TIMEOUT_MILLIS)
+                    continue;
+                log.warn("{}: Timed out waiting for headers after {}, not asking this peer again", entry.getKey(),
+                        request.range.start);
+                // The request stays, so that a late answer is recognized and dropped.
+                request.timedOut = true;
+                peers.remove(entry.getKey());
+                queue.put(request.range.startHeight, request.range);
+            }
+            sends = assignRanges();
+            maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        if (!(m instanceof HeadersMessage))
+            return m;
+        final Request request;
+        lock.lock();
+        try {
+            request = requests.remove(peer);
+            if (request == null)
+                return m;
+            if (stopped)
+                stopListening(peer);
+            if (request.timedOut || stopped)
+                return null;
+            checking++;
+        } finally {
+            lock.unlock();
+        }
+        final Peer from = peer;
+        final List<Block> headers = ((HeadersMessage) m).getBlockHeaders();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                check(from, request.range, headers);
+            }
+        });
+        return null;
+    }
+
+    // Runs on the executor.
+    private void check(Peer peer, Range range, List<Block> headers) {
+        int count = headers.size();
+        boolean end = false;
+        if (range.end == null) {
+            // The open range ends at the fast catchup time, or at the best block of the peer.
+            for (int i = 0; i < headers.size(); i++) {
+                if (headers.get(i).getTimeSeconds() >= stopTimeSecs) {
+                    count = i;
+                    end = true;
+                    break;
+                }
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                end = true;
+        }
+        List<Block> batch = headers.subList(0, count);
+        try {
+            Sha256Hash prev = range.start;
+            int height = range.startHeight;
+            for (Block header : batch) {
+                if (!header.getPrevBlockHash().equals(prev))
+                    throw new VerificationException("Header " + header.getHashAsString() + " does not connect to " + prev);
+                header.verifyHeader();
+                prev = header.getHash();
+                height++;
+                if (range.end != null && height >= range.endHeight && (!prev.equals(range.end) || header != batch.get(batch.size() - 1)))
+                    throw new VerificationException("Headers don't match the checkpoint at height " + range.endHeight);
+            }
+            if (range.end != null && height < range.endHeight && headers.size() < HeadersMessage.MAX_HEADERS)
+                throw new VerificationException("Headers stop before the checkpoint at height " + range.endHeight);
+        } catch (VerificationException e) {
+            log.warn("{}: Got bad headers after {}, not asking this peer again", peer, range.start, e);
+            List<Map.Entry<Peer, Range>> sends;
+            lock.lock();
+            try {
+                checking--;
+                peers.remove(peer);
+                if (!stopped)
+                    queue.put(range.startHeight, range);
+                sends = assignRanges();
+                maybeFinish();
+            } finally {
+                lock.unlock();
+            }
+            send(sends);
+            return;
+        }
+        checked(range, batch, end);
+    }
+
+    private void checked(Range range, List<Block> batch, boolean end) {
+        List<Map.Entry<Peer, Range>> sends;
+        boolean commit;
+        lock.lock();
+        try {
+            checking--;
+            if (stopped)
+                return;
+            int lastHeight = range.startHeight + batch.size();
+            if (!batch.isEmpty()) {
+                checked.put(range.startHeight + 1, new ArrayList<>(batch));
+                // Request the rest of the range, now that we know where it continues.
+                Sha256Hash last = batch.get(batch.size() - 1).getHash();
+                if (range.end == null && !end)
+                    queue.put(lastHeight, new Range(last, lastHeight, null, -1));
+                else if (range.end != null && lastHeight < range.endHeight)
+                    queue.put(lastHeight, new Range(last, lastHeight, range.end, range.endHeight));
+            }
+            if (range.end == null && end)
+                reachedEnd = true;
+            sends = assignRanges();
+            commit = checked.containsKey(nextHeight);
+            if (!commit)
+                maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+        if (commit) {
+            committer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            });
+        }
+    }
+
+    // Runs on the committer, so one batch at a time and in order.
+    private void commit() {
+        List<Block> batch = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!checked.isEmpty() && checked.firstKey() == nextHeight) {
+                List<Block> headers = checked.remove(nextHeight);
+                batch.addAll(headers);
+                nextHeight += headers.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batch.isEmpty())
+            return;
+        try {
+            chain.addHeaders(batch, true);
+            log.info("Added {} headers, chain is now {} blocks high", batch.size(), chain.getBestChainHeight());
+        } catch (Exception e) {
+            log.warn("Failed to add headers, leaving the rest to the normal download", e);
+            lock.lock();
+            try {
+                finish();
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        List<Map.Entry<Peer, Range>> sends;
+        lock.lock();
+        try {
+            sends = assignRanges();
+            maybeFinish();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    // Gives the lowest ranges to the idle peers, while not too many are pending. Returns what to send.
+    @GuardedBy("lock")
+    private List<Map.Entry<Peer, Range>> assignRanges() {
+        if (stopped || queue.isEmpty())
+            return Collections.emptyList();
+        List<Map.Entry<Peer, Range>> sends = new ArrayList<>();
+        int pending = checking + checked.size();
+        for (Request request : requests.values())
+            if (!request.timedOut)
+                pending++;
+        for (Peer peer : peers) {
+            if (pending >= MAX_PENDING_RANGES || queue.isEmpty())
+                break;
+            if (requests.containsKey(peer))
+                continue;
+            Iterator<Range> it = queue.values().iterator();
+            while (it.hasNext()) {
+                Range range = it.next();
+                if (peer.getBestHeight() < (range.end != null ? range.endHeight : range.startHeight + 1))
+                    continue;
+                it.remove();
+                requests.put(peer, new Request(range, Utils.currentTimeMillis()));
+                sends.add(new AbstractMap.SimpleImmutableEntry<>(peer, range));
+                pending++;
+                break;
+            }
+        }
+        return sends;
+    }
+
+    private void send(List<Map.Entry<Peer, Range>> sends) {
+        for (Map.Entry<Peer, Range> send : sends) {
+            Range range = send.getValue();
+            log.info("{}: Requesting headers after {} (height {})", send.getKey(), range.start, range.startHeight);
+            send.getKey().sendMessage(new GetHeadersMessage(params, new BlockLocator().add(range.start),
+                    range.end != null ? range.end : Sha256Hash.ZERO_HASH));
+        }
+    }
+
+    // Finishes once everything was added, or when there is nobody left to ask. Called after assignRanges(), so if
+    // nothing is in flight, no peer could be given what is left.
+    @GuardedBy("lock")
+    private void maybeFinish() {
+        if (stopped)
+            return;
+        boolean idle = checking == 0 && checked.isEmpty();
+        for (Request request : requests.values())
+            idle &= request.timedOut;
+        if (!idle)
+            return;
+        if (!queue.isEmpty() || !reachedEnd)
+            log.info("No peers left to sync headers from, leaving the rest to the normal download");
+        finish();
+    }
+
+    @GuardedBy("lock")
+    private void finish() {
+        if (stopped)
+            return;
+        stopped = true;
+        queue.clear();
+        checked.clear();
+        // Peers which still owe an answer keep the listener until it arrives, so it doesn't reach the normal download.
+        for (Peer peer : new ArrayList<>(listening))
+            if (!requests.containsKey(peer))
+                stopListening(peer);
+        // Completes after any batch that is being added.
+        committer.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.set(chain.getChainHead());
+            }
+        });
+    }
+
+    @GuardedBy("lock")
+    private void stopListening(Peer peer) {
+        if (listening.remove(peer))
+            peer.removePreMessageReceivedEventListener(this);
+    }
+
+    /** The headers after a block, up to a checkpoint or open-ended. */
+    private static class Range {
+        final Sha256Hash start;
+        final int startHeight;
+        @Nullable final Sha256Hash end;
+        final int endHeight;
+
+        Range(Sha256Hash start, int startHeight, @Nullable Sha256Hash end, int endHeight) {
+            this.start = start;
+            this.startHeight = startHeight;
+            this.end = end;
+            this.endHeight = endHeight;
+        }
+    }
+
+    private static class Request {
+        final Range range;
+        final long timeMillis;
+        boolean timedOut;
+
+        Request(Range range, long timeMillis) {
+            this.range = range;
+            this.timeMillis = timeMillis;
+        }
+    }
+}
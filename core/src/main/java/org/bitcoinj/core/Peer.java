@@ -29,7 +29,6 @@ import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 
-import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -42,7 +41,6 @@ import javax.annotation.Nullable;
 import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -128,6 +126,9 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<>();
+    // If set, blocks announced to us during chain download are fetched through this, from several peers at once, and
+    // blocks we receive for it are passed to it. See PeerGroup.setMaxBlocksInFlight().
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
@@ -149,6 +150,18 @@ public class Peer extends PeerSocketHandler {
     }
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // Dependencies being downloaded by downloadDependencies, shared by all downloads so each is only requested once.
+    @GuardedBy("lock") private final Map<Sha256Hash, SettableFuture<Transaction>> pendingDependencies = new HashMap<>();
+    // Transactions recently downloaded as dependencies, or whose dependencies were, which the next payment is likely
+    // to depend on too.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> recentDependencies =
+            new LinkedHashMap<Sha256Hash, Transaction>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > RECENT_DEPENDENCIES_SIZE;
+        }
+    };
+    private static final int RECENT_DEPENDENCIES_SIZE = 1000;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
 
@@ -873,21 +886,33 @@ public class Peer extends PeerSocketHandler {
      * to confirm, by checking for unexpectedly time locked transactions, unusually deep dependency trees or fee-paying
      * transactions that depend on unconfirmed free transactions.</p>
      *
-     * <p>Note that dependencies downloaded this way will not trigger the onTransaction method of event listeners.</p>
+     * <p>Note that dependencies downloaded this way will not trigger the onTransaction method of event listeners.
+     * Dependencies downloaded recently are remembered and not requested again, so one may be reported that has
+     * confirmed in the meantime.</p>
      */
     public ListenableFuture<List<Transaction>> downloadDependencies(Transaction tx) {
         TransactionConfidence.ConfidenceType txConfidence = tx.getConfidence().getConfidenceType();
         Preconditions.checkArgument(txConfidence != TransactionConfidence.ConfidenceType.BUILDING);
         log.info("{}: Downloading dependencies of {}", getAddress(), tx.getHashAsString());
-        final LinkedList<Transaction> results = new LinkedList<>();
-        // future will be invoked when the entire dependency tree has been walked and the results compiled.
-        final ListenableFuture<Object> future = downloadDependenciesInternal(vDownloadTxDependencyDepth, 0, tx,
-                new Object(), results);
-        final SettableFuture<List<Transaction>> resultFuture = SettableFuture.create();
-        Futures.addCallback(future, new FutureCallback<Object>() {
+        return startDependencyDownload(vDownloadTxDependencyDepth, 0, tx).future;
+    }
+
+    /**
+     * Downloads the dependencies of the given transaction, like {@link #downloadDependencies(Transaction)} but
+     * starting at the given depth. The dependencies are added to the results list, and the returned future completes
+     * with the marker once they all were.
+     *
+     * @deprecated Use {@link #downloadDependencies(Transaction)}, which no longer calls this method.
+     */
+    @Deprecated
+    protected ListenableFuture<Object> downloadDependenciesInternal(final int maxDepth, final int depth,
+            final Transaction tx, final Object marker, final List<Transaction> results) {
+        final SettableFuture<Object> resultFuture = SettableFuture.create();
+        Futures.addCallback(startDependencyDownload(maxDepth, depth, tx).future, new FutureCallback<List<Transaction>>() {
             @Override
-            public void onSuccess(Object ignored) {
-                resultFuture.set(results);
+            public void onSuccess(List<Transaction> dependencies) {
+                results.addAll(dependencies);
+                resultFuture.set(marker);
             }
 
             @Override
@@ -898,85 +923,155 @@ public class Peer extends PeerSocketHandler {
         return resultFuture;
     }
 
-    // The marker object in the future returned is the same as the parameter. It is arbitrary and can be anything.
-    protected ListenableFuture<Object> downloadDependenciesInternal(final int maxDepth, final int depth,
-            final Transaction tx, final Object marker, final List<Transaction> results) {
-
-        final SettableFuture<Object> resultFuture = SettableFuture.create();
-        final Sha256Hash rootTxHash = tx.getHash();
-        // We want to recursively grab its dependencies. This is so listeners can learn important information like
-        // whether a transaction is dependent on a timelocked transaction or has an unexpectedly deep dependency tree
-        // or depends on a no-fee transaction.
-
-        // We may end up requesting transactions that we've already downloaded and thrown away here.
-        Set<Sha256Hash> needToRequest = new CopyOnWriteArraySet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            // There may be multiple inputs that connect to the same transaction.
-            needToRequest.add(input.getOutpoint().getHash());
-        }
+    private DependencyDownload startDependencyDownload(int maxDepth, int depth, Transaction tx) {
+        DependencyDownload download = new DependencyDownload(tx.getHash(), maxDepth);
+        boolean done;
         lock.lock();
         try {
-            // Build the request for the missing dependencies.
-            List<ListenableFuture<Transaction>> futures = Lists.newArrayList();
-            GetDataMessage getdata = new GetDataMessage(params);
-            if (needToRequest.size() > 1)
-                log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(), needToRequest.size(), depth + 1);
-            for (Sha256Hash hash : needToRequest) {
-                getdata.addTransaction(hash);
-                GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
-                futures.add(req.future);
-                getDataFutures.add(req);
+            // A payment spending this transaction may come in next, and will want it as a dependency.
+            recentDependencies.put(tx.getHash(), tx);
+            download.expand(tx, depth);
+            done = download.pending == 0;
+        } catch (Exception e) {
+            log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash(), e);
+            download.future.setException(e);
+            return download;
+        } finally {
+            lock.unlock();
+        }
+        if (done)
+            download.future.set(download.results);
+        return download;
+    }
+
+    /**
+     * Walks the dependency tree of one transaction breadth first. Rather than waiting for a whole level to arrive, the
+     * inputs of each dependency are requested as soon as it is received, so a deep chain of unconfirmed transactions
+     * isn't held up by slow siblings. Dependencies which are already being requested, by this or by another download,
+     * are waited for instead of being requested again, and ones received recently are taken from
+     * {@link #recentDependencies}. All fields are guarded by the peer lock.
+     */
+    private class DependencyDownload {
+        final Sha256Hash rootTxHash;
+        final int maxDepth;
+        final SettableFuture<List<Transaction>> future = SettableFuture.create();
+        final List<Transaction> results = new LinkedList<>();
+        // Every dependency looked at so far, so that one reachable through several paths is only walked once.
+        final Set<Sha256Hash> seen = new HashSet<>();
+        // The number of requested dependencies which weren't received or reported as not found yet.
+        int pending;
+
+        DependencyDownload(Sha256Hash rootTxHash, int maxDepth) {
+            this.rootTxHash = rootTxHash;
+            this.maxDepth = maxDepth;
+        }
+
+        // Requests the dependencies of the given transaction, which is at the given depth below the root. Those in
+        // the cache are walked right away. The caller checks for completion afterwards.
+        @GuardedBy("lock")
+        void expand(Transaction tx, int depth) {
+            checkState(lock.isHeldByCurrentThread());
+            // Counts as pending itself while it runs. A shared dependency may already have been cancelled by a
+            // notfound whose callbacks are waiting for the lock, and then calls back right here; that must not
+            // complete the download while more dependencies are still being added.
+            pending++;
+            try {
+                expandTree(tx, depth);
+            } finally {
+                pending--;
             }
-            ListenableFuture<List<Transaction>> successful = Futures.successfulAsList(futures);
-            Futures.addCallback(successful, new FutureCallback<List<Transaction>>() {
-                @Override
-                public void onSuccess(List<Transaction> transactions) {
-                    // Once all transactions either were received, or we know there are no more to come ...
-                    // Note that transactions will contain "null" for any positions that weren't successful.
-                    List<ListenableFuture<Object>> childFutures = Lists.newLinkedList();
-                    for (Transaction tx : transactions) {
-                        if (tx == null) continue;
-                        log.info("{}: Downloaded dependency of {}: {}", getAddress(), rootTxHash, tx.getHashAsString());
-                        results.add(tx);
-                        // Now recurse into the dependencies of this transaction too.
-                        if (depth + 1 < maxDepth)
-                            childFutures.add(downloadDependenciesInternal(maxDepth, depth + 1, tx, marker, results));
-                    }
-                    if (childFutures.size() == 0) {
-                        // Short-circuit: we're at the bottom of this part of the tree.
-                        resultFuture.set(marker);
-                    } else {
-                        // There are some children to download. Wait until it's done (and their children and their
-                        // children...) to inform the caller that we're finished.
-                        Futures.addCallback(Futures.successfulAsList(childFutures), new FutureCallback<List<Object>>() {
-                            @Override
-                            public void onSuccess(List<Object> objects) {
-                                resultFuture.set(marker);
-                            }
+        }
 
-                            @Override
-                            public void onFailure(Throwable throwable) {
-                                resultFuture.setException(throwable);
-                            }
-                        });
+        @GuardedBy("lock")
+        private void expandTree(Transaction tx, int depth) {
+            GetDataMessage getdata = new GetDataMessage(params);
+            LinkedList<Map.Entry<Transaction, Integer>> queue = new LinkedList<>();
+            queue.add(new AbstractMap.SimpleImmutableEntry<>(tx, depth));
+            while (!queue.isEmpty()) {
+                Map.Entry<Transaction, Integer> next = queue.removeFirst();
+                int childDepth = next.getValue() + 1;
+                for (TransactionInput input : next.getKey().getInputs()) {
+                    // There may be multiple inputs that connect to the same transaction.
+                    Sha256Hash hash = input.getOutpoint().getHash();
+                    if (!seen.add(hash))
+                        continue;
+                    Transaction cached = recentDependencies.get(hash);
+                    if (cached != null) {
+                        results.add(cached);
+                        if (childDepth < maxDepth)
+                            queue.add(new AbstractMap.SimpleImmutableEntry<>(cached, childDepth));
+                        continue;
                     }
+                    SettableFuture<Transaction> dependency = pendingDependencies.get(hash);
+                    if (dependency == null) {
+                        dependency = SettableFuture.create();
+                        pendingDependencies.put(hash, dependency);
+                        getDataFutures.add(new GetDataRequest(hash, dependency));
+                        getdata.addTransaction(hash);
+                    }
+                    pending++;
+                    Futures.addCallback(dependency, new DependencyCallback(hash, dependency, childDepth),
+                            Threading.SAME_THREAD);
                 }
+            }
+            if (getdata.getItems().isEmpty())
+                return;
+            if (getdata.getItems().size() > 1)
+                log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(),
+                        getdata.getItems().size(), depth + 1);
+            sendMessage(getdata);
+        }
 
-                @Override
-                public void onFailure(Throwable throwable) {
-                    resultFuture.setException(throwable);
+        private class DependencyCallback implements FutureCallback<Transaction> {
+            final Sha256Hash hash;
+            final SettableFuture<Transaction> dependency;
+            final int depth;
+
+            DependencyCallback(Sha256Hash hash, SettableFuture<Transaction> dependency, int depth) {
+                this.hash = hash;
+                this.dependency = dependency;
+                this.depth = depth;
+            }
+
+            @Override
+            public void onSuccess(Transaction tx) {
+                boolean done;
+                lock.lock();
+                try {
+                    pendingDependencies.remove(hash, dependency);
+                    recentDependencies.put(hash, tx);
+                    log.info("{}: Downloaded dependency of {}: {}", getAddress(), rootTxHash, tx.getHashAsString());
+                    results.add(tx);
+                    // Now walk the dependencies of this transaction too.
+                    if (depth < maxDepth)
+                        expand(tx, depth);
+                    done = --pending == 0;
+                } catch (Exception e) {
+                    log.error("{}: Couldn't send getdata in downloadDependencies({})", Peer.this, rootTxHash, e);
+                    future.setException(e);
+                    return;
+                } finally {
+                    lock.unlock();
                 }
-            });
-            // Start the operation.
-            sendMessage(getdata);
-        } catch (Exception e) {
-            log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash(), e);
-            resultFuture.setException(e);
-            return resultFuture;
-        } finally {
-            lock.unlock();
+                if (done)
+                    future.set(results);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // Not found, so we're at the bottom of this part of the tree.
+                boolean done;
+                lock.lock();
+                try {
+                    pendingDependencies.remove(hash, dependency);
+                    done = --pending == 0;
+                } finally {
+                    lock.unlock();
+                }
+                if (done)
+                    future.set(results);
+            }
         }
-        return resultFuture;
     }
 
     protected void processBlock(Block m) {
@@ -989,12 +1084,19 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested by the download scheduler, maybe for another peer?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.received(this, m, null)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
         pendingBlockDownloads.remove(m.getHash());
+        addDownloadedBlock(m);
+    }
+
+    private void addDownloadedBlock(Block m) {
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1044,6 +1146,8 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.received(this, m.getBlockHeader(), m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1056,6 +1160,10 @@ public class Peer extends PeerSocketHandler {
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
         pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        addDownloadedFilteredBlock(m);
+    }
+
+    private void addDownloadedFilteredBlock(FilteredBlock m) {
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1094,6 +1202,10 @@ public class Peer extends PeerSocketHandler {
                     log.info("Bloom filter exhausted whilst processing block {}, discarding", m.getHash());
                     awaitingFreshFilter = new LinkedList<>();
                     awaitingFreshFilter.add(m.getHash());
+                    // The blocks the scheduler requested or received for us were filtered with the old filter too.
+                    BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                    if (scheduler != null)
+                        awaitingFreshFilter.addAll(scheduler.filterExhausted(this));
                     awaitingFreshFilter.addAll(blockChain.drainOrphanBlocks());
                     return;   // Chain download process is restarted via a call to setBloomFilter.
                 }
@@ -1243,6 +1355,9 @@ public class Peer extends PeerSocketHandler {
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
+        final BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        List<Sha256Hash> scheduledBlocks = new ArrayList<>();
+        boolean scheduleFilteredBlocks = false;
 
         lock.lock();
         try {
@@ -1269,7 +1384,13 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
+                        if (scheduler != null && awaitingFreshFilter != null) {
+                            // Downloaded along with the discarded blocks once the new filter is in place.
+                            awaitingFreshFilter.add(item.hash);
+                        } else if (scheduler != null) {
+                            scheduledBlocks.add(item.hash);
+                            scheduleFilteredBlocks = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                        } else if (!pendingBlockDownloads.contains(item.hash)) {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
@@ -1290,6 +1411,9 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        if (!scheduledBlocks.isEmpty())
+            scheduler.announced(this, scheduledBlocks, scheduleFilteredBlocks);
+
         if (!getdata.getItems().isEmpty()) {
             // This will cause us to receive a bunch of block or tx messages.
             sendMessage(getdata);
@@ -1666,6 +1790,26 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /** Sets the scheduler announced blocks are downloaded through, or null to download them from this peer alone. */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
+    }
+
+    /**
+     * Adds a block the scheduler downloaded for this peer to the chain, as if this peer had received it. Blocks are
+     * passed in the order they were announced in.
+     */
+    void addScheduledBlock(Block block, @Nullable FilteredBlock filteredBlock) {
+        if (blockChain == null || !vDownloadData) {
+            log.debug("{}: Dropping downloaded block {}, no longer downloading", getAddress(), block.getHash());
+            return;
+        }
+        if (filteredBlock != null)
+            addDownloadedFilteredBlock(filteredBlock);
+        else
+            addDownloadedBlock(block);
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
         return vPeerVersionMessage;
@@ -1753,6 +1897,9 @@ public class Peer extends PeerSocketHandler {
             if (!vDownloadData) {
                 // This branch should be harmless but I want to know how often it happens in reality.
                 log.warn("Lost download peer status whilst awaiting fresh filter.");
+                BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                if (scheduler != null)
+                    scheduler.filterReplaced(this);
                 return;
             }
             // Ping/pong to wait for blocks that are still being streamed to us to finish being downloaded and
@@ -1774,6 +1921,10 @@ public class Peer extends PeerSocketHandler {
                     // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
                     // able to match txns with the merkleblock. Ask Matt why it's written this way.
                     sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                    // Blocks requested from now on are filtered with the new filter.
+                    BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                    if (scheduler != null)
+                        scheduler.filterReplaced(Peer.this);
                 }
             }, Threading.SAME_THREAD);
         } finally {
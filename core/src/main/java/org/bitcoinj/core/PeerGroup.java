@@ -153,6 +153,12 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean headersFirstSync;
+    @Nullable @GuardedBy("lock") private CheckpointManager headersFirstSyncCheckpoints;
+    @Nullable @GuardedBy("lock") private HeadersFirstSync headerSync;
+    @GuardedBy("lock") private boolean headerSyncDone;
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler blockDownloadScheduler;
+    @Nullable @GuardedBy("lock") private ScheduledFuture<?> blockDownloadStallChecks;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
@@ -1513,6 +1519,12 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (headerSync != null)
+                headerSync.addPeer(peer);
+            if (blockDownloadScheduler != null) {
+                peer.setBlockDownloadScheduler(blockDownloadScheduler);
+                blockDownloadScheduler.addPeer(peer);
+            }
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1603,7 +1615,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (downloadListener != null) {
                     addDataEventListenerToPeer(Threading.SAME_THREAD, peer, downloadListener);
                 }
-                downloadPeer.setDownloadData(true);
+                // While headers are synced, nothing else is downloaded.
+                downloadPeer.setDownloadData(headerSync == null);
                 if (chain != null)
                     downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
             }
@@ -1651,6 +1664,26 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>If enabled, the block chain download starts by syncing the headers before the fast catchup time from all
+     * connected peers at once, rather than from the download peer alone. The headers are split into ranges at the
+     * given checkpoints, which are requested from different peers, checked off the network thread and added to the
+     * chain in large batches. Without checkpoints, headers are still fetched while the previous ones are added.
+     * Afterwards, the download continues from the download peer as usual.</p>
+     *
+     * <p>Only supported when not fully verifying. Call this before starting block chain download.</p>
+     */
+    public void setHeadersFirstSync(boolean enabled, @Nullable CheckpointManager checkpoints) {
+        lock.lock();
+        try {
+            checkState(chain == null || !chain.shouldVerifyTransactions(), "Headers first sync is incompatible with fully verifying");
+            headersFirstSync = enabled;
+            headersFirstSyncCheckpoints = checkpoints;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     protected void handlePeerDeath(final Peer peer, @Nullable Throwable exception) {
         // Peer deaths can occur during startup if a connect attempt after peer discovery aborts immediately.
         if (!isRunning()) return;
@@ -1661,6 +1694,10 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             pendingPeers.remove(peer);
             peers.remove(peer);
+            if (headerSync != null)
+                headerSync.removePeer(peer);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1882,6 +1919,12 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (headerSync != null)
+                return;  // The download starts once the headers are synced.
+            if (headersFirstSync && !headerSyncDone && chain != null) {
+                startHeadersFirstSync();
+                return;
+            }
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1889,6 +1932,93 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>If set to more than zero, the blocks the download peer is told about during block chain download are
+     * requested from all connected peers at once rather than from the download peer alone, keeping up to the given
+     * number of blocks requested or waiting to be added to the chain at a time. Requests which a peer doesn't answer
+     * in time are given to another peer, and blocks are added to the chain in order, whichever peer they came from.
+     * This applies to full blocks and filtered blocks alike.</p>
+     *
+     * <p>Zero, the default, downloads blocks from the download peer alone. Call this before starting block chain
+     * download.</p>
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight >= 0, "maxBlocksInFlight must not be negative");
+        lock.lock();
+        try {
+            if (blockDownloadStallChecks != null)
+                blockDownloadStallChecks.cancel(false);
+            blockDownloadStallChecks = null;
+            final BlockDownloadScheduler scheduler = maxBlocksInFlight > 0
+                    ? new BlockDownloadScheduler(params, maxBlocksInFlight) : null;
+            blockDownloadScheduler = scheduler;
+            for (Peer peer : peers) {
+                peer.setBlockDownloadScheduler(scheduler);
+                if (scheduler != null)
+                    scheduler.addPeer(peer);
+            }
+            if (scheduler != null) {
+                blockDownloadStallChecks = executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduler.checkStalls();
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks downloaded at a time from all peers, or zero. See {@link #setMaxBlocksInFlight(int)}. */
+    public int getMaxBlocksInFlight() {
+        lock.lock();
+        try {
+            return blockDownloadScheduler != null ? blockDownloadScheduler.getMaxBlocksInFlight() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startHeadersFirstSync() {
+        final HeadersFirstSync sync = new HeadersFirstSync(params, chain, headersFirstSyncCheckpoints,
+                fastCatchupTimeSecs, executor);
+        headerSync = sync;
+        if (downloadPeer != null)
+            downloadPeer.setDownloadData(false);
+        final ScheduledFuture<?> timeouts = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sync.checkTimeouts();
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+        Futures.addCallback(sync.getFuture(), new FutureCallback<StoredBlock>() {
+            @Override
+            public void onSuccess(StoredBlock head) {
+                timeouts.cancel(false);
+                lock.lock();
+                try {
+                    log.info("Synced headers up to height {}, continuing with the download peer", head.getHeight());
+                    headerSync = null;
+                    headerSyncDone = true;
+                    if (downloadPeer == null)
+                        setDownloadPeer(selectDownloadPeer(peers));
+                    if (downloadPeer != null && downloadListener != null)
+                        startBlockChainDownloadFromPeer(downloadPeer);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                throw new RuntimeException(throwable);  // Never happens.
+            }
+        }, executor);
+        sync.start(peers);
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link PeerGroup#getMaxConnections()} you can wait until the
@@ -33,6 +33,7 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -45,6 +46,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
     private final MessageSerializer serializer;
+    private final long packetMagic;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -53,7 +55,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. Once complete,
+    // that buffer becomes the payload of the deserialized message without being copied again.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
@@ -63,12 +66,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
         serializer = params.getDefaultSerializer();
+        packetMagic = params.getPacketMagic();
         this.peerAddress = new PeerAddress(params, remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
         checkNotNull(params);
         serializer = params.getDefaultSerializer();
+        packetMagic = params.getPacketMagic();
         this.peerAddress = checkNotNull(peerAddress);
     }
 
@@ -78,6 +83,29 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
+        try {
+            byte[] bytes = serializeForSending(message);
+            writeTarget.writeBytes(bytes);
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Like {@link #sendMessage(Message)}, but if the outbound buffer of the connection is full, waits up to the given
+     * timeout for the peer to catch up before giving up on the connection. Don't call this while holding locks which
+     * other threads need, such as those of the wallet or peer group.
+     */
+    public void sendMessage(Message message, long timeout, TimeUnit unit) throws NotYetConnectedException {
+        try {
+            byte[] bytes = serializeForSending(message);
+            writeTarget.writeBytes(bytes, timeout, unit);
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    private byte[] serializeForSending(Message message) throws NotYetConnectedException, IOException {
         lock.lock();
         try {
             if (writeTarget == null)
@@ -87,12 +115,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
         // TODO: Some round-tripping could be avoided here
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
-        } catch (IOException e) {
-            exceptionCaught(e);
-        }
+        serializer.serialize(message, out);
+        return out.toByteArray();
     }
 
     /**
@@ -140,8 +164,12 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        // ...processing a message if one is available. The buffer is ours, so it can be handed over
+                        // instead of being copied again.
+                        if (serializer instanceof BitcoinSerializer)
+                            processMessage(((BitcoinSerializer) serializer).deserializeOwnedPayload(header, largeReadBuffer));
+                        else
+                            processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
@@ -151,34 +179,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 // Now try to deserialize any messages left in buff
                 Message message;
                 int preSerializePosition = buff.position();
+                // Most reads end part way through a message, so check for that up front rather than by having
+                // deserialization throw.
+                if (isIncompleteMessage(buff))
+                    return handleIncompleteMessage(buff, firstMessage, preSerializePosition);
                 try {
                     message = serializer.deserialize(buff);
                 } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
-                    if (firstMessage && buff.limit() == buff.capacity()) {
-                        // ...so reposition the buffer to 0 and read the next message header
-                        buff.position(0);
-                        try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
-                        } catch (BufferUnderflowException e1) {
-                            // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
-                            // that we use to deserialize the magic+header, but that is rather complicated when the buff
-                            // should probably be at least that big anyway (for efficiency)
-                            throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
-                        }
-                    } else {
-                        // Reposition the buffer to its original position, which saves us from skipping messages by
-                        // seeking past part of the magic bytes before all of them are in the buffer
-                        buff.position(preSerializePosition);
-                    }
-                    return buff.position();
+                    return handleIncompleteMessage(buff, firstMessage, preSerializePosition);
                 }
                 // Process our freshly deserialized message
                 processMessage(message);
@@ -190,6 +198,61 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Returns true if buff starts with the header of a message whose payload isn't completely in buff yet. Buffers that
+     * don't start with the magic bytes are left for the serializer to deal with.
+     */
+    private boolean isIncompleteMessage(ByteBuffer buff) {
+        int start = buff.position();
+        if (buff.remaining() < 4)
+            return false;
+        for (int i = 0; i < 4; i++)
+            if (buff.get(start + i) != (byte) (packetMagic >>> ((3 - i) * 8)))
+                return false;
+        if (buff.remaining() < 4 + BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH)
+            return true;
+        int sizeOffset = start + 4 + BitcoinSerializer.COMMAND_LEN;
+        long size = (buff.get(sizeOffset) & 0xFFL) | ((buff.get(sizeOffset + 1) & 0xFFL) << 8) |
+                ((buff.get(sizeOffset + 2) & 0xFFL) << 16) | ((buff.get(sizeOffset + 3) & 0xFFL) << 24);
+        // Let the serializer reject an oversized message as soon as its header is in, rather than waiting for it.
+        if (size > Message.MAX_SIZE)
+            return false;
+        return buff.remaining() < 4 + BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + size;
+    }
+
+    /**
+     * Deals with a message that isn't completely in buff, starting a largeReadBuffer for it if it can never fit.
+     * Returns the number of bytes of buff that were consumed.
+     */
+    private int handleIncompleteMessage(ByteBuffer buff, boolean firstMessage, int preSerializePosition)
+            throws ProtocolException, IOException {
+        // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
+        if (firstMessage && buff.limit() == buff.capacity()) {
+            // ...so reposition the buffer to 0 and read the next message header
+            buff.position(0);
+            try {
+                serializer.seekPastMagicBytes(buff);
+                header = serializer.deserializeHeader(buff);
+                // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
+                // left in buff
+                largeReadBuffer = new byte[header.size];
+                largeReadBufferPos = buff.remaining();
+                buff.get(largeReadBuffer, 0, largeReadBufferPos);
+            } catch (BufferUnderflowException e1) {
+                // If we went through a whole buffer's worth of bytes without getting a header, give up
+                // In cases where the buff is just really small, we could create a second largeReadBuffer
+                // that we use to deserialize the magic+header, but that is rather complicated when the buff
+                // should probably be at least that big anyway (for efficiency)
+                throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
+            }
+        } else {
+            // Reposition the buffer to its original position, which saves us from skipping messages by
+            // seeking past part of the magic bytes before all of them are in the buffer
+            buff.position(preSerializePosition);
+        }
+        return buff.position();
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A long lived, work-stealing pool that runs transaction scripts on behalf of a {@link FullPrunedBlockChain}. Work
+ * is grouped into {@link Batch}es, one per block: transactions are queued as they are connected and handed to the
+ * pool in jobs of roughly {@link #getInputsPerJob()} inputs, so that blocks of many small transactions don't pay a
+ * scheduling cost per transaction and large transactions don't serialize the whole block behind them.</p>
+ *
+ * <p>The first script that fails to verify cancels the rest of its batch, and {@link Batch#await()} returns as soon
+ * as that happens rather than waiting for the other jobs to drain. A failure never shuts down the pool, so one engine
+ * can serve a chain for its whole lifetime and be shared between several chains.</p>
+ *
+ * <p>Simple counters of how much work was done and how long blocks took to verify are kept so that callers can
+ * monitor the cost of script checking.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** The default number of inputs that are verified together by a single job. */
+    public static final int DEFAULT_INPUTS_PER_JOB = 32;
+
+    private final ForkJoinPool pool;
+    private final int inputsPerJob;
+
+    private final AtomicLong batchesVerified = new AtomicLong();
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong totalVerificationNanos = new AtomicLong();
+    private volatile long lastBatchNanos;
+    private volatile int lastBatchInputs;
+
+    /** Creates an engine with one thread per available processor. */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_INPUTS_PER_JOB);
+    }
+
+    /**
+     * Creates an engine.
+     * @param parallelism number of threads that verify scripts
+     * @param inputsPerJob number of inputs that are verified together by a single job, across transactions
+     */
+    public ScriptVerificationEngine(int parallelism, int inputsPerJob) {
+        checkArgument(parallelism > 0);
+        checkArgument(inputsPerJob > 0);
+        this.inputsPerJob = inputsPerJob;
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Script verification " + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, Threading.uncaughtExceptionHandler, false);
+    }
+
+    /**
+     * Starts a new batch of work, usually covering the transactions of one block. Jobs of the batch run with the
+     * {@link Context} of the calling thread.
+     */
+    public Batch newBatch() {
+        checkState(!pool.isShutdown(), "Engine has been shut down");
+        return new Batch(Context.get());
+    }
+
+    /** Stops the threads of this engine. Batches that are still running are not waited for. */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getInputsPerJob() {
+        return inputsPerJob;
+    }
+
+    /** Returns the number of batches (usually blocks) that have been verified successfully. */
+    public long getBatchesVerified() {
+        return batchesVerified.get();
+    }
+
+    /** Returns the number of inputs that have been verified as part of successful batches. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the total time spent verifying successful batches, measured from their creation until completion. */
+    public long getTotalVerificationTime(TimeUnit unit) {
+        return unit.convert(totalVerificationNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns how long the most recent successful batch took to verify. */
+    public long getLastBatchVerificationTime(TimeUnit unit) {
+        return unit.convert(lastBatchNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the number of inputs of the most recent successful batch. */
+    public int getLastBatchInputs() {
+        return lastBatchInputs;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptVerificationEngine{parallelism=" + getParallelism() + ", batches=" + getBatchesVerified()
+                + ", inputs=" + getInputsVerified() + ", totalMillis=" + getTotalVerificationTime(TimeUnit.MILLISECONDS)
+                + "}";
+    }
+
+    /**
+     * The script checks of a single block. Transactions are added with {@link #add(Transaction, List, Set)} and the
+     * result is collected with {@link #await()}. A batch is used from a single thread.
+     */
+    public class Batch {
+        private final Context context;
+        private final long startNanos = System.nanoTime();
+        private List<Transaction> queuedTxns = new ArrayList<>();
+        private List<List<Script>> queuedScripts = new ArrayList<>();
+        private List<Set<VerifyFlag>> queuedFlags = new ArrayList<>();
+        private int queuedInputs;
+        private int totalInputs;
+
+        // Guarded by this.
+        private int pendingJobs;
+        @Nullable private VerificationException failure;
+        // Read by jobs without holding the monitor, so they can stop early.
+        private volatile boolean cancelled;
+
+        private Batch(Context context) {
+            this.context = context;
+        }
+
+        /**
+         * Queues the scripts of the given transaction for verification. The transaction is read from the verifying
+         * threads, so this must only be called once the caller is done modifying it.
+         * @param prevOutScripts the scripts of the outputs spent by each input, in input order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(!cancelled, "Batch was cancelled");
+            queuedTxns.add(tx);
+            queuedScripts.add(prevOutScripts);
+            queuedFlags.add(verifyFlags);
+            queuedInputs += tx.getInputs().size();
+            if (queuedInputs >= inputsPerJob)
+                flush();
+        }
+
+        private void flush() {
+            if (queuedTxns.isEmpty())
+                return;
+            final Job job = new Job(queuedTxns, queuedScripts, queuedFlags);
+            totalInputs += queuedInputs;
+            queuedTxns = new ArrayList<>();
+            queuedScripts = new ArrayList<>();
+            queuedFlags = new ArrayList<>();
+            queuedInputs = 0;
+            synchronized (this) {
+                pendingJobs++;
+            }
+            pool.execute(job);
+        }
+
+        /**
+         * Waits until all queued scripts have been verified, or until one of them failed.
+         * @throws VerificationException the first verification failure of this batch
+         */
+        public void await() throws VerificationException {
+            flush();
+            synchronized (this) {
+                try {
+                    while (pendingJobs > 0 && failure == null)
+                        wait();
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                    throw new RuntimeException(e); // Shouldn't happen
+                }
+                if (failure != null) {
+                    cancelled = true;
+                    throw failure;
+                }
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            lastBatchNanos = elapsed;
+            lastBatchInputs = totalInputs;
+            batchesVerified.incrementAndGet();
+            inputsVerified.addAndGet(totalInputs);
+            totalVerificationNanos.addAndGet(elapsed);
+            if (log.isDebugEnabled())
+                log.debug("Verified {} inputs in {} ms", totalInputs, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+
+        /** Abandons this batch: jobs that haven't run yet will do nothing. Used when the block failed otherwise. */
+        public void cancel() {
+            cancelled = true;
+            queuedTxns.clear();
+            queuedScripts.clear();
+            queuedFlags.clear();
+            queuedInputs = 0;
+        }
+
+        private synchronized void jobDone(@Nullable VerificationException e) {
+            pendingJobs--;
+            if (e != null && failure == null)
+                failure = e;
+            notifyAll();
+        }
+
+        private class Job implements Runnable {
+            private final List<Transaction> txns;
+            private final List<List<Script>> prevOutScripts;
+            private final List<Set<VerifyFlag>> verifyFlags;
+
+            private Job(List<Transaction> txns, List<List<Script>> prevOutScripts, List<Set<VerifyFlag>> verifyFlags) {
+                this.txns = txns;
+                this.prevOutScripts = prevOutScripts;
+                this.verifyFlags = verifyFlags;
+            }
+
+            @Override
+            public void run() {
+                VerificationException result = null;
+                try {
+                    Context.propagate(context);
+                    for (int i = 0; i < txns.size() && !cancelled; i++) {
+                        Transaction tx = txns.get(i);
+                        List<Script> scripts = prevOutScripts.get(i);
+                        Set<VerifyFlag> flags = verifyFlags.get(i);
+                        SigHashCache sigHashes = new SigHashCache(tx);
+                        for (int index = 0; index < tx.getInputs().size(); index++) {
+                            if (cancelled)
+                                break;
+                            tx.getInputs().get(index).getScriptSig().correctlySpends(sigHashes, index, scripts.get(index), flags);
+                        }
+                    }
+                } catch (VerificationException e) {
+                    result = e;
+                } catch (Throwable t) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + t);
+                    result = new VerificationException(
+                            "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", t);
+                }
+                jobDone(result);
+            }
+        }
+    }
+}
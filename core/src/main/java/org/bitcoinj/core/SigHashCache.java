@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Calculates the signature hashes of the inputs of one transaction, reusing the work that is common to all of them.
+ * Calculating the signature hash of an input from scratch means serializing the whole transaction, so doing that for
+ * every input makes signing or verifying a transaction with many inputs quadratic in cost. This class serializes the
+ * parts of the signed form that don't depend on the input being signed once: the outpoints and sequence numbers of
+ * all inputs and the outputs. Each signature hash is then streamed straight into the hash function from those bytes.
+ * The state of the hash function after the inputs preceding the one being signed is kept as well, so that when inputs
+ * are processed in order, as signers and script verification do, that shared prefix is hashed only once.</p>
+ *
+ * <p>Signature hashes of segwit inputs, as defined by BIP143, are calculated with
+ * {@link #hashForWitnessSignature(int, byte[], Coin, byte)}. They commit to the hashes of all outpoints, all sequence
+ * numbers and all outputs instead of the data itself, and those hashes are calculated only once per transaction.</p>
+ *
+ * <p>The cache reflects the transaction at the time it was created. It must not be used anymore after the version, lock
+ * time, outputs, or the outpoints or sequence numbers of the inputs have changed. Input scripts are not part of the
+ * cache, so signing inputs one by one doesn't invalidate it.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+public class SigHashCache {
+    // Outpoint, empty script and sequence number.
+    private static final int INPUT_LENGTH = 36 + 1 + 4;
+    // Value of -1 and an empty script.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] ZERO_HASH = new byte[32];
+    // Returned for SIGHASH_SINGLE without a matching output, to be consistent with Bitcoin Core.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final Transaction tx;
+    private final int numInputs;
+    private final byte[] version = new byte[4];
+    private final byte[] lockTime = new byte[4];
+    private final byte[] header;
+    private final byte[] inputs;
+    @Nullable private byte[] inputsWithZeroSequences;
+    // The output count followed by all outputs.
+    @Nullable private byte[] outputs;
+    private int outputCountLength;
+    @Nullable private byte[][] singleOutputs;
+    // The double SHA-256 hashes shared by all BIP143 signature hashes.
+    @Nullable private byte[] hashPrevouts, hashSequence, hashOutputs;
+
+    // Hash function states after the header and the first midstateInputs[i] inputs, for real (0) and zeroed (1)
+    // sequence numbers.
+    private final MessageDigest[] midstates = new MessageDigest[2];
+    private final int[] midstateInputs = new int[2];
+
+    public SigHashCache(Transaction tx) {
+        this.tx = tx;
+        List<TransactionInput> txInputs = tx.getInputs();
+        this.numInputs = txInputs.size();
+        Utils.uint32ToByteArrayLE(tx.getVersion(), version, 0);
+        Utils.uint32ToByteArrayLE(tx.getLockTime(), lockTime, 0);
+        byte[] inputCount = new VarInt(numInputs).encode();
+        header = new byte[version.length + inputCount.length];
+        System.arraycopy(version, 0, header, 0, version.length);
+        System.arraycopy(inputCount, 0, header, version.length, inputCount.length);
+        inputs = new byte[numInputs * INPUT_LENGTH];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = txInputs.get(i);
+            int offset = i * INPUT_LENGTH;
+            System.arraycopy(input.getOutpoint().bitcoinSerialize(), 0, inputs, offset, 36);
+            inputs[offset + 36] = 0;
+            Utils.uint32ToByteArrayLE(input.getSequenceNumber(), inputs, offset + 37);
+        }
+    }
+
+    /** Returns the transaction this cache was created for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Calculates the same signature hash as {@link Transaction#hashForSignature(int, byte[], SigHash, boolean)}.
+     * @param inputIndex input the signature is being calculated for
+     * @param redeemScript the bytes that should be in the given input during signing
+     * @param type Should be SigHash.ALL
+     * @param anyoneCanPay should be false
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] redeemScript, SigHash type, boolean anyoneCanPay) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+        return hashForSignature(inputIndex, redeemScript, sigHashType);
+    }
+
+    /**
+     * Calculates the same signature hash as {@link Transaction#hashForSignature(int, byte[], byte)}.
+     * @param inputIndex input the signature is being calculated for
+     * @param connectedScript the script that should be in the given input during signing
+     * @param sigHashType the sighash type, including the anyone can pay flag
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, numInputs, "inputIndex");
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        int numOutputs = tx.getOutputs().size();
+        if (mode == SigHash.SINGLE.value && inputIndex >= numOutputs)
+            return SIGHASH_SINGLE_BUG;
+        // See Transaction.hashForSignature for why this is done.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        // SIGHASH_NONE and SIGHASH_SINGLE don't commit to the sequence numbers of the other inputs.
+        boolean zeroSequences = mode == SigHash.NONE.value || mode == SigHash.SINGLE.value;
+
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            digest = Sha256Hash.newDigest();
+            digest.update(version);
+            digest.update((byte) 1);
+            updateWithInput(digest, inputIndex, connectedScript);
+        } else {
+            byte[] inputs = zeroSequences ? getInputsWithZeroSequences() : this.inputs;
+            digest = prefix(zeroSequences, inputIndex);
+            updateWithInput(digest, inputIndex, connectedScript);
+            int next = (inputIndex + 1) * INPUT_LENGTH;
+            digest.update(inputs, next, inputs.length - next);
+        }
+
+        if (mode == SigHash.NONE.value) {
+            digest.update((byte) 0);
+        } else if (mode == SigHash.SINGLE.value) {
+            // Only the output at the same index is signed, the ones before it are "nulled out".
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(getSingleOutput(inputIndex));
+        } else {
+            digest.update(getOutputs());
+        }
+        digest.update(lockTime);
+        byte[] type = new byte[4];
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    /**
+     * Calculates the same signature hash as
+     * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, SigHash, boolean)}.
+     * @param inputIndex input the signature is being calculated for
+     * @param scriptCode the script code of the input, as defined by BIP143
+     * @param prevValue the value of the output spent by the input
+     * @param type Should be SigHash.ALL
+     * @param anyoneCanPay should be false
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue, SigHash type,
+                                              boolean anyoneCanPay) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+        return hashForWitnessSignature(inputIndex, scriptCode, prevValue, sigHashType);
+    }
+
+    /**
+     * <p>Calculates a signature hash for a segwit version 0 input, as defined by
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a>. The hashes of all
+     * outpoints, all sequence numbers and all outputs are calculated once and shared by all inputs, so each signature
+     * hash costs a constant amount of hashing regardless of the size of the transaction.</p>
+     *
+     * @param inputIndex input the signature is being calculated for
+     * @param scriptCode the script code of the input, as defined by BIP143
+     * @param prevValue the value of the output spent by the input
+     * @param sigHashType the sighash type, including the anyone can pay flag
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue, byte sigHashType) {
+        checkElementIndex(inputIndex, numInputs, "inputIndex");
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean signsAllOutputs = mode != SigHash.SINGLE.value && mode != SigHash.NONE.value;
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(version);
+        digest.update(anyoneCanPay ? ZERO_HASH : getHashPrevouts());
+        digest.update(!anyoneCanPay && signsAllOutputs ? getHashSequence() : ZERO_HASH);
+        int offset = inputIndex * INPUT_LENGTH;
+        digest.update(inputs, offset, 36);
+        digest.update(new VarInt(scriptCode.length).encode());
+        digest.update(scriptCode);
+        byte[] value = new byte[8];
+        Utils.int64ToByteArrayLE(prevValue.value, value, 0);
+        digest.update(value);
+        digest.update(inputs, offset + 37, 4);
+        if (signsAllOutputs)
+            digest.update(getHashOutputs());
+        else if (mode == SigHash.SINGLE.value && inputIndex < tx.getOutputs().size())
+            digest.update(Sha256Hash.hashTwice(getSingleOutput(inputIndex)));
+        else
+            digest.update(ZERO_HASH);
+        digest.update(lockTime);
+        byte[] type = new byte[4];
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    private byte[] getHashPrevouts() {
+        if (hashPrevouts == null) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            for (int i = 0; i < numInputs; i++)
+                digest.update(inputs, i * INPUT_LENGTH, 36);
+            hashPrevouts = Sha256Hash.hash(digest.digest());
+        }
+        return hashPrevouts;
+    }
+
+    private byte[] getHashSequence() {
+        if (hashSequence == null) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            for (int i = 0; i < numInputs; i++)
+                digest.update(inputs, i * INPUT_LENGTH + 37, 4);
+            hashSequence = Sha256Hash.hash(digest.digest());
+        }
+        return hashSequence;
+    }
+
+    private byte[] getHashOutputs() {
+        if (hashOutputs == null) {
+            byte[] outputs = getOutputs();
+            hashOutputs = Sha256Hash.hashTwice(outputs, outputCountLength, outputs.length - outputCountLength);
+        }
+        return hashOutputs;
+    }
+
+    private void updateWithInput(MessageDigest digest, int inputIndex, byte[] script) {
+        int offset = inputIndex * INPUT_LENGTH;
+        digest.update(inputs, offset, 36);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        // The signed input always keeps its own sequence number.
+        digest.update(inputs, offset + 37, 4);
+    }
+
+    private MessageDigest prefix(boolean zeroSequences, int inputIndex) {
+        int k = zeroSequences ? 1 : 0;
+        byte[] inputs = zeroSequences ? getInputsWithZeroSequences() : this.inputs;
+        MessageDigest midstate = midstates[k];
+        if (midstate == null || midstateInputs[k] > inputIndex) {
+            midstate = Sha256Hash.newDigest();
+            midstate.update(header);
+            midstates[k] = midstate;
+            midstateInputs[k] = 0;
+        }
+        midstate.update(inputs, midstateInputs[k] * INPUT_LENGTH, (inputIndex - midstateInputs[k]) * INPUT_LENGTH);
+        midstateInputs[k] = inputIndex;
+        try {
+            return (MessageDigest) midstate.clone();
+        } catch (CloneNotSupportedException e) {
+            // Not the case for the JDK's SHA-256, but the provider can be swapped. Hash the prefix again instead.
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(header);
+            digest.update(inputs, 0, inputIndex * INPUT_LENGTH);
+            return digest;
+        }
+    }
+
+    private byte[] getInputsWithZeroSequences() {
+        if (inputsWithZeroSequences == null) {
+            inputsWithZeroSequences = inputs.clone();
+            for (int i = 0; i < numInputs; i++)
+                Utils.uint32ToByteArrayLE(0, inputsWithZeroSequences, i * INPUT_LENGTH + 37);
+        }
+        return inputsWithZeroSequences;
+    }
+
+    private byte[] getOutputs() {
+        if (outputs == null) {
+            List<TransactionOutput> txOutputs = tx.getOutputs();
+            byte[][] serialized = new byte[txOutputs.size()][];
+            byte[] count = new VarInt(txOutputs.size()).encode();
+            int length = count.length;
+            for (int i = 0; i < serialized.length; i++) {
+                serialized[i] = txOutputs.get(i).bitcoinSerialize();
+                length += serialized[i].length;
+            }
+            outputs = new byte[length];
+            outputCountLength = count.length;
+            System.arraycopy(count, 0, outputs, 0, count.length);
+            int offset = count.length;
+            for (byte[] output : serialized) {
+                System.arraycopy(output, 0, outputs, offset, output.length);
+                offset += output.length;
+            }
+        }
+        return outputs;
+    }
+
+    private byte[] getSingleOutput(int index) {
+        if (singleOutputs == null)
+            singleOutputs = new byte[tx.getOutputs().size()][];
+        if (singleOutputs[index] == null)
+            singleOutputs[index] = tx.getOutput(index).bitcoinSerialize();
+        return singleOutputs[index];
+    }
+}
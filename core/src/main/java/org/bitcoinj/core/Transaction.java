@@ -1104,85 +1104,69 @@ public class Transaction extends ChildMessage {
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
+        //
+        // Signatures are calculated over a simplified form of the transaction: input scripts are cleared, except for
+        // the input being signed which is set to the script of its output. Bitcoin Core does this but the step has no
+        // obvious purpose as the signature covers the hash of the prevout transaction which obviously includes the
+        // output script already. Perhaps it felt safer to him in some way, or is another leftover from how the code
+        // was written.
+        //
+        // OP_CODESEPARATORs are removed from that script. This step has no purpose beyond being synchronized with
+        // Bitcoin Core's bugs. OP_CODESEPARATOR is a legacy holdover from a previous, broken design of executing
+        // scripts that shipped in Bitcoin 0.1. It was seriously flawed and would have let anyone take anyone elses
+        // money. Later versions switched to the design we use today where scripts are executed independently but
+        // share a stack. This left the OP_CODESEPARATOR instruction having no purpose as it was only meant to be used
+        // internally, not actually ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be
+        // required but if we don't do it, we could split off the main chain.
+        //
+        // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+        // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). The outputs
+        // before that position are "nulled out" and, unintuitively, the value in a "null" transaction is set to -1.
+        // In both modes the sequence numbers of the other inputs are set to zero, so the signature isn't broken by
+        // new versions of the transaction issued by other parties.
+        //
+        // If the input index is beyond the number of outputs with SIGHASH_SINGLE, it's a buggy signature made by a
+        // broken Bitcoin implementation. Bitcoin Core also contains a bug in handling this case: any transaction
+        // output that is signed in this case will result in both the signed output and any future outputs to this
+        // public key being steal-able by anyone who has the resulting signature and the public key (both of which
+        // are part of the signed tx input). Bitcoin Core's bug is that SignatureHash was supposed to return a hash
+        // and on this codepath it actually returns the constant "1" to indicate an error, which is never checked for.
+        //
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals of other
+        // inputs, so only the input being signed is included. For example, this is useful for building assurance
+        // contracts.
+        //
+        // When signing or verifying more than one input, use a SigHashCache directly so that the parts shared by all
+        // inputs are only serialized once.
+        return new SigHashCache(this).hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                tx.inputs.get(i).clearScriptBytes();
-            }
-
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<TransactionInput>();
-                tx.inputs.add(input);
-            }
+    /**
+     * <p>Calculates a signature hash for a segwit version 0 input, as defined by
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a>. Unlike legacy signature
+     * hashes, these commit to the value of the spent output.</p>
+     *
+     * <p>When signing or verifying more than one input, use a {@link SigHashCache} directly so that the hashes of the
+     * outpoints, sequence numbers and outputs are only calculated once.</p>
+     *
+     * @param inputIndex input the signature is being calculated for. Tx signatures are always relative to an input.
+     * @param scriptCode the script code of the input. For P2WPKH, this is the P2PKH script of the public key hash.
+     * @param prevValue the value of the output spent by the input.
+     * @param type Should be SigHash.ALL
+     * @param anyoneCanPay should be false.
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue,
+                                              SigHash type, boolean anyoneCanPay) {
+        return new SigHashCache(this).hashForWitnessSignature(inputIndex, scriptCode, prevValue, type, anyoneCanPay);
+    }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+    /**
+     * Same as {@link #hashForWitnessSignature(int, byte[], Coin, SigHash, boolean)}, taking the script code as a
+     * {@link Script}.
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, Script scriptCode, Coin prevValue,
+                                              SigHash type, boolean anyoneCanPay) {
+        return hashForWitnessSignature(inputIndex, scriptCode.getProgram(), prevValue, type, anyoneCanPay);
     }
 
     @Override
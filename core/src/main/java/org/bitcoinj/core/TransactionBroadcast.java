@@ -40,6 +40,9 @@ import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
 public class TransactionBroadcast {
     private static final Logger log = LoggerFactory.getLogger(TransactionBroadcast.class);
 
+    /** How long to wait for a peer with a full outbound buffer to catch up before giving up on sending it the tx. */
+    private static final long SEND_TIMEOUT_SECONDS = 10;
+
     private final SettableFuture<Transaction> future = SettableFuture.create();
     private final PeerGroup peerGroup;
     private final Transaction tx;
@@ -154,9 +157,11 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Broadcasts are started without holding the wallet or peer group locks, so rather than dropping a peer
+            // whose outbound buffer is momentarily full, give it a little time to catch up.
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(tx);
+                    peer.sendMessage(tx, SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
@@ -58,7 +58,8 @@ import static com.google.common.base.Preconditions.*;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * method to ensure the block depth is up to date, unless the depth is derived from the best chain height given to
+ * {@link TransactionConfidence#setChainHeightSource(ChainHeightSource)}.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -68,6 +69,25 @@ public class TransactionConfidence {
         }
     }
 
+    /**
+     * Supplies the height of the best chain, so that the depth of a building transaction can be derived from the
+     * height it appeared at instead of being incremented for every block. See
+     * {@link #setChainHeightSource(ChainHeightSource)}.
+     */
+    public interface ChainHeightSource {
+        /** Returns the height of the best chain block, which must be safe to call from any thread. */
+        int getBestChainHeight();
+
+        /**
+         * Called with the number of listeners of a confidence whose depth is derived from this source, whenever that
+         * changes and when the confidence starts using this source, or with zero when it stops. Nothing tells such a
+         * confidence that its depth changed, so whoever moves the best chain height on should queue
+         * {@link Listener.ChangeReason#DEPTH} events for the ones with listeners. Runs with the confidence locked.
+         */
+        default void onListenerCountChanged(TransactionConfidence confidence, int listenerCount) {
+        }
+    }
+
     /**
      * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use
      * IP address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect
@@ -83,6 +103,8 @@ public class TransactionConfidence {
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
+    // If set, the depth of a building transaction is derived from this and appearedAtChainHeight instead.
+    @Nullable private ChainHeightSource chainHeightSource;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -216,6 +238,7 @@ public class TransactionConfidence {
         checkNotNull(listener);
         listeners.addIfAbsent(new ListenerRegistration<>(listener, executor));
         pinnedConfidenceObjects.add(this);
+        listenersChanged();
     }
 
     /**
@@ -237,9 +260,15 @@ public class TransactionConfidence {
         boolean removed = ListenerRegistration.removeFromList(listener, listeners);
         if (listeners.isEmpty())
             pinnedConfidenceObjects.remove(this);
+        listenersChanged();
         return removed;
     }
 
+    private synchronized void listenersChanged() {
+        if (chainHeightSource != null)
+            chainHeightSource.onListenerCountChanged(this, listeners.size());
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -391,6 +420,8 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (chainHeightSource != null && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0)
+            return Math.max(1, chainHeightSource.getBestChainHeight() - appearedAtChainHeight + 1);
         return depth;
     }
 
@@ -401,6 +432,34 @@ public class TransactionConfidence {
         this.depth = depth;
     }
 
+    /**
+     * Derives the depth of this transaction from the given best chain height while it is BUILDING, so that it doesn't
+     * need to be incremented for every new block. If the height the transaction appeared at isn't known, it is
+     * worked out from the current depth. Passing null goes back to the stored depth, which is set to the depth
+     * derived last.
+     */
+    public synchronized void setChainHeightSource(@Nullable ChainHeightSource chainHeightSource) {
+        if (chainHeightSource == this.chainHeightSource)
+            return;
+        depth = getDepthInBlocks();
+        if (chainHeightSource != null && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight < 0
+                && depth > 0) {
+            int appearedAtChainHeight = chainHeightSource.getBestChainHeight() - depth + 1;
+            if (appearedAtChainHeight >= 0)
+                this.appearedAtChainHeight = appearedAtChainHeight;
+        }
+        if (this.chainHeightSource != null)
+            this.chainHeightSource.onListenerCountChanged(this, 0);
+        this.chainHeightSource = chainHeightSource;
+        listenersChanged();
+    }
+
+    /** Returns the source the depth is derived from, or null if the depth is stored. */
+    @Nullable
+    public synchronized ChainHeightSource getChainHeightSource() {
+        return chainHeightSource;
+    }
+
     /**
      * Erases the set of broadcast/seen peers. This cannot be called whilst the confidence is PENDING. It is useful
      * for saving memory and wallet space once a tx is buried so deep it doesn't seem likely to go pending again.
@@ -446,6 +505,7 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -458,12 +518,14 @@ public class TransactionConfidence {
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            // Listeners look at the current confidence, so a change for the same reason that is still waiting covers
+            // this one.
+            registration.executor.execute(ListenerDispatcher.coalescing(reason, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
                 }
-            });
+            }));
         }
     }
 
@@ -144,6 +144,9 @@ public class TransactionOutPoint extends ChildMessage {
         if (ScriptPattern.isPayToPubKeyHash(connectedScript)) {
             byte[] addressBytes = ScriptPattern.extractHashFromPayToPubKeyHash(connectedScript);
             return keyBag.findKeyFromPubHash(addressBytes);
+        } else if (ScriptPattern.isPayToWitnessPubKeyHash(connectedScript)) {
+            byte[] pubKeyHash = ScriptPattern.extractHashFromPayToWitnessHash(connectedScript);
+            return keyBag.findKeyFromPubHash(pubKeyHash);
         } else if (ScriptPattern.isPayToPubKey(connectedScript)) {
             byte[] pubkeyBytes = ScriptPattern.extractKeyFromPayToPubKey(connectedScript);
             return keyBag.findKeyFromPubKey(pubkeyBytes);
@@ -153,8 +156,8 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     /**
-     * Returns the RedeemData identified in the connected output, for either P2PKH scripts, P2PK
-     * or P2SH scripts.
+     * Returns the RedeemData identified in the connected output, for either P2PKH scripts, P2PK,
+     * P2WPKH or P2SH scripts.
      * If the script forms cannot be understood, throws ScriptException.
      *
      * @return a RedeemData or null if the connected data cannot be found in the wallet.
@@ -167,6 +170,9 @@ public class TransactionOutPoint extends ChildMessage {
         if (ScriptPattern.isPayToPubKeyHash(connectedScript)) {
             byte[] addressBytes = ScriptPattern.extractHashFromPayToPubKeyHash(connectedScript);
             return RedeemData.of(keyBag.findKeyFromPubHash(addressBytes), connectedScript);
+        } else if (ScriptPattern.isPayToWitnessPubKeyHash(connectedScript)) {
+            byte[] pubKeyHash = ScriptPattern.extractHashFromPayToWitnessHash(connectedScript);
+            return RedeemData.of(keyBag.findKeyFromPubHash(pubKeyHash), connectedScript);
         } else if (ScriptPattern.isPayToPubKey(connectedScript)) {
             byte[] pubkeyBytes = ScriptPattern.extractKeyFromPayToPubKey(connectedScript);
             return RedeemData.of(keyBag.findKeyFromPubKey(pubkeyBytes), connectedScript);
@@ -21,8 +21,10 @@ import org.bitcoinj.utils.*;
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,10 +37,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every inv from every peer goes through this table, so it is split into independently locked segments by
+ * transaction hash. Each segment holds an equal share of the maximum size and evicts its oldest entries on its own,
+ * which approximates evicting the oldest entries of the whole table. The counters returned by {@link #size()},
+ * {@link #getEvictedCount()}, {@link #getCollectedCount()} and {@link #getContendedCount()} help with choosing the
+ * size and the number of segments.</p>
  */
 public class TxConfidenceTable {
-    protected ReentrantLock lock = Threading.lock("txconfidencetable");
-
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
         public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
@@ -46,7 +52,48 @@ public class TxConfidenceTable {
             hash = confidence.getTransactionHash();
         }
     }
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+    /** A part of the table, holding the hashes that map to it. Entries beyond its share of the size are evicted. */
+    private class Segment {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+        private Segment(final int size) {
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the
+                    // event of some kind of DoS attack.
+                    if (size() <= size)
+                        return false;
+                    evicted.incrementAndGet();
+                    return true;
+                }
+            };
+        }
+
+        private void lock() {
+            if (!lock.tryLock()) {
+                contended.incrementAndGet();
+                lock.lock();
+            }
+        }
+
+        /** Removes the entry of the hash, but only if it still holds the given reference. */
+        private void remove(Sha256Hash hash, WeakConfidenceReference reference) {
+            lock();
+            try {
+                if (table.get(hash) == reference) {
+                    table.remove(hash);
+                    collected.incrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final Segment[] segments;
     private final TransactionConfidence.Factory confidenceFactory;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
@@ -54,29 +101,53 @@ public class TxConfidenceTable {
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
+
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** The number of segments of a table, unless that would make the segments smaller than {@link #MIN_SEGMENT_SIZE}. */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /** The smallest share of the size a segment is given, so that small tables evict in roughly global order. */
+    public static final int MIN_SEGMENT_SIZE = 32;
+
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        this(size, new TransactionConfidence.Factory());
+        this(size, DEFAULT_CONCURRENCY_LEVEL);
     }
 
-    TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory){
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+    /**
+     * Creates a table that will track at most the given number of transactions, split into the given number of
+     * segments that can be used concurrently.
+     * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
+     * @param concurrencyLevel Number of segments, which is rounded down to a power of two and reduced so that each
+     *                         segment can hold at least {@link #MIN_SEGMENT_SIZE} transactions.
+     */
+    public TxConfidenceTable(final int size, final int concurrencyLevel) {
+        this(size, concurrencyLevel, new TransactionConfidence.Factory());
+    }
+
+    TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory) {
+        this(size, DEFAULT_CONCURRENCY_LEVEL, confidenceFactory);
+    }
+
+    TxConfidenceTable(final int size, final int concurrencyLevel, TransactionConfidence.Factory confidenceFactory) {
+        checkArgument(size > 0);
+        checkArgument(concurrencyLevel > 0);
+        int numSegments = Integer.highestOneBit(Math.max(1, Math.min(concurrencyLevel, size / MIN_SEGMENT_SIZE)));
+        segments = new Segment[numSegments];
+        // Share the size out exactly, so the table never holds more than it was asked to.
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = new Segment(size / numSegments + (i < size % numSegments ? 1 : 0));
         referenceQueue = new ReferenceQueue<>();
         this.confidenceFactory = confidenceFactory;
     }
@@ -89,6 +160,13 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private Segment segmentFor(Sha256Hash hash) {
+        int h = hash.hashCode();
+        // Sha256Hash takes its hash code from the hash bytes, but spread it anyway in case that changes.
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -96,17 +174,13 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed. The hash may
+            // have been tracked again since, so only remove the entry if it is still the collected one.
+            segmentFor(txRef.hash).remove(txRef.hash, txRef);
         }
     }
 
@@ -114,25 +188,9 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
-            } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+        cleanTable();
+        TransactionConfidence confidence = get(txHash);
+        return confidence == null ? 0 : confidence.numBroadcastPeers();
     }
 
     /**
@@ -142,17 +200,10 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        try {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        } finally {
-            lock.unlock();
-        }
-        if (fresh)
+        cleanTable();
+        TransactionConfidence confidence = getOrCreate(hash);
+        // The confidence is thread safe, so it doesn't need to be marked with the segment locked.
+        if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
@@ -163,19 +214,20 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
+            WeakConfidenceReference reference = segment.table.get(hash);
             if (reference != null) {
                 TransactionConfidence confidence = reference.get();
                 if (confidence != null)
                     return confidence;
             }
             TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            segment.table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
             return newConfidence;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -185,9 +237,10 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = segment.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
@@ -196,7 +249,47 @@ public class TxConfidenceTable {
             else
                 return null;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /** Returns the number of hashes that are currently tracked, including ones whose confidence was just collected. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                size += segment.table.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return size;
+    }
+
+    /** Returns the number of segments the table is split into. */
+    public int getConcurrencyLevel() {
+        return segments.length;
+    }
+
+    /** Returns how many entries were evicted because their segment was full. */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /** Returns how many entries were removed because nothing else referenced their confidence anymore. */
+    public long getCollectedCount() {
+        return collected.get();
+    }
+
+    /** Returns how many times a thread had to wait for another thread to finish with a segment. */
+    public long getContendedCount() {
+        return contended.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TxConfidenceTable{size=" + size() + ", segments=" + segments.length + ", evicted=" + getEvictedCount()
+                + ", collected=" + getCollectedCount() + ", contended=" + getContendedCount() + "}";
     }
 }
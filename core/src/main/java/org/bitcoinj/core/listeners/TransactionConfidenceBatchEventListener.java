@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.Set;
+
+/**
+ * <p>Implementors are called once per block with the transactions whose confidence changed, as an alternative to
+ * {@link TransactionConfidenceEventListener} for wallets with many transactions. See
+ * {@link Wallet#setPerBlockConfidenceEvents(boolean)}.</p>
+ */
+public interface TransactionConfidenceBatchEventListener {
+    /**
+     * <p>Called after the wallet has processed a new best chain block, or after a re-organize.</p>
+     *
+     * <p>Every building transaction is one block deeper than before, which is not reported individually: its depth
+     * follows from the given height and the height it appeared at. The given set contains the hashes of all
+     * transactions whose confidence changed otherwise since the last call, for example because they were included in
+     * this block, were re-organized or became dead.</p>
+     *
+     * @param bestChainHeight the height of the last block seen by the wallet
+     * @param changed         hashes of the transactions whose confidence changed other than by getting deeper
+     */
+    void onTransactionConfidencesChanged(Wallet wallet, int bestChainHeight, Set<Sha256Hash> changed);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.spongycastle.math.ec.ECAlgorithms;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>The pure Java counterpart of {@link org.bitcoin.NativeSecp256k1}, used by {@link ECKey} when libsecp256k1 isn't
+ * loaded. It builds on the secp256k1 arithmetic of Bouncy Castle, which already multiplies using the GLV
+ * endomorphism of the curve, and adds what Bouncy Castle leaves to the caller:</p>
+ *
+ * <ul>
+ *     <li>Verification computes u1*G + u2*Q in a single interleaved wNAF pass. The precomputed wNAF table of Q is
+ *     kept on the point, so verifying against a key whose point is held onto, e.g. the {@link LazyECPoint} of an
+ *     {@link ECKey} or a key from {@link #decodePublicKey(byte[])}, only pays for the table once.</li>
+ *     <li>Public keys given as bytes are decoded through a bounded cache, so that frequently used keys are neither
+ *     decompressed nor precomputed again.</li>
+ *     <li>The result is compared in Jacobian coordinates, which saves a field inversion per signature.</li>
+ * </ul>
+ *
+ * <p>Fixed-base multiplication by the generator, as needed for key derivation and signing, uses the comb table that
+ * ECKey precomputes for G.</p>
+ */
+public class JavaSecp256k1 {
+    /** The number of decoded public keys that are kept by {@link #decodePublicKey(byte[])}. */
+    public static final int PUBLIC_KEY_CACHE_SIZE = 1024;
+
+    private static final Map<ByteBuffer, ECPoint> publicKeys = new LinkedHashMap<ByteBuffer, ECPoint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPoint> eldest) {
+            return size() > PUBLIC_KEY_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Decodes the given public key, or returns the point it was decoded to before. The returned point accumulates
+     * the precomputation of the verifications it is used for, so it must not be modified.
+     *
+     * @throws IllegalArgumentException if the bytes don't encode a point on the curve
+     */
+    public static ECPoint decodePublicKey(byte[] pub) {
+        ByteBuffer key = ByteBuffer.wrap(pub);
+        synchronized (publicKeys) {
+            ECPoint point = publicKeys.get(key);
+            if (point != null)
+                return point;
+        }
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(pub);
+        synchronized (publicKeys) {
+            publicKeys.put(ByteBuffer.wrap(pub.clone()), point);
+        }
+        return point;
+    }
+
+    /** Forgets all public keys decoded by {@link #decodePublicKey(byte[])}. */
+    public static void clearPublicKeyCache() {
+        synchronized (publicKeys) {
+            publicKeys.clear();
+        }
+    }
+
+    /**
+     * Verifies an ECDSA signature, with the same result as Bouncy Castle's ECDSASigner.
+     *
+     * @param data hash of the signed data
+     * @param r    the R component of the signature
+     * @param s    the S component of the signature
+     * @param pub  the public key, e.g. from {@link #decodePublicKey(byte[])}
+     */
+    public static boolean verify(byte[] data, BigInteger r, BigInteger s, ECPoint pub) {
+        BigInteger n = ECKey.CURVE.getN();
+        if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+            return false;
+
+        BigInteger e = calculateE(n, data);
+        BigInteger w = s.modInverse(n);
+        BigInteger u1 = e.multiply(w).mod(n);
+        BigInteger u2 = r.multiply(w).mod(n);
+        ECPoint point = ECAlgorithms.sumOfTwoMultiplies(ECKey.CURVE.getG(), u1, pub, u2);
+        if (point.isInfinity())
+            return false;
+
+        ECCurve curve = point.getCurve();
+        if (curve.getCoordinateSystem() == ECCurve.COORD_JACOBIAN) {
+            // The affine x coordinate is X / Z^2, so instead of inverting Z compare X against r * Z^2. The x
+            // coordinate was reduced mod n, so r + n (if that's still a field element) also matches.
+            ECFieldElement zz = point.getZCoord(0).square();
+            ECFieldElement x = point.getXCoord();
+            for (BigInteger candidate = r; curve.isValidFieldElement(candidate); candidate = candidate.add(n)) {
+                if (curve.fromBigInteger(candidate).multiply(zz).equals(x))
+                    return true;
+            }
+            return false;
+        }
+        return point.normalize().getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
+    private static BigInteger calculateE(BigInteger n, byte[] data) {
+        int log2n = n.bitLength();
+        int messageBitLength = data.length * 8;
+        BigInteger e = new BigInteger(1, data);
+        if (log2n < messageBitLength)
+            e = e.shiftRight(messageBitLength - log2n);
+        return e;
+    }
+}
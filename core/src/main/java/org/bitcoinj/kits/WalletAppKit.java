@@ -79,6 +79,7 @@ public class WalletAppKit extends AbstractIdleService {
     protected boolean autoStop = true;
     protected InputStream checkpoints;
     protected boolean blockingStartup = true;
+    protected boolean deferTransactionHistory = false;
     protected String userAgent, version;
     protected WalletProtobufSerializer.WalletFactory walletFactory;
     @Nullable protected DeterministicSeed restoreFromSeed;
@@ -168,6 +169,18 @@ public class WalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * If true, the spent and dead transactions of the wallet are only read from the wallet file once they are needed,
+     * which makes startup faster for wallets with a long history. See
+     * {@link WalletProtobufSerializer#setDeferTransactionHistory(boolean)}. This has no effect if the wallet file has a
+     * {@link WalletJournal}. Defaults to false.
+     */
+    public WalletAppKit setDeferTransactionHistory(boolean deferTransactionHistory) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.deferTransactionHistory = deferTransactionHistory;
+        return this;
+    }
+
     /**
      * Sets the string that will appear in the subver field of the version message.
      * @param userAgent A short string that should be the name of your app, e.g. "My Wallet"
@@ -414,22 +427,28 @@ public class WalletAppKit extends AbstractIdleService {
 
     private Wallet loadWallet(boolean shouldReplayWallet) throws Exception {
         Wallet wallet;
-        FileInputStream walletStream = new FileInputStream(vWalletFile);
-        try {
-            List<WalletExtension> extensions = provideWalletExtensions();
-            WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
-            Protos.Wallet proto = WalletProtobufSerializer.parseToProto(walletStream);
-            final WalletProtobufSerializer serializer;
-            if (walletFactory != null)
-                serializer = new WalletProtobufSerializer(walletFactory);
-            else
-                serializer = new WalletProtobufSerializer();
+        List<WalletExtension> extensions = provideWalletExtensions();
+        WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
+        final WalletProtobufSerializer serializer;
+        if (walletFactory != null)
+            serializer = new WalletProtobufSerializer(walletFactory);
+        else
+            serializer = new WalletProtobufSerializer();
+        if (deferTransactionHistory && !WalletJournal.getJournalFile(vWalletFile).exists()) {
+            serializer.setDeferTransactionHistory(true);
+            InputStream input = new BufferedInputStream(new FileInputStream(vWalletFile));
+            try {
+                wallet = serializer.readWallet(input, extArray);
+            } finally {
+                input.close();
+            }
+        } else {
+            // Applies the journal, in case a subclass saves the wallet with one.
+            Protos.Wallet proto = WalletJournal.readProto(vWalletFile);
             wallet = serializer.readWallet(params, extArray, proto);
-            if (shouldReplayWallet)
-                wallet.reset();
-        } finally {
-            walletStream.close();
         }
+        if (shouldReplayWallet)
+            wallet.reset();
         return wallet;
     }
 
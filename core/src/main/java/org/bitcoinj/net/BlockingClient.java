@@ -18,14 +18,18 @@ package org.bitcoinj.net;
 
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.*;
 
 import javax.annotation.*;
 import javax.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -35,6 +39,11 @@ import static com.google.common.base.Preconditions.*;
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
+ *
+ * <p>Each client reads from its socket on a thread of its own. On Java 21 and later, that can be a virtual thread,
+ * which makes it cheap to have thousands of clients: all blocking is done in socket I/O and on
+ * {@link java.util.concurrent.locks.Lock}s, rather than while holding a monitor, so the carrier threads are given back
+ * while a client waits.</p>
  */
 public class BlockingClient implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
@@ -42,9 +51,14 @@ public class BlockingClient implements MessageWriteTarget {
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
+    // Thread.ofVirtual().factory(), looked up reflectively so that this still runs on older JVMs.
+    @Nullable private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
     private Socket socket;
     private volatile boolean vCloseRequested = false;
     private SettableFuture<SocketAddress> connectFuture;
+    // A lock rather than a monitor, as a virtual thread blocked in a write would pin its carrier thread otherwise.
+    private final ReentrantLock writeLock = Threading.lock("blockingClientWrite");
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
@@ -61,13 +75,24 @@ public class BlockingClient implements MessageWriteTarget {
     public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
                           final int connectTimeoutMillis, final SocketFactory socketFactory,
                           @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, connection, connectTimeoutMillis, socketFactory, clientSet, false);
+    }
+
+    /**
+     * <p>Creates a new client like {@link #BlockingClient(SocketAddress, StreamConnection, int, SocketFactory, Set)},
+     * optionally running its network event processing thread as a virtual thread. If virtual threads aren't supported
+     * by the JVM, see {@link #isVirtualThreadSupported()}, a platform thread is used instead.</p>
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet, boolean virtualThread) throws IOException {
         connectFuture = SettableFuture.create();
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesn't get too large or have to call read too often.
         connection.setWriteTarget(this);
         socket = socketFactory.createSocket();
         final Context context = Context.get();
-        Thread t = new Thread() {
+        Runnable task = new Runnable() {
             @Override
             public void run() {
                 Context.propagate(context);
@@ -96,25 +121,49 @@ public class BlockingClient implements MessageWriteTarget {
                 }
             }
         };
+        Thread t;
+        if (virtualThread && virtualThreadFactory != null) {
+            t = virtualThreadFactory.newThread(task);
+        } else {
+            t = new Thread(task);
+            t.setDaemon(true);
+        }
         t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
         t.start();
     }
 
+    /** Returns whether the JVM supports virtual threads, which are available from Java 21. */
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory != null;
+    }
+
+    @Nullable
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            log.info("Virtual threads are not supported, BlockingClient will use platform threads");
+            return null;
+        }
+    }
+
     /**
      * A blocking call that never returns, except by throwing an exception. It reads bytes from the input stream
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
-        ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        byte[] readBuff = new byte[dbuf.capacity()];
+        // A heap buffer, so that the stream can read straight into its array.
+        ByteBuffer dbuf = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        byte[] readBuff = dbuf.array();
         while (true) {
-            // TODO Kill the message duplication here
-            checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-            int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+            checkState(dbuf.remaining() > 0);
+            int read = stream.read(readBuff, dbuf.arrayOffset() + dbuf.position(),
+                    Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
-            dbuf.put(readBuff, 0, read);
+            dbuf.position(dbuf.position() + read);
             // "flip" the buffer - setting the limit to the current position and setting position to 0
             dbuf.flip();
             // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -143,7 +192,8 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     @Override
-    public synchronized void writeBytes(byte[] message) throws IOException {
+    public void writeBytes(byte[] message) throws IOException {
+        writeLock.lock();
         try {
             OutputStream stream = socket.getOutputStream();
             stream.write(message);
@@ -152,6 +202,8 @@ public class BlockingClient implements MessageWriteTarget {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -41,6 +41,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
+    private volatile boolean useVirtualThreads = false;
 
     public BlockingClientManager() {
         socketFactory = SocketFactory.getDefault();
@@ -59,7 +60,8 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         try {
             if (!isRunning())
                 throw new IllegalStateException();
-            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients).getConnectFuture();
+            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients,
+                    useVirtualThreads).getConnectFuture();
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -70,6 +72,15 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * Sets whether new connections run on virtual threads rather than on a platform thread each, which lets a large
+     * number of connections be made e.g. through a proxy. Falls back to platform threads if the JVM doesn't support
+     * virtual threads, see {@link BlockingClient#isVirtualThreadSupported()}. Defaults to false.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     @Override
     protected void startUp() throws Exception { }
 
@@ -28,10 +28,13 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -49,7 +52,15 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
-    private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+
+    // Outbound bytes are queued in direct buffers of this size. Small messages are packed together into the same
+    // buffer, so that many of them can go out in one gathering write. Buffers are shared between all connections
+    // through a bounded pool, rather than being allocated and garbage collected for every message.
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_WRITE_CHUNKS = 256;
+    private static final ConcurrentLinkedQueue<ByteBuffer> writeChunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledWriteChunks = new AtomicInteger();
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -61,7 +72,12 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    // Each buffer is ready to be written from: its position and limit delimit the bytes not yet sent.
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<>();
+    @GuardedBy("lock") private ByteBuffer[] writeArray = new ByteBuffer[16];
+    private final Condition outboundBufferDrained = lock.newCondition();
+    // The thread that services our key; it must never wait for the outbound buffer, as only it can drain it.
+    private volatile Thread selectorThread;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -108,25 +124,50 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
+    /**
+     * Stops or resumes selecting this connection for reading, for connections which hand received bytes to another
+     * thread and need to limit how many are waiting there. Runs in any thread.
+     */
+    void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
+            // Push as much of the outbound queue as possible into the OS' network buffer with a single gathering
+            // write, then recycle the buffers which were sent completely.
+            int count = bytesToWrite.size();
+            if (count > 0) {
+                if (writeArray.length < count)
+                    writeArray = new ByteBuffer[Integer.highestOneBit(count) << 1];
+                bytesToWrite.toArray(writeArray);
+                bytesToWriteRemaining -= channel.write(writeArray, 0, count);
+                Arrays.fill(writeArray, 0, count, null);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peekFirst().hasRemaining())
+                    releaseChunk(bytesToWrite.pollFirst());
+                outboundBufferDrained.signalAll();
             }
-            // If we are done writing, clear the OP_WRITE interestOps
+            // If we are done writing, clear the OP_WRITE interestOps, otherwise wait to be told there's space again
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                setWriteOps();
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
@@ -135,21 +176,41 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // Callers may well hold locks of their own (Peer, PeerGroup, Wallet...), so never wait here
+        writeBytes(message, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void writeBytes(byte[] message, long timeout, TimeUnit unit) throws IOException {
+        long remainingNanos = unit.toNanos(timeout);
         boolean andUnlock = true;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
+            // thus we have to buffer outbound messages sometimes. To do this, we copy the message to the end of a
+            // queue of buffers when we want to send it. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // If the queue is full, let the caller wait for the remote peer to catch up for as long as it asked to,
+            // unless we are the thread which would have to do the writing. A single message may always be queued by
+            // itself.
+            while (bytesToWriteRemaining > 0 && bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT) {
+                if (closeCalled)
+                    throw new IOException("Connection closed while waiting for outbound buffer space");
+                if (remainingNanos <= 0 || Thread.currentThread() == selectorThread)
+                    throw new IOException("Outbound buffer overflowed");
+                remainingNanos = outboundBufferDrained.awaitNanos(remainingNanos);
+            }
+            appendBytes(message);
             bytesToWriteRemaining += message.length;
             setWriteOps();
+        } catch (InterruptedException e) {
+            lock.unlock();
+            andUnlock = false;
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted waiting to write message to connection, closing connection", e);
+            closeConnection();
+            throw new IOException(e);
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -168,6 +229,46 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Copies the message into the free space after the last queued buffer, then into as many new buffers as needed
+    @GuardedBy("lock")
+    private void appendBytes(byte[] message) {
+        int offset = 0;
+        ByteBuffer last = bytesToWrite.peekLast();
+        if (last != null && last.limit() < last.capacity()) {
+            int length = Math.min(last.capacity() - last.limit(), message.length);
+            int position = last.position();
+            last.limit(last.limit() + length);
+            last.position(last.limit() - length);
+            last.put(message, 0, length);
+            last.position(position);
+            offset = length;
+        }
+        while (offset < message.length) {
+            ByteBuffer chunk = takeChunk();
+            int length = Math.min(chunk.capacity(), message.length - offset);
+            chunk.put(message, offset, length);
+            chunk.flip();
+            bytesToWrite.offer(chunk);
+            offset += length;
+        }
+    }
+
+    private static ByteBuffer takeChunk() {
+        ByteBuffer chunk = writeChunkPool.poll();
+        if (chunk == null)
+            return ByteBuffer.allocateDirect(WRITE_CHUNK_SIZE);
+        pooledWriteChunks.decrementAndGet();
+        chunk.clear();
+        return chunk;
+    }
+
+    private static void releaseChunk(ByteBuffer chunk) {
+        if (pooledWriteChunks.incrementAndGet() <= MAX_POOLED_WRITE_CHUNKS)
+            writeChunkPool.offer(chunk);
+        else
+            pooledWriteChunks.decrementAndGet();
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -186,6 +287,12 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so give the buffers back and wake up anybody waiting for space
+            for (ByteBuffer chunk : bytesToWrite)
+                releaseChunk(chunk);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
+            outboundBufferDrained.signalAll();
         } finally {
             lock.unlock();
         }
@@ -203,6 +310,7 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             if (handler == null)
                 return;
+            handler.selectorThread = Thread.currentThread();
             if (!key.isValid()) {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
                 return;
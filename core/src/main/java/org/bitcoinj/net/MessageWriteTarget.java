@@ -17,6 +17,7 @@
 package org.bitcoinj.net;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -26,6 +27,15 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given bytes to the remote server, waiting up to the given timeout for the remote side to make room if
+     * the outbound buffer is full, rather than failing straight away. As the wait is done on the calling thread, this
+     * must not be called while holding locks which other threads need to make progress. Implementations without an
+     * outbound buffer of their own simply call {@link #writeBytes(byte[])}.
+     */
+    default void writeBytes(byte[] message, long timeout, TimeUnit unit) throws IOException {
+        writeBytes(message);
+    }
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
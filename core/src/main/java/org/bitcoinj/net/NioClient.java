@@ -24,6 +24,7 @@ import org.slf4j.*;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
@@ -123,4 +124,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(byte[] message, long timeout, TimeUnit unit) throws IOException {
+        handler.writeTarget.writeBytes(message, timeout, unit);
+    }
 }
@@ -32,6 +32,7 @@ import java.util.concurrent.*;
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
  * single network processing thread.
+ * To use several threads, see {@link NioClientManagerGroup}.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link ClientConnectionManager} which spreads its connections over several {@link NioClientManager}s, each of
+ * which selects network events on its own thread. New connections go to the manager with the fewest connections.</p>
+ *
+ * <p>By default, bytes are read and parsed on the selector threads, so that {@link StreamConnection#receiveBytes(ByteBuffer)}
+ * runs on the thread of the manager that owns the connection. If worker threads are requested, received bytes are
+ * copied and handed to a worker pool instead, which lets the selectors get on with other connections while messages
+ * are processed. Each connection still sees its events one at a time and in order, and a connection which has too
+ * many bytes waiting for a worker stops being read from until the worker catches up.</p>
+ *
+ * <p>Either way, connections are no longer all serviced by one thread, so the connections given to this manager
+ * must be safe to use concurrently with each other, as {@link org.bitcoinj.core.Peer}s are.</p>
+ */
+public class NioClientManagerGroup extends AbstractIdleService implements ClientConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(NioClientManagerGroup.class);
+
+    /** The number of received bytes that may wait for a worker before the connection stops being read from. */
+    static final int MAX_WAITING_BYTES = 1024 * 1024;
+
+    private final NioClientManager[] managers;
+    @Nullable private final ExecutorService workers;
+    private final AtomicInteger nextManager = new AtomicInteger();
+
+    /** Creates a group with a selector thread per available processor, which process messages themselves. */
+    public NioClientManagerGroup() {
+        this(Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * Creates a group of the given number of selector threads.
+     *
+     * @param selectorThreads the number of {@link NioClientManager}s to spread connections over
+     * @param workerThreads   the number of threads messages are processed on, or zero to process them on the
+     *                        selector threads
+     */
+    public NioClientManagerGroup(int selectorThreads, int workerThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        checkArgument(workerThreads >= 0, "workerThreads must not be negative");
+        managers = new NioClientManager[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            managers[i] = new NioClientManager();
+        workers = workerThreads > 0 ? Executors.newFixedThreadPool(workerThreads,
+                new ContextPropagatingThreadFactory("NioClientManagerGroup worker")) : null;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.startAsync();
+        for (NioClientManager manager : managers)
+            manager.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.stopAsync();
+        for (NioClientManager manager : managers)
+            manager.awaitTerminated();
+        if (workers != null) {
+            // Let the workers deliver what the connections received before they were closed, and the closings.
+            workers.shutdown();
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("Timed out waiting for workers to finish");
+        }
+    }
+
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        if (workers != null)
+            connection = new WorkerConnection(connection, workers);
+        return leastConnectedManager().openConnection(serverAddress, connection);
+    }
+
+    // Connections that are still being opened don't count yet, so the search starts at a different manager every
+    // time: a burst of new connections is spread over all the managers rather than given to the same one.
+    private NioClientManager leastConnectedManager() {
+        int start = (nextManager.getAndIncrement() & Integer.MAX_VALUE) % managers.length;
+        NioClientManager best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < managers.length; i++) {
+            NioClientManager manager = managers[(start + i) % managers.length];
+            int count = manager.getConnectedClientCount();
+            if (count < bestCount) {
+                best = manager;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager manager : managers)
+            count += manager.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Close connections of the busiest managers first, which keeps the group balanced.
+        while (n-- > 0) {
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager manager : managers) {
+                int count = manager.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = manager;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+
+    /** Returns the number of selector threads, each of them run by a {@link NioClientManager}. */
+    public int getSelectorThreadCount() {
+        return managers.length;
+    }
+
+    /**
+     * Passes the events of a connection to a worker pool, one at a time. Received bytes are copied, so that the
+     * selector thread can reuse its buffer straight away.
+     */
+    private static class WorkerConnection implements StreamConnection {
+        private final StreamConnection connection;
+        private final Executor executor;
+        // Only used by the worker, which carries over the bytes of an incomplete message.
+        private final ByteBuffer buffer;
+
+        private int waitingBytes;
+        private boolean readingPaused;
+        private volatile MessageWriteTarget writeTarget;
+
+        WorkerConnection(StreamConnection connection, Executor workers) {
+            this.connection = connection;
+            this.executor = MoreExecutors.newSequentialExecutor(workers);
+            this.buffer = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), 4096), 65536));
+        }
+
+        @Override
+        public void connectionClosed() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.connectionClosed();
+                }
+            });
+        }
+
+        @Override
+        public void connectionOpened() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.connectionOpened();
+                }
+            });
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            final byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            updateWaitingBytes(bytes.length);
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliver(bytes);
+                    } catch (Exception e) {
+                        Throwable t = Throwables.getRootCause(e);
+                        log.warn("Error processing received bytes: {} {}", t.getClass().getName(),
+                                t.getMessage() != null ? t.getMessage() : "", e);
+                        writeTarget.closeConnection();
+                    } finally {
+                        updateWaitingBytes(-bytes.length);
+                    }
+                }
+            });
+            return bytes.length;
+        }
+
+        // Hands the bytes to the connection, at most a buffer full at a time.
+        private void deliver(byte[] bytes) throws Exception {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+                buffer.flip();
+                int consumed = connection.receiveBytes(buffer);
+                checkState(buffer.position() == consumed);
+                buffer.compact();
+                if (consumed == 0 && !buffer.hasRemaining())
+                    throw new IllegalStateException("Connection didn't consume a full buffer");
+            }
+        }
+
+        private synchronized void updateWaitingBytes(int delta) {
+            waitingBytes += delta;
+            boolean pause = readingPaused ? waitingBytes > MAX_WAITING_BYTES / 2 : waitingBytes > MAX_WAITING_BYTES;
+            if (pause != readingPaused && writeTarget instanceof ConnectionHandler) {
+                readingPaused = pause;
+                ((ConnectionHandler) writeTarget).setReadingPaused(pause);
+            }
+        }
+
+        private void execute(Runnable task) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The group was stopped, so there are no more workers.
+                task.run();
+            }
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+            connection.setWriteTarget(writeTarget);
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return connection.getMaxMessageSize();
+        }
+    }
+}
@@ -389,6 +389,9 @@ public class Script {
 		} else if (ScriptPattern.isPayToScriptHash(this)) {
 			checkArgument(redeemScript != null, "Redeem script required to create P2SH input script");
 			return ScriptBuilder.createP2SHMultiSigInputScript(null, redeemScript);
+		} else if (ScriptPattern.isPayToWitnessPubKeyHash(this)) {
+			// Everything goes into the witness.
+			return new ScriptBuilder().build();
 		} else {
 			throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Do not understand script type: " + this);
 		}
@@ -604,6 +607,10 @@ public class Script {
 			// scriptSig: <sig> <pubkey>
 			int uncompressedPubKeySize = 65;
 			return SIG_SIZE + (pubKey != null ? pubKey.getPubKey().length : uncompressedPubKeySize);
+		} else if (ScriptPattern.isPayToWitnessPubKeyHash(this)) {
+			// witness: <sig> <pubkey>, counted at full size although witness data is discounted
+			int compressedPubKeySize = 33;
+			return SIG_SIZE + (pubKey != null ? pubKey.getPubKey().length : compressedPubKeySize);
 		} else {
 			throw new IllegalStateException("Unsupported script type");
 		}
@@ -767,6 +774,12 @@ public class Script {
 	 */
 	public static void executeScript(@Nullable Transaction txContainingThis, long index,
 									 Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+		executeScript(txContainingThis, null, index, script, stack, verifyFlags);
+	}
+
+	private static void executeScript(@Nullable Transaction txContainingThis, @Nullable SigHashCache sigHashes,
+									  long index, Script script, LinkedList<byte[]> stack,
+									  Set<VerifyFlag> verifyFlags) throws ScriptException {
 		int opCount = 0;
 		int lastCodeSepLocation = 0;
 
@@ -1219,13 +1232,13 @@ public class Script {
 					case OP_CHECKSIGVERIFY:
 						if (txContainingThis == null)
 							throw new IllegalStateException("Script attempted signature check but no tx was provided");
-						executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
+						executeCheckSig(txContainingThis, sigHashes, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
 						break;
 					case OP_CHECKMULTISIG:
 					case OP_CHECKMULTISIGVERIFY:
 						if (txContainingThis == null)
 							throw new IllegalStateException("Script attempted signature check but no tx was provided");
-						opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
+						opCount = executeMultiSig(txContainingThis, sigHashes, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
 						break;
 					case OP_CHECKLOCKTIMEVERIFY:
 						if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
@@ -1383,7 +1396,15 @@ public class Script {
 			throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
 	}
 
-	private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+	private static Sha256Hash hashForSignature(Transaction txContainingThis, @Nullable SigHashCache sigHashes, int index,
+											   byte[] connectedScript, byte sigHashType) {
+		if (sigHashes != null)
+			return sigHashes.hashForSignature(index, connectedScript, sigHashType);
+		return txContainingThis.hashForSignature(index, connectedScript, sigHashType);
+	}
+
+	private static void executeCheckSig(Transaction txContainingThis, @Nullable SigHashCache sigHashes, int index,
+										Script script, LinkedList<byte[]> stack,
 										int lastCodeSepLocation, int opcode,
 										Set<VerifyFlag> verifyFlags) throws ScriptException {
 		final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1412,7 +1433,7 @@ public class Script {
 					verifyFlags.contains(VerifyFlag.LOW_S));
 
 			// TODO: Should check hash type is known
-			Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+			Sha256Hash hash = hashForSignature(txContainingThis, sigHashes, index, connectedScript, (byte) sig.sighashFlags);
 			sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
 		} catch (SignatureDecodeException e) {
 			// This exception occurs when signing as we run partial/invalid scripts to see if they need more
@@ -1433,7 +1454,8 @@ public class Script {
 				throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
 	}
 
-	private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+	private static int executeMultiSig(Transaction txContainingThis, @Nullable SigHashCache sigHashes, int index,
+									   Script script, LinkedList<byte[]> stack,
 									   int opCount, int lastCodeSepLocation, int opcode,
 									   Set<VerifyFlag> verifyFlags) throws ScriptException {
 		final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1488,7 +1510,7 @@ public class Script {
 			// more expensive than hashing, its not a big deal.
 			try {
 				TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical, false);
-				Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+				Sha256Hash hash = hashForSignature(txContainingThis, sigHashes, index, connectedScript, (byte) sig.sighashFlags);
 				if (ECKey.verify(hash.getBytes(), sig, pubKey))
 					sigs.pollFirst();
 			} catch (Exception e) {
@@ -1551,16 +1573,107 @@ public class Script {
 		} catch (ProtocolException e) {
 			throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
 		}
+		correctlySpends(txContainingThis, null, scriptSigIndex, scriptPubKey, verifyFlags);
+	}
+
+	/**
+	 * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, calculating
+	 * signature hashes with the given cache. Use this when verifying several inputs of the same transaction: unlike
+	 * {@link #correctlySpends(Transaction, long, Script, Set)}, it doesn't copy the transaction, and the work of
+	 * hashing it is shared between the inputs.
+	 * @param sigHashes The signature hash cache of the transaction in which this input scriptSig resides. The
+	 *                  transaction must not be modified while this method runs.
+	 * @param scriptSigIndex The index in the transaction of the scriptSig (note: NOT the index of the scriptPubKey).
+	 * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+	 * @param verifyFlags Each flag enables one validation rule.
+	 */
+	public void correctlySpends(SigHashCache sigHashes, long scriptSigIndex, Script scriptPubKey,
+								Set<VerifyFlag> verifyFlags) throws ScriptException {
+		correctlySpends(sigHashes.getTransaction(), sigHashes, scriptSigIndex, scriptPubKey, verifyFlags);
+	}
+
+	/**
+	 * Verifies that this script (interpreted as a scriptSig) and the given witness correctly spend the given
+	 * scriptPubKey. Spends of P2WPKH outputs are verified against the witness, with a signature hash as defined by
+	 * BIP143. All other outputs are verified like {@link #correctlySpends(Transaction, long, Script, Set)} does.
+	 * @param txContainingThis The transaction in which this input scriptSig resides.
+	 *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+	 * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+	 * @param witness The witness of the input, only needed for segwit outputs.
+	 * @param value The value of the spent output, only needed for segwit outputs.
+	 * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+	 * @param verifyFlags Each flag enables one validation rule.
+	 */
+	public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, @Nullable TransactionWitness witness,
+								@Nullable Coin value, Script scriptPubKey, Set<VerifyFlag> verifyFlags)
+			throws ScriptException {
+		if (ScriptPattern.isPayToWitnessPubKeyHash(scriptPubKey))
+			correctlySpendsPayToWitnessPubKeyHash(txContainingThis, null, scriptSigIndex, witness, value, scriptPubKey,
+					verifyFlags);
+		else
+			correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+	}
+
+	/**
+	 * Same as {@link #correctlySpends(Transaction, long, TransactionWitness, Coin, Script, Set)}, but calculates
+	 * signature hashes with the given cache and doesn't copy the transaction. Use this when verifying several inputs of
+	 * the same transaction.
+	 */
+	public void correctlySpends(SigHashCache sigHashes, long scriptSigIndex, @Nullable TransactionWitness witness,
+								@Nullable Coin value, Script scriptPubKey, Set<VerifyFlag> verifyFlags)
+			throws ScriptException {
+		if (ScriptPattern.isPayToWitnessPubKeyHash(scriptPubKey))
+			correctlySpendsPayToWitnessPubKeyHash(sigHashes.getTransaction(), sigHashes, scriptSigIndex, witness, value,
+					scriptPubKey, verifyFlags);
+		else
+			correctlySpends(sigHashes.getTransaction(), sigHashes, scriptSigIndex, scriptPubKey, verifyFlags);
+	}
+
+	private void correctlySpendsPayToWitnessPubKeyHash(Transaction txContainingThis, @Nullable SigHashCache sigHashes,
+													   long scriptSigIndex, @Nullable TransactionWitness witness,
+													   @Nullable Coin value, Script scriptPubKey,
+													   Set<VerifyFlag> verifyFlags) throws ScriptException {
+		// Only the witness is allowed to contain data for native segwit outputs.
+		if (!chunks.isEmpty())
+			throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_MALLEATED, "scriptSig of a P2WPKH spend must be empty");
+		if (witness == null || witness.getPushCount() == 0)
+			throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_WITNESS_EMPTY, "Witness is empty");
+		if (witness.getPushCount() != 2)
+			throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_MISMATCH, "P2WPKH witness must have two items");
+		checkArgument(value != null, "Value of the spent output is required to verify a P2WPKH spend");
+		byte[] sigBytes = witness.getPush(0);
+		byte[] pubKey = witness.getPush(1);
+		byte[] pubKeyHash = ScriptPattern.extractHashFromPayToWitnessHash(scriptPubKey);
+		if (!Arrays.equals(Utils.sha256hash160(pubKey), pubKeyHash))
+			throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "Public key doesn't match the P2WPKH hash");
+		if (pubKey.length != 33)
+			throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PUBKEYTYPE, "P2WPKH public key must be compressed");
+		TransactionSignature sig;
+		try {
+			sig = TransactionSignature.decodeFromBitcoin(sigBytes, true, verifyFlags.contains(VerifyFlag.LOW_S));
+		} catch (SignatureDecodeException e) {
+			throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Could not decode signature", e);
+		}
+		byte[] scriptCode = ScriptBuilder.createP2PKHOutputScript(pubKeyHash).getProgram();
+		if (sigHashes == null)
+			sigHashes = new SigHashCache(txContainingThis);
+		Sha256Hash hash = sigHashes.hashForWitnessSignature((int) scriptSigIndex, scriptCode, value, (byte) sig.sighashFlags);
+		if (!ECKey.verify(hash.getBytes(), sig, pubKey))
+			throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2WPKH signature is invalid");
+	}
+
+	private void correctlySpends(Transaction txContainingThis, @Nullable SigHashCache sigHashes, long scriptSigIndex,
+								 Script scriptPubKey, Set<VerifyFlag> verifyFlags) throws ScriptException {
 		if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
 			throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
 
 		LinkedList<byte[]> stack = new LinkedList<>();
 		LinkedList<byte[]> p2shStack = null;
 
-		executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+		executeScript(txContainingThis, sigHashes, scriptSigIndex, this, stack, verifyFlags);
 		if (verifyFlags.contains(VerifyFlag.P2SH))
 			p2shStack = new LinkedList<>(stack);
-		executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
+		executeScript(txContainingThis, sigHashes, scriptSigIndex, scriptPubKey, stack, verifyFlags);
 
 		if (stack.size() == 0)
 			throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
@@ -1589,7 +1702,7 @@ public class Script {
 			byte[] scriptPubKeyBytes = p2shStack.pollLast();
 			Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
 
-			executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+			executeScript(txContainingThis, sigHashes, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
 
 			if (p2shStack.size() == 0)
 				throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
@@ -24,6 +24,7 @@ import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionWitness;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script.ScriptType;
@@ -283,6 +284,28 @@ public class ScriptBuilder {
         return builder.build();
     }
 
+    /**
+     * Creates a P2PKH scriptPubKey for the given public key hash. This is also the script code used to calculate
+     * signature hashes of P2WPKH inputs.
+     */
+    public static Script createP2PKHOutputScript(byte[] pubKeyHash) {
+        checkArgument(pubKeyHash.length == LegacyAddress.LENGTH);
+        // OP_DUP OP_HASH160 <pubKeyHash> OP_EQUALVERIFY OP_CHECKSIG
+        return new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(pubKeyHash).op(OP_EQUALVERIFY).op(OP_CHECKSIG)
+                .build();
+    }
+
+    /**
+     * Creates a witness that can redeem a P2WPKH output.
+     * If given signature is null, incomplete witness will be created with an empty signature
+     */
+    public static TransactionWitness createWitness(@Nullable TransactionSignature signature, ECKey pubKey) {
+        TransactionWitness witness = new TransactionWitness(2);
+        witness.setPush(0, signature != null ? signature.encodeToBitcoin() : new byte[]{});
+        witness.setPush(1, pubKey.getPubKey());
+        return witness;
+    }
+
     /** Creates a scriptPubKey that encodes payment to the given raw public key. */
     public static Script createOutputScript(ECKey key) {
         return new ScriptBuilder().data(key.getPubKey()).op(OP_CHECKSIG).build();
@@ -18,12 +18,16 @@ package org.bitcoinj.signers;
 
 import java.util.EnumSet;
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashCache;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.wallet.KeyBag;
 import org.bitcoinj.wallet.RedeemData;
@@ -61,6 +65,8 @@ public class LocalTransactionSigner implements TransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Signing only changes input scripts and witnesses, so the cache stays valid for the whole loop.
+        SigHashCache sigHashes = new SigHashCache(tx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -72,7 +78,8 @@ public class LocalTransactionSigner implements TransactionSigner {
                 // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
+                txIn.getScriptSig().correctlySpends(sigHashes, i, txIn.getWitness(), txIn.getConnectedOutput().getValue(),
+                        txIn.getConnectedOutput().getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptException e) {
@@ -99,12 +106,30 @@ public class LocalTransactionSigner implements TransactionSigner {
                 continue;
             }
 
+            if (ScriptPattern.isPayToWitnessPubKeyHash(scriptPubKey)) {
+                try {
+                    // The signature commits to the spent value, and goes into the witness rather than the scriptSig.
+                    Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key.getPubKeyHash());
+                    Sha256Hash hash = sigHashes.hashForWitnessSignature(i, scriptCode.getProgram(),
+                            txIn.getConnectedOutput().getValue(), Transaction.SigHash.ALL, false);
+                    TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+                    txIn.setScriptSig(new ScriptBuilder().build());
+                    txIn.setWitness(ScriptBuilder.createWitness(signature, key));
+                } catch (ECKey.KeyIsEncryptedException e) {
+                    throw e;
+                } catch (ECKey.MissingPrivateKeyException e) {
+                    log.warn("No private key in keypair for input {}", i);
+                }
+                continue;
+            }
+
             Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                Sha256Hash hash = sigHashes.hashForSignature(i, script, Transaction.SigHash.ALL, false);
+                TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
 
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
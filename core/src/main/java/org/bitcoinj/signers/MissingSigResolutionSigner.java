@@ -18,8 +18,10 @@ package org.bitcoinj.signers;
 
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionWitness;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.wallet.KeyBag;
@@ -80,6 +82,18 @@ public class MissingSigResolutionSigner implements TransactionSigner {
                         }
                     }
                 }
+            } else if (ScriptPattern.isPayToWitnessPubKeyHash(scriptPubKey)) {
+                TransactionWitness witness = txIn.getWitness();
+                if (witness.getPushCount() < 2 || witness.getPush(0).length == 0) {
+                    if (missingSigsMode == Wallet.MissingSigsMode.THROW) {
+                        throw new ECKey.MissingPrivateKeyException();
+                    } else if (missingSigsMode == Wallet.MissingSigsMode.USE_DUMMY_SIG) {
+                        ECKey key = keyBag.findKeyFromPubHash(
+                                ScriptPattern.extractHashFromPayToWitnessHash(scriptPubKey));
+                        if (key != null)
+                            txIn.setWitness(ScriptBuilder.createWitness(TransactionSignature.dummy(), key));
+                    }
+                }
             } else {
                 if (inputScript.getChunks().get(0).equalsOpCode(0)) {
                     if (missingSigsMode == Wallet.MissingSigsMode.THROW) {
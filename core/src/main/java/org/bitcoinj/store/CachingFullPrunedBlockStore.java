@@ -0,0 +1,430 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that wraps another one and keeps a write-back cache of the unspent transaction
+ * output set in front of it. It is meant for stores where every UTXO access is expensive, such as the JDBC backed
+ * {@link DatabaseFullPrunedBlockStore}s.</p>
+ *
+ * <p>Two structures are kept:</p>
+ * <ul>
+ *     <li>A size bounded LRU cache of outputs known to be in the underlying store, filled as outputs are read.</li>
+ *     <li>The set of outputs added and spent since the last flush. These are only written to the underlying store
+ *     once at least {@code flushThreshold} of them have accumulated, inside the same database batch as the
+ *     {@link #commitDatabaseBatchWrite()} that crosses the threshold. Outputs that are created and spent between two
+ *     flushes never reach the underlying store at all.</li>
+ * </ul>
+ *
+ * <p>Changes made within a database batch are undone by {@link #abortDatabaseBatchWrite()}, exactly as the
+ * {@link FullPrunedBlockStore} contract requires, so re-orgs and blocks that fail to verify behave as they do without
+ * the cache. The verified chain head is written to the underlying store together with the outputs it corresponds to,
+ * so after a crash the underlying store is consistent, if a little behind; the lost blocks are simply downloaded and
+ * verified again. Call {@link #flush()} or {@link #close()} to write everything out.</p>
+ *
+ * <p>Hit and miss counters are available to help size the cache.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of outputs kept in the read cache. */
+    public static final int DEFAULT_CACHE_SIZE = 500000;
+    /** The default number of changed outputs that are accumulated before they're written to the underlying store. */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 100000;
+
+    /** A change to the output set that has not been written to the underlying store yet. */
+    private static class Change {
+        final UTXO utxo;
+        final boolean spent;
+        // Whether the underlying store holds this output, i.e. whether a spend must be written out.
+        final boolean inDelegate;
+
+        Change(UTXO utxo, boolean spent, boolean inDelegate) {
+            this.utxo = utxo;
+            this.spent = spent;
+            this.inDelegate = inDelegate;
+        }
+    }
+
+    private final FullPrunedBlockStore delegate;
+    private final int flushThreshold;
+    private final LinkedHashMap<StoredTransactionOutPoint, UTXO> cache;
+    private final Map<StoredTransactionOutPoint, Change> changes = new HashMap<>();
+
+    // State needed to undo the current database batch. A null value records that there was no change for the key.
+    private boolean inBatch;
+    private final Map<StoredTransactionOutPoint, Change> undo = new HashMap<>();
+    @Nullable private StoredBlock undoVerifiedChainHead;
+    private boolean verifiedChainHeadTouched;
+
+    // The verified chain head matching the unflushed changes, or null if the underlying store is up to date.
+    @Nullable private StoredBlock verifiedChainHead;
+
+    private long hits, misses, flushes;
+
+    /**
+     * Wraps the given store with a cache of {@link #DEFAULT_CACHE_SIZE} outputs that is flushed every
+     * {@link #DEFAULT_FLUSH_THRESHOLD} changed outputs.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore delegate) {
+        this(delegate, DEFAULT_CACHE_SIZE, DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param cacheSize the maximum number of outputs kept in the read cache
+     * @param flushThreshold the number of changed outputs that are accumulated before they're written out
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore delegate, final int cacheSize, int flushThreshold) {
+        checkArgument(cacheSize > 0);
+        checkArgument(flushThreshold > 0);
+        this.delegate = checkNotNull(delegate);
+        this.flushThreshold = flushThreshold;
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, UTXO>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, UTXO> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /** Returns the store this cache writes to. */
+    public FullPrunedBlockStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        delegate.put(block);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        delegate.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return delegate.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return delegate.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return delegate.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock chainHead = delegate.getChainHead();
+        // Mirror the underlying store, which moves the chain head along with a higher verified chain head.
+        if (verifiedChainHead != null && verifiedChainHead.getHeight() > chainHead.getHeight())
+            return verifiedChainHead;
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        delegate.setChainHead(chainHead);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead != null ? verifiedChainHead : delegate.getVerifiedChainHead();
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (inBatch && !verifiedChainHeadTouched) {
+            undoVerifiedChainHead = verifiedChainHead;
+            verifiedChainHeadTouched = true;
+        }
+        verifiedChainHead = chainHead;
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Change change = changes.get(key);
+        if (change != null) {
+            hits++;
+            return change.spent ? null : change.utxo;
+        }
+        UTXO out = cache.get(key);
+        if (out != null) {
+            hits++;
+            return out;
+        }
+        misses++;
+        out = delegate.getTransactionOutput(hash, index);
+        if (out != null)
+            cache.put(key, out);
+        return out;
+    }
+
+    @Override
+    public synchronized Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<TransactionOutPoint, UTXO> results = new HashMap<>(outPoints.size());
+        List<TransactionOutPoint> missing = new ArrayList<>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            Change change = changes.get(key);
+            UTXO out = change != null ? change.utxo : cache.get(key);
+            if (change != null || out != null) {
+                hits++;
+                if (change == null || !change.spent)
+                    results.put(outPoint, out);
+            } else {
+                misses++;
+                missing.add(outPoint);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<TransactionOutPoint, UTXO> fetched = delegate.getTransactionOutputs(missing);
+            for (Map.Entry<TransactionOutPoint, UTXO> entry : fetched.entrySet())
+                cache.put(new StoredTransactionOutPoint(entry.getValue()), entry.getValue());
+            results.putAll(fetched);
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Change previous = changes.get(key);
+        if (previous != null && previous.spent && previous.inDelegate) {
+            // Spent since the last flush and back again, e.g. because a re-org undid the spend. The underlying store
+            // still has it, so there is nothing to write out.
+            recordChange(key, null);
+            cache.put(key, out);
+            return;
+        }
+        boolean inDelegate = previous != null && previous.inDelegate;
+        recordChange(key, new Change(out, false, inDelegate));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        Change previous = changes.get(key);
+        cache.remove(key);
+        if (previous != null && !previous.inDelegate)
+            recordChange(key, null); // Created and spent since the last flush: nothing to write out.
+        else
+            recordChange(key, new Change(out, true, true));
+    }
+
+    private void recordChange(StoredTransactionOutPoint key, @Nullable Change change) {
+        if (inBatch && !undo.containsKey(key))
+            undo.put(key, changes.get(key));
+        if (change != null)
+            changes.put(key, change);
+        else
+            changes.remove(key);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean anySpent = false;
+        for (int i = 0; i < numOutputs; i++) {
+            Change change = changes.get(new StoredTransactionOutPoint(hash, i));
+            if (change == null)
+                continue;
+            if (!change.spent)
+                return true;
+            anySpent = true;
+        }
+        if (!delegate.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!anySpent)
+            return true;
+        // Some of the outputs the underlying store has were spent since the last flush, so check the others.
+        for (int i = 0; i < numOutputs; i++) {
+            if (changes.containsKey(new StoredTransactionOutPoint(hash, i)))
+                continue;
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        delegate.beginDatabaseBatchWrite();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (changes.size() >= flushThreshold) {
+            try {
+                writeChanges();
+            } catch (BlockStoreException e) {
+                abortDatabaseBatchWrite();
+                throw e;
+            }
+        }
+        delegate.commitDatabaseBatchWrite();
+        clearUndo();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        for (Map.Entry<StoredTransactionOutPoint, Change> entry : undo.entrySet()) {
+            if (entry.getValue() != null)
+                changes.put(entry.getKey(), entry.getValue());
+            else
+                changes.remove(entry.getKey());
+            // The cache may hold an output added in the aborted batch.
+            cache.remove(entry.getKey());
+        }
+        if (verifiedChainHeadTouched)
+            verifiedChainHead = undoVerifiedChainHead;
+        clearUndo();
+        delegate.abortDatabaseBatchWrite();
+    }
+
+    private void clearUndo() {
+        inBatch = false;
+        undo.clear();
+        undoVerifiedChainHead = null;
+        verifiedChainHeadTouched = false;
+    }
+
+    /**
+     * Writes all changes made since the last flush, along with the verified chain head, to the underlying store. Must
+     * not be called while a database batch is in progress.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (changes.isEmpty() && verifiedChainHead == null)
+            return;
+        delegate.beginDatabaseBatchWrite();
+        try {
+            writeChanges();
+        } catch (BlockStoreException e) {
+            delegate.abortDatabaseBatchWrite();
+            throw e;
+        }
+        delegate.commitDatabaseBatchWrite();
+    }
+
+    /** Writes the pending changes to the underlying store, which must be in a database batch. */
+    private void writeChanges() throws BlockStoreException {
+        log.info("Flushing {} changed outputs to the underlying store", changes.size());
+        for (Change change : changes.values())
+            if (change.spent)
+                delegate.removeUnspentTransactionOutput(change.utxo);
+        for (Map.Entry<StoredTransactionOutPoint, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            if (!change.spent) {
+                delegate.addUnspentTransactionOutput(change.utxo);
+                cache.put(entry.getKey(), change.utxo);
+            }
+        }
+        if (verifiedChainHead != null)
+            delegate.setVerifiedChainHead(verifiedChainHead);
+        changes.clear();
+        verifiedChainHead = null;
+        flushes++;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        cache.clear();
+        delegate.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    public synchronized int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        List<UTXO> results = new ArrayList<>();
+        for (UTXO out : delegate.getOpenTransactionOutputs(keys))
+            if (!changes.containsKey(new StoredTransactionOutPoint(out)))
+                results.add(out);
+        if (changes.isEmpty())
+            return results;
+        // Add the unflushed outputs that pay to the keys.
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            addresses.add(LegacyAddress.fromKey(getParams(), key).toString());
+        for (Change change : changes.values())
+            if (!change.spent && addresses.contains(change.utxo.getAddress()))
+                results.add(change.utxo);
+        return results;
+    }
+
+    /** Returns the number of output lookups that were answered without asking the underlying store. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that had to be sent to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns how many times pending changes were written to the underlying store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Returns the number of outputs added or spent since the last flush. */
+    public synchronized int getPendingChanges() {
+        return changes.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingFullPrunedBlockStore{delegate=" + delegate + ", cached=" + cache.size() + ", pending="
+                + changes.size() + ", hits=" + hits + ", misses=" + misses + ", flushes=" + flushes + "}";
+    }
+}
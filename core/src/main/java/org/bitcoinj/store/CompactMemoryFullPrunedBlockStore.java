@@ -0,0 +1,301 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * <p>Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link UTXO}s in memory, like
+ * {@link MemoryFullPrunedBlockStore}, but stores the UTXO set in an {@link OffHeapUTXOSet}: outputs are packed into
+ * direct memory slabs and indexed by a table of primitive arrays, instead of being held as one object graph per output.
+ * That makes it practical to keep millions of outputs, for example when replaying a regtest chain, without heap
+ * exhaustion or long garbage collection pauses.</p>
+ *
+ * <p>Changes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are kept in a
+ * small on-heap overlay private to the writing thread and only applied to the slabs on commit, so
+ * {@link #abortDatabaseBatchWrite()} discards them just like it does for the other stores.</p>
+ */
+public class CompactMemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static class StoredBlockAndWasUndoableFlag {
+        final StoredBlock block;
+        final boolean wasUndoable;
+        StoredBlockAndWasUndoableFlag(StoredBlock block, boolean wasUndoable) { this.block = block; this.wasUndoable = wasUndoable; }
+    }
+    private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    private OffHeapUTXOSet transactionOutputs;
+    // The uncommitted changes to transactionOutputs of the thread that is in a batch write, if any.
+    private final ThreadLocal<Map<StoredTransactionOutPoint, UTXO>> addedOutputs = new ThreadLocal<>();
+    private final ThreadLocal<Set<StoredTransactionOutPoint>> removedOutputs = new ThreadLocal<>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private int fullStoreDepth;
+    private NetworkParameters params;
+
+    /**
+     * Set up the CompactMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public CompactMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, OffHeapUTXOSet.DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Set up the CompactMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param slabSize The size in bytes of each block of off-heap memory allocated for outputs
+     */
+    public CompactMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, int slabSize) {
+        blockMap = new TransactionalHashMap<>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<>();
+        transactionOutputs = new OffHeapUTXOSet(slabSize);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        // Insert the genesis block.
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            this.params = params;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        Sha256Hash hash = block.getHeader().getHash();
+        blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    @Override
+    public synchronized final void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        return fullBlockMap.get(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    @Override
+    public synchronized final void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized final void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "CompactMemoryFullPrunedBlockStore is closed");
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    /**
+     * Closes the store and drops its off-heap slabs. Their memory is given back when the garbage collector collects
+     * the direct buffers, not right away.
+     */
+    @Override
+    public synchronized void close() {
+        blockMap = null;
+        fullBlockMap = null;
+        if (transactionOutputs != null)
+            transactionOutputs.clear();
+        transactionOutputs = null;
+    }
+
+    /** Returns the number of unspent outputs that have been committed to the store. */
+    public synchronized int getCommittedOutputCount() {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        return transactionOutputs.size();
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Map<StoredTransactionOutPoint, UTXO> added = addedOutputs.get();
+        if (added != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            UTXO out = added.get(key);
+            if (out != null)
+                return out;
+            if (removedOutputs.get().contains(key))
+                return null;
+        }
+        return transactionOutputs.get(hash, index);
+    }
+
+    @Override
+    public synchronized Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<TransactionOutPoint, UTXO> results = new HashMap<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            UTXO out = getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            if (out != null)
+                results.put(outPoint, out);
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Map<StoredTransactionOutPoint, UTXO> added = addedOutputs.get();
+        if (added != null)
+            added.put(new StoredTransactionOutPoint(out), out);
+        else
+            transactionOutputs.put(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Map<StoredTransactionOutPoint, UTXO> added = addedOutputs.get();
+        boolean removed;
+        if (added != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Set<StoredTransactionOutPoint> removedSet = removedOutputs.get();
+            removed = added.remove(key) != null;
+            if (!removedSet.contains(key) && transactionOutputs.contains(out.getHash(), out.getIndex())) {
+                removedSet.add(key);
+                removed = true;
+            }
+        } else {
+            removed = transactionOutputs.remove(out.getHash(), out.getIndex());
+        }
+        if (!removed)
+            throw new BlockStoreException("Tried to remove a UTXO from CompactMemoryFullPrunedBlockStore that it didn't have!");
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.beginDatabaseBatchWrite();
+        fullBlockMap.BeginTransaction();
+        // Batches may be begun again before being committed, e.g. by reorgs. Keep the changes made so far.
+        if (addedOutputs.get() == null) {
+            addedOutputs.set(new HashMap<StoredTransactionOutPoint, UTXO>());
+            removedOutputs.set(new HashSet<StoredTransactionOutPoint>());
+        }
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.commitDatabaseBatchWrite();
+        fullBlockMap.CommitTransaction();
+        Map<StoredTransactionOutPoint, UTXO> added = addedOutputs.get();
+        if (added != null) {
+            for (StoredTransactionOutPoint key : removedOutputs.get())
+                transactionOutputs.remove(key.getHash(), key.getIndex());
+            for (UTXO out : added.values())
+                transactionOutputs.put(out);
+        }
+        addedOutputs.remove();
+        removedOutputs.remove();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.abortDatabaseBatchWrite();
+        fullBlockMap.AbortTransaction();
+        addedOutputs.remove();
+        removedOutputs.remove();
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        // Like MemoryFullPrunedBlockStore this scans every committed output, decoding each one from the slabs.
+        Set<String> addresses = new HashSet<>(keys.size());
+        for (ECKey key : keys)
+            addresses.add(LegacyAddress.fromKey(params, key).toString());
+        List<UTXO> foundOutputs = new ArrayList<>();
+        for (UTXO output : transactionOutputs.values())
+            if (addresses.contains(output.getAddress()))
+                foundOutputs.add(output);
+        return foundOutputs;
+    }
+}
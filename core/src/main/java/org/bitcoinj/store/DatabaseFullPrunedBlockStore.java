@@ -109,6 +109,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BATCH_SQL_PREFIX             = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN (";
+
+    // The maximum number of distinct transaction hashes bound to a single batched openoutputs query.
+    protected static final int MAX_OPENOUTPUTS_BATCH_SIZE = 500;
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -352,6 +356,28 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select all openoutputs records of the given number of transaction hashes. The statement must
+     * take one parameter per hash and return the hash, index, height, value, scriptbytes, coinbase and toaddress
+     * columns, in that order.
+     * @param hashCount The number of hashes in the IN list.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsBatchSQL(int hashCount) {
+        return buildInListSQL(SELECT_OPENOUTPUTS_BATCH_SQL_PREFIX, hashCount);
+    }
+
+    /**
+     * Appends an IN list of the given number of parameters, and its closing parenthesis, to the given SQL.
+     */
+    protected static String buildInListSQL(String prefix, int count) {
+        StringBuilder sql = new StringBuilder(prefix.length() + count * 3 + 1);
+        sql.append(prefix);
+        for (int i = 0; i < count; i++)
+            sql.append(i == 0 ? "?" : ", ?");
+        return sql.append(')').toString();
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -938,6 +964,64 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        maybeConnect();
+        Map<TransactionOutPoint, UTXO> results = new HashMap<>(outPoints.size());
+        // Group the outpoints by transaction, so we can select by hash (the leading column of the primary key) and
+        // pick out the wanted indexes as the rows come back.
+        Map<Sha256Hash, List<TransactionOutPoint>> byHash = new LinkedHashMap<>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            List<TransactionOutPoint> wanted = byHash.get(outPoint.getHash());
+            if (wanted == null) {
+                wanted = new ArrayList<>(1);
+                byHash.put(outPoint.getHash(), wanted);
+            }
+            wanted.add(outPoint);
+        }
+        for (List<Sha256Hash> hashes : Lists.partition(new ArrayList<>(byHash.keySet()), MAX_OPENOUTPUTS_BATCH_SIZE)) {
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getSelectOpenoutputsBatchSQL(hashes.size()));
+                for (int i = 0; i < hashes.size(); i++)
+                    s.setBytes(i + 1, hashes.get(i).getBytes());
+                ResultSet rs = s.executeQuery();
+                while (rs.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = rs.getInt(2) & 0xFFFFFFFFL;
+                    List<TransactionOutPoint> wanted = byHash.get(hash);
+                    if (wanted == null)
+                        continue;
+                    for (TransactionOutPoint outPoint : wanted) {
+                        if (outPoint.getIndex() != index)
+                            continue;
+                        results.put(outPoint, new UTXO(hash,
+                                index,
+                                Coin.valueOf(rs.getLong(4)),
+                                rs.getInt(3),
+                                rs.getBoolean(6),
+                                new Script(rs.getBytes(5)),
+                                rs.getString(7)));
+                    }
+                }
+                rs.close();
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
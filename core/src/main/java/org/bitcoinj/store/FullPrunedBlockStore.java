@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -75,6 +77,14 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * Gets a {@link UTXO} with the given hash and index, or null if none is found
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link UTXO}s for many outpoints at once. Outpoints that are not found are absent from the returned
+     * map. The result must be the same as calling {@link #getTransactionOutput(Sha256Hash, long)} for each outpoint,
+     * but implementations should fetch them with as few round-trips to the underlying storage as possible.
+     */
+    Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException;
     
     /**
      * Adds a {@link UTXO} to the list of unspent TransactionOutputs
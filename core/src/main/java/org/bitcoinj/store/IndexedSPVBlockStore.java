@@ -0,0 +1,524 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.*;
+import org.slf4j.*;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>An IndexedSPVBlockStore keeps <i>every</i> block header it is given in an append-only memory mapped file,
+ * unlike the {@link SPVBlockStore} which only keeps the most recent headers in a fixed size ring buffer. Two small
+ * index files are kept next to the headers file:</p>
+ *
+ * <ul>
+ *     <li>{@code <file>.idx} is an open addressing hash table mapping block hashes to header records, so
+ *     {@link #get(Sha256Hash)} costs a constant number of probes regardless of chain length.</li>
+ *     <li>{@code <file>.hgt} maps heights on the best chain to header records, so {@link #getByHeight(int)} is
+ *     constant time as well. It is maintained by {@link #setChainHead(StoredBlock)}, which walks back from the new
+ *     head only as far as the fork point.</li>
+ * </ul>
+ *
+ * <p>Both indexes can be rebuilt from the headers file, which is done automatically when they are missing or lag
+ * behind it (for instance after a crash). Opening an existing store is therefore cheap: no scan of the headers is
+ * required in the common case.</p>
+ */
+public class IndexedSPVBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(IndexedSPVBlockStore.class);
+
+    /** The number of header records the headers file is initially sized for. The file grows as needed. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16 * 1024;
+    public static final String HEADER_MAGIC = "SPVI";
+    public static final String HASH_INDEX_MAGIC = "SPVX";
+    public static final String HEIGHT_INDEX_MAGIC = "SPVH";
+
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // Headers file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes record count
+    //   32 bytes for the hash of the chain head
+    //
+    // Followed at FILE_PROLOGUE_BYTES by the records (128 bytes each), in the order they were put:
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    protected static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+
+    protected final NetworkParameters params;
+    protected final ReentrantLock lock = Threading.lock("IndexedSPVBlockStore");
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileLock fileLock;
+    @GuardedBy("lock") private MappedByteBuffer buffer;
+    private int recordCapacity;
+    private final MappedIntArray hashIndex;
+    private final MappedIntArray heightIndex;
+
+    private StoredBlock lastChainHead = null;
+
+    /**
+     * Creates and initializes an indexed SPV block store. Will create the given file and its index files if missing.
+     * This operation will block on disk.
+     * @param file file to use for the block headers, the index files are created next to it
+     * @throws BlockStoreException if something goes wrong
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates and initializes an indexed SPV block store. Will create the given file and its index files if missing.
+     * This operation will block on disk.
+     * @param file file to use for the block headers, the index files are created next to it
+     * @param initialCapacity number of block headers the files are initially sized for
+     * @throws BlockStoreException if something goes wrong
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file, int initialCapacity) throws BlockStoreException {
+        checkNotNull(file);
+        this.params = checkNotNull(params);
+        checkArgument(initialCapacity > 0 && initialCapacity <= MAX_RECORDS);
+        RandomAccessFile randomAccessFile = null;
+        MappedIntArray hashIndex = null, heightIndex = null;
+        try {
+            boolean exists = file.exists() && file.length() > 0;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            if (exists) {
+                final long currentLength = randomAccessFile.length();
+                if (currentLength < FILE_PROLOGUE_BYTES || (currentLength - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+                    throw new BlockStoreException(
+                            "File size on disk indicates this is not a block store: " + currentLength);
+                recordCapacity = (int) ((currentLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
+            } else {
+                log.info("Creating new indexed SPV block chain file " + file);
+                recordCapacity = initialCapacity;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(recordCapacity));
+            this.randomAccessFile = randomAccessFile;
+            if (exists) {
+                byte[] header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+            } else {
+                buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                buffer.putInt(4, 0);
+            }
+            hashIndex = new MappedIntArray(new File(file.getPath() + ".idx"), HASH_INDEX_MAGIC,
+                    hashSlotsFor(Math.max(initialCapacity, recordCapacity)));
+            heightIndex = new MappedIntArray(new File(file.getPath() + ".hgt"), HEIGHT_INDEX_MAGIC,
+                    Math.max(initialCapacity, recordCapacity));
+            this.hashIndex = hashIndex;
+            this.heightIndex = heightIndex;
+
+            lock.lock();
+            try {
+                if (exists) {
+                    reindexIfNeeded();
+                    // Repair the height index in case we crashed between writing the head and updating it.
+                    updateHeightIndex(getChainHead());
+                } else {
+                    // Discard any index files left behind by a deleted store.
+                    hashIndex.resizeAndClear(hashIndex.size());
+                    hashIndex.setMeta(0);
+                    heightIndex.resizeAndClear(heightIndex.size());
+                    heightIndex.setMeta(0);
+                    Block genesis = params.getGenesisBlock().cloneAsHeader();
+                    StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                    put(storedGenesis);
+                    setChainHead(storedGenesis);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            try {
+                if (hashIndex != null) hashIndex.close();
+                if (heightIndex != null) heightIndex.close();
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the size in bytes of the headers file when it has room for the given number of records. */
+    public static long getFileSize(int capacity) {
+        return (long) RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = checkOpen();
+            Sha256Hash hash = block.getHeader().getHash();
+            int existing = findRecord(buffer, hash);
+            if (existing >= 0) {
+                // Headers are immutable, so a second put of the same hash can simply overwrite its record.
+                writeRecord(buffer, existing, hash, block);
+                return;
+            }
+            int record = getRecordCount(buffer);
+            if (record == recordCapacity)
+                buffer = growRecords(record + 1);
+            writeRecord(buffer, record, hash, block);
+            buffer.putInt(4, record + 1);
+            insertIntoHashIndex(hash.hashCode(), record);
+            hashIndex.setMeta(record + 1);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = checkOpen();
+            int record = findRecord(buffer, hash);
+            return record >= 0 ? readRecord(buffer, record) : null;
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * Returns the block at the given height on the chain that ends in the current chain head, or null if this store
+     * doesn't have a block at that height (e.g. because it was initialized from a checkpoint above it).
+     */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = checkOpen();
+            if (height < 0 || height >= heightIndex.getMeta())
+                return null;
+            int slot = heightIndex.get(height);
+            return slot != 0 ? readRecord(buffer, slot - 1) : null;
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = checkOpen();
+            if (lastChainHead == null) {
+                byte[] headHash = new byte[32];
+                buffer.position(8);
+                buffer.get(headHash);
+                Sha256Hash hash = Sha256Hash.wrap(headHash);
+                StoredBlock block = get(hash);
+                if (block == null)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+                lastChainHead = block;
+            }
+            return lastChainHead;
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer buffer = checkOpen();
+            lastChainHead = chainHead;
+            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            buffer.position(8);
+            buffer.put(headHash);
+            updateHeightIndex(chainHead);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            hashIndex.close();
+            heightIndex.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    // Must be called with the lock held, as put() may remap the buffer when it grows.
+    private MappedByteBuffer checkOpen() throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        return buffer;
+    }
+
+    private static int getRecordCount(ByteBuffer buffer) {
+        return buffer.getInt(4);
+    }
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int record, Sha256Hash hash, StoredBlock block) {
+        buffer.position(recordOffset(record));
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+    }
+
+    private StoredBlock readRecord(ByteBuffer buffer, int record) {
+        buffer.position(recordOffset(record) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Equivalent to {@link Sha256Hash#hashCode()} of the hash stored in the given record. */
+    private static int recordHashCode(ByteBuffer buffer, int record) {
+        return buffer.getInt(recordOffset(record) + Sha256Hash.LENGTH - 4);
+    }
+
+    private static boolean recordHashEquals(ByteBuffer buffer, int record, byte[] hash) {
+        int offset = recordOffset(record);
+        for (int i = 0; i < hash.length; i++)
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    /** Returns the record holding the given hash, or -1. */
+    private int findRecord(ByteBuffer buffer, Sha256Hash hash) {
+        final byte[] hashBytes = hash.getBytes();
+        final int mask = hashIndex.size() - 1;
+        int slot = mix(hash.hashCode()) & mask;
+        while (true) {
+            int value = hashIndex.get(slot);
+            if (value == 0)
+                return -1;
+            if (recordHashEquals(buffer, value - 1, hashBytes))
+                return value - 1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insertIntoHashIndex(int hashCode, int record) throws BlockStoreException {
+        // Keep the load factor at or below one half so probe sequences stay short.
+        if ((record + 1) * 2L > hashIndex.size()) {
+            rebuildHashIndex(hashSlotsFor(record + 1), record);
+        }
+        final int mask = hashIndex.size() - 1;
+        int slot = mix(hashCode) & mask;
+        while (hashIndex.get(slot) != 0)
+            slot = (slot + 1) & mask;
+        hashIndex.set(slot, record + 1);
+    }
+
+    /** Clears the hash index, resizes it to the given number of slots and re-inserts the first records. */
+    private void rebuildHashIndex(int slots, int records) throws BlockStoreException {
+        hashIndex.resizeAndClear(slots);
+        hashIndex.setMeta(0);
+        final ByteBuffer buffer = this.buffer;
+        for (int record = 0; record < records; record++)
+            insertIntoHashIndex(recordHashCode(buffer, record), record);
+        hashIndex.setMeta(records);
+    }
+
+    private void reindexIfNeeded() throws BlockStoreException {
+        final int records = getRecordCount(buffer);
+        final int indexed = hashIndex.getMeta();
+        if (indexed == records)
+            return;
+        if (indexed > records) {
+            log.info("Rebuilding hash index of {} block headers", records);
+            rebuildHashIndex(hashSlotsFor(records), records);
+        } else {
+            log.info("Indexing {} unindexed block headers", records - indexed);
+            for (int record = indexed; record < records; record++)
+                insertIntoHashIndex(recordHashCode(buffer, record), record);
+            hashIndex.setMeta(records);
+        }
+    }
+
+    /**
+     * Makes the height index reflect the chain ending in the given head. Walks backwards from the head until the
+     * index agrees with the chain, so the cost is proportional to the depth of a re-org rather than the chain length.
+     */
+    private void updateHeightIndex(StoredBlock head) throws BlockStoreException {
+        final ByteBuffer buffer = this.buffer;
+        final int headHeight = head.getHeight();
+        final int oldCount = heightIndex.getMeta();
+        if (heightIndex.size() <= headHeight)
+            heightIndex.grow(Math.max(headHeight + 1, heightIndex.size() * 2));
+        // Forget about heights above the new head, which can happen when re-organizing onto a shorter chain.
+        for (int height = headHeight + 1; height < oldCount; height++)
+            heightIndex.set(height, 0);
+        heightIndex.setMeta(headHeight + 1);
+        Sha256Hash hash = head.getHeader().getHash();
+        for (int height = headHeight; height >= 0; height--) {
+            int record = findRecord(buffer, hash);
+            if (record < 0) {
+                // We don't have this block, e.g. the store was started from a checkpoint.
+                break;
+            }
+            if (height < oldCount && heightIndex.get(height) == record + 1)
+                break;
+            heightIndex.set(height, record + 1);
+            // The previous block hash is at offset 4 of the header, which follows the chain work and height.
+            byte[] prevHash = new byte[32];
+            buffer.position(recordOffset(record) + 32 + StoredBlock.CHAIN_WORK_BYTES + 4 + 4);
+            buffer.get(prevHash);
+            hash = Sha256Hash.wrapReversed(prevHash);
+        }
+    }
+
+    private MappedByteBuffer growRecords(int minCapacity) throws BlockStoreException {
+        checkState(minCapacity <= MAX_RECORDS, "Block store is full");
+        int newCapacity = (int) Math.min(MAX_RECORDS, Math.max(minCapacity, recordCapacity * 2L));
+        try {
+            buffer.force();
+            // Mapping beyond the end of the file grows it.
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(newCapacity));
+            recordCapacity = newCapacity;
+            return buffer;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static int hashSlotsFor(int records) {
+        int slots = 1024;
+        while (slots < records * 2L && slots < (1 << 30))
+            slots <<= 1;
+        return slots;
+    }
+
+    /** Spreads the bits of a hash code, which only matters for adversarially chosen hashes. */
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    /**
+     * A memory mapped, growable array of ints prefixed by a small prologue, used for both indexes. Empty slots read
+     * as zero, so callers store their values offset by one.
+     */
+    private static class MappedIntArray {
+        private static final int PROLOGUE_BYTES = 16;
+        private final RandomAccessFile file;
+        private MappedByteBuffer buffer;
+        private int size;
+
+        MappedIntArray(File file, String magic, int initialSize) throws IOException, BlockStoreException {
+            boolean exists = file.exists() && file.length() >= PROLOGUE_BYTES;
+            this.file = new RandomAccessFile(file, "rw");
+            if (exists) {
+                size = (int) ((this.file.length() - PROLOGUE_BYTES) / 4);
+                map();
+                byte[] header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, StandardCharsets.US_ASCII).equals(magic)) {
+                    this.file.close();
+                    throw new BlockStoreException("Index header bytes do not equal " + magic);
+                }
+            } else {
+                size = initialSize;
+                map();
+                buffer.put(magic.getBytes(StandardCharsets.US_ASCII));
+                setMeta(0);
+            }
+        }
+
+        private void map() throws IOException {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PROLOGUE_BYTES + size * 4L);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return buffer.getInt(PROLOGUE_BYTES + index * 4);
+        }
+
+        void set(int index, int value) {
+            buffer.putInt(PROLOGUE_BYTES + index * 4, value);
+        }
+
+        int getMeta() {
+            return buffer.getInt(4);
+        }
+
+        void setMeta(int value) {
+            buffer.putInt(4, value);
+        }
+
+        void grow(int newSize) throws BlockStoreException {
+            if (newSize <= size)
+                return;
+            try {
+                buffer.force();
+                size = newSize;
+                map();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        /** Grows the array to at least the given size and zeroes every slot. It is never shrunk. */
+        void resizeAndClear(int minSize) throws BlockStoreException {
+            grow(minSize);
+            for (int i = 0; i < size; i++)
+                set(i, 0);
+        }
+
+        void close() throws IOException {
+            if (buffer != null)
+                buffer.force();
+            buffer = null;
+            file.close();
+        }
+    }
+}
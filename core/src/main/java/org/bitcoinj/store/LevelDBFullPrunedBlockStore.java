@@ -16,7 +16,11 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -37,6 +41,7 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
@@ -52,6 +57,7 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -759,6 +765,96 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    @Override
+    public Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionOutputs");
+
+        Map<TransactionOutPoint, UTXO> results = new HashMap<>(outPoints.size());
+        // Serve what we can from the caches (and uncommitted writes) first, exactly as getTransactionOutput would.
+        final Map<ByteBuffer, TransactionOutPoint> misses = new HashMap<>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            UTXO result;
+            if (autoCommit) {
+                result = utxoCache.get(bbKey);
+            } else {
+                if (utxoUncommittedDeletedCache.contains(bbKey)) {
+                    hit++;
+                    continue;
+                }
+                result = utxoUncommittedCache.get(bbKey);
+                if (result == null)
+                    result = utxoCache.get(bbKey);
+            }
+            if (result != null) {
+                hit++;
+                results.put(outPoint, result);
+                continue;
+            }
+            miss++;
+            if (!autoCommit) {
+                if (uncommitedDeletes != null && uncommitedDeletes.contains(bbKey))
+                    continue;
+                byte[] inbytes = uncommited != null ? uncommited.get(bbKey) : null;
+                if (inbytes != null) {
+                    results.put(outPoint, parseUTXO(inbytes));
+                    continue;
+                }
+            }
+            misses.put(bbKey, outPoint);
+        }
+        if (!misses.isEmpty()) {
+            // Look up the remaining keys in sorted order with a single iterator, so each seek only moves forward
+            // through the table files and blocks already pulled into the read cache are reused.
+            List<ByteBuffer> keys = new ArrayList<>(misses.keySet());
+            Collections.sort(keys, new Comparator<ByteBuffer>() {
+                // LevelDB's default comparator orders keys as unsigned bytes.
+                private final Comparator<byte[]> bytewise = UnsignedBytes.lexicographicalComparator();
+
+                @Override
+                public int compare(ByteBuffer a, ByteBuffer b) {
+                    return bytewise.compare(a.array(), b.array());
+                }
+            });
+            DBIterator iterator = db.iterator();
+            try {
+                for (ByteBuffer key : keys) {
+                    iterator.seek(key.array());
+                    if (!iterator.hasNext())
+                        break;
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    if (Arrays.equals(entry.getKey(), key.array()))
+                        results.put(misses.get(key), parseUTXO(entry.getValue()));
+                }
+            } catch (DBException e) {
+                log.error("Exception in getTransactionOutputs.", e);
+                throw new BlockStoreException(e);
+            } finally {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    log.error("Exception in getTransactionOutputs.", e);
+                }
+                if (instrument)
+                    endMethod("getTransactionOutputs");
+            }
+        } else if (instrument) {
+            endMethod("getTransactionOutputs");
+        }
+        return results;
+    }
+
+    private UTXO parseUTXO(byte[] bytes) throws BlockStoreException {
+        try {
+            return new UTXO(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new BlockStoreException("problem deserialising utxo", e);
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -17,217 +17,12 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import javax.annotation.Nullable;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint {
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(UTXO out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hashCode(getIndex(), getHash());
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash + ":" + index;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() && Objects.equal(getHash(), other.getHash());
-    }
-}
-
-/**
- * A HashMap<KeyType, ValueType> that is DB transaction-aware
- * This class is not thread-safe.
- */
-class TransactionalHashMap<KeyType, ValueType> {
-    ThreadLocal<HashMap<KeyType, ValueType>> tempMap;
-    ThreadLocal<HashSet<KeyType>> tempSetRemoved;
-    private ThreadLocal<Boolean> inTransaction;
-    
-    HashMap<KeyType, ValueType> map;
-    
-    public TransactionalHashMap() {
-        tempMap = new ThreadLocal<>();
-        tempSetRemoved = new ThreadLocal<>();
-        inTransaction = new ThreadLocal<>();
-        map = new HashMap<>();
-    }
-    
-    public void beginDatabaseBatchWrite() {
-        inTransaction.set(true);
-    }
-
-    public void commitDatabaseBatchWrite() {
-        if (tempSetRemoved.get() != null)
-            for(KeyType key : tempSetRemoved.get())
-                map.remove(key);
-        if (tempMap.get() != null)
-            for (Map.Entry<KeyType, ValueType> entry : tempMap.get().entrySet())
-                map.put(entry.getKey(), entry.getValue());
-        abortDatabaseBatchWrite();
-    }
-
-    public void abortDatabaseBatchWrite() {
-        inTransaction.set(false);
-        tempSetRemoved.remove();
-        tempMap.remove();
-    }
-
-    @Nullable
-    public ValueType get(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempMap.get() != null) {
-                ValueType value = tempMap.get().get(key);
-                if (value != null)
-                    return value;
-            }
-            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
-                return null;
-        }
-        return map.get(key);
-    }
-
-    public List<ValueType> values() {
-        List<ValueType> valueTypes = new ArrayList<>();
-        for (KeyType keyType : map.keySet()) {
-            valueTypes.add(get(keyType));
-        }
-        return valueTypes;
-    }
-    
-    public void put(KeyType key, ValueType value) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempSetRemoved.get() != null)
-                tempSetRemoved.get().remove(key);
-            if (tempMap.get() == null)
-                tempMap.set(new HashMap<KeyType, ValueType>());
-            tempMap.get().put(key, value);
-        }else{
-            map.put(key, value);
-        }
-    }
-    
-    @Nullable
-    public ValueType remove(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            ValueType retVal = map.get(key);
-            if (retVal != null) {
-                if (tempSetRemoved.get() == null)
-                    tempSetRemoved.set(new HashSet<KeyType>());
-                tempSetRemoved.get().add(key);
-            }
-            if (tempMap.get() != null) {
-                ValueType tempVal = tempMap.get().remove(key);
-                if (tempVal != null)
-                    return tempVal;
-            }
-            return retVal;
-        }else{
-            return map.remove(key);
-        }
-    }
-}
-
-/**
- * A Map with multiple key types that is DB per-thread-transaction-aware.
- * However, this class is not thread-safe.
- * @param <UniqueKeyType> is a key that must be unique per object
- * @param <MultiKeyType> is a key that can have multiple values
- */
-class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
-    TransactionalHashMap<UniqueKeyType, ValueType> mapValues;
-    HashMap<MultiKeyType, Set<UniqueKeyType>> mapKeys;
-    
-    public TransactionalMultiKeyHashMap() {
-        mapValues = new TransactionalHashMap<>();
-        mapKeys = new HashMap<>();
-    }
-    
-    public void BeginTransaction() {
-        mapValues.beginDatabaseBatchWrite();
-    }
-
-    public void CommitTransaction() {
-        mapValues.commitDatabaseBatchWrite();
-    }
-
-    public void AbortTransaction() {
-        mapValues.abortDatabaseBatchWrite();
-    }
-
-    @Nullable
-    public ValueType get(UniqueKeyType key) {
-        return mapValues.get(key);
-    }
-    
-    public void put(UniqueKeyType uniqueKey, MultiKeyType multiKey, ValueType value) {
-        mapValues.put(uniqueKey, value);
-        Set<UniqueKeyType> set = mapKeys.get(multiKey);
-        if (set == null) {
-            set = new HashSet<>();
-            set.add(uniqueKey);
-            mapKeys.put(multiKey, set);
-        }else{
-            set.add(uniqueKey);
-        }
-    }
-    
-    @Nullable
-    public ValueType removeByUniqueKey(UniqueKeyType key) {
-        return mapValues.remove(key);
-    }
-    
-    public void removeByMultiKey(MultiKeyType key) {
-        Set<UniqueKeyType> set = mapKeys.remove(key);
-        if (set != null)
-            for (UniqueKeyType uniqueKey : set)
-                removeByUniqueKey(uniqueKey);
-    }
-}
-
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link UTXO}s in memory.
  * Used primarily for unit testing.
@@ -355,6 +150,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    @Override
+    public synchronized Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        Map<TransactionOutPoint, UTXO> results = new HashMap<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            UTXO out = transactionOutputMap.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+            if (out != null)
+                results.put(outPoint, out);
+        }
+        return results;
+    }
+
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A set of {@link UTXO}s that keeps the outputs themselves outside of the Java heap. Each output is packed into a
+ * record in one of a number of direct {@link ByteBuffer} slabs:</p>
+ *
+ * <pre>
+ *   32 bytes transaction hash
+ *    4 bytes output index
+ *    4 bytes height
+ *    8 bytes value
+ *    1 byte  coinbase flag
+ *    4 bytes script length, followed by the script
+ *    2 bytes address length, followed by the address in UTF-8
+ * </pre>
+ *
+ * <p>Records are found through an open addressing hash table held in two primitive arrays: a 64 bit digest of the
+ * outpoint, which rejects almost all non-matching probes without touching the slabs, and the address of the record.
+ * The heap cost is therefore 16 bytes per table slot no matter how many outputs are stored, and the garbage collector
+ * never has to trace individual outputs. Space freed by removed outputs is reclaimed by compacting the slabs once it
+ * exceeds the space in use.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class OffHeapUTXOSet {
+    static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    private static final long EMPTY = -1;
+    private static final long REMOVED = -2;
+    private static final int FIXED_RECORD_BYTES = 32 + 4 + 4 + 8 + 1 + 4 + 2;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private long liveBytes, deadBytes;
+
+    private long[] digests;
+    private long[] addresses;
+    private int size, removedSlots;
+
+    OffHeapUTXOSet() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    OffHeapUTXOSet(int slabSize) {
+        checkArgument(slabSize >= 1024);
+        this.slabSize = slabSize;
+        allocateTable(1024);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns the number of bytes of off-heap memory allocated for records. */
+    long getAllocatedBytes() {
+        long total = 0;
+        for (ByteBuffer slab : slabs)
+            total += slab.capacity();
+        return total;
+    }
+
+    @Nullable
+    UTXO get(Sha256Hash hash, long index) {
+        int slot = find(hash.getBytes(), index);
+        return slot >= 0 ? read(addresses[slot]) : null;
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        return find(hash.getBytes(), index) >= 0;
+    }
+
+    /** Adds the given output, replacing any output with the same outpoint. */
+    void put(UTXO out) {
+        byte[] hash = out.getHash().getBytes();
+        int existing = find(hash, out.getIndex());
+        if (existing >= 0)
+            free(existing);
+        if ((size + removedSlots + 1) * 4L > digests.length * 3L)
+            resizeTable();
+        long address = write(out);
+        long digest = digest(hash, out.getIndex());
+        int mask = digests.length - 1;
+        int slot = (int) digest & mask;
+        while (addresses[slot] >= 0)
+            slot = (slot + 1) & mask;
+        if (addresses[slot] == REMOVED)
+            removedSlots--;
+        digests[slot] = digest;
+        addresses[slot] = address;
+        size++;
+    }
+
+    /** Removes the output with the given outpoint, returning whether it was present. */
+    boolean remove(Sha256Hash hash, long index) {
+        int slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return false;
+        free(slot);
+        maybeCompact();
+        return true;
+    }
+
+    /** Returns all outputs. Each one is decoded onto the heap, so this is only meant for small sets or rare calls. */
+    List<UTXO> values() {
+        List<UTXO> values = new ArrayList<>(size);
+        for (long address : addresses)
+            if (address >= 0)
+                values.add(read(address));
+        return values;
+    }
+
+    /** Drops the slabs, leaving their memory to the garbage collector. The set is empty afterwards. */
+    void clear() {
+        slabs.clear();
+        liveBytes = deadBytes = 0;
+        size = removedSlots = 0;
+        allocateTable(1024);
+    }
+
+    private void allocateTable(int capacity) {
+        digests = new long[capacity];
+        addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+    }
+
+    private void resizeTable() {
+        long[] oldDigests = digests, oldAddresses = addresses;
+        int capacity = 1024;
+        while (capacity * 3L < (size + 1) * 8L)
+            capacity <<= 1;
+        allocateTable(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] < 0)
+                continue;
+            int slot = (int) oldDigests[i] & mask;
+            while (addresses[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            digests[slot] = oldDigests[i];
+            addresses[slot] = oldAddresses[i];
+        }
+        removedSlots = 0;
+    }
+
+    private int find(byte[] hash, long index) {
+        long digest = digest(hash, index);
+        int mask = digests.length - 1;
+        int slot = (int) digest & mask;
+        while (true) {
+            long address = addresses[slot];
+            if (address == EMPTY)
+                return -1;
+            if (address >= 0 && digests[slot] == digest && matches(address, hash, index))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void free(int slot) {
+        long address = addresses[slot];
+        int length = recordLength(address);
+        liveBytes -= length;
+        deadBytes += length;
+        addresses[slot] = REMOVED;
+        removedSlots++;
+        size--;
+    }
+
+    /** Mixes the last eight bytes of the hash (the first ones are often zero) with the index. */
+    private static long digest(byte[] hash, long index) {
+        long h = 0;
+        for (int i = Sha256Hash.LENGTH - 8; i < Sha256Hash.LENGTH; i++)
+            h = (h << 8) | (hash[i] & 0xFF);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private boolean matches(long address, byte[] hash, long index) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        if (slab.getInt(offset + 32) != (int) index)
+            return false;
+        for (int i = 0; i < hash.length; i++)
+            if (slab.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private int recordLength(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int scriptLength = slab.getInt(offset + 49);
+        int addressLength = slab.getShort(offset + 53 + scriptLength) & 0xFFFF;
+        return FIXED_RECORD_BYTES + scriptLength + addressLength;
+    }
+
+    private UTXO read(long address) {
+        ByteBuffer slab = slab(address).duplicate();
+        slab.position(offset(address));
+        byte[] hash = new byte[32];
+        slab.get(hash);
+        long index = slab.getInt() & 0xFFFFFFFFL;
+        int height = slab.getInt();
+        Coin value = Coin.valueOf(slab.getLong());
+        boolean coinbase = slab.get() != 0;
+        byte[] script = new byte[slab.getInt()];
+        slab.get(script);
+        byte[] addressBytes = new byte[slab.getShort() & 0xFFFF];
+        slab.get(addressBytes);
+        return new UTXO(Sha256Hash.wrap(hash), index, value, height, coinbase, new Script(script),
+                new String(addressBytes, StandardCharsets.UTF_8));
+    }
+
+    private long write(UTXO out) {
+        byte[] script = out.getScript().getProgram();
+        byte[] addressBytes = out.getAddress() != null ? out.getAddress().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        checkArgument(addressBytes.length <= 0xFFFF, "Address too long");
+        int length = FIXED_RECORD_BYTES + script.length + addressBytes.length;
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < length) {
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+            slabs.add(slab);
+        }
+        long address = ((long) (slabs.size() - 1) << 32) | slab.position();
+        slab.put(out.getHash().getBytes());
+        slab.putInt((int) out.getIndex());
+        slab.putInt(out.getHeight());
+        slab.putLong(out.getValue().value);
+        slab.put((byte) (out.isCoinbase() ? 1 : 0));
+        slab.putInt(script.length);
+        slab.put(script);
+        slab.putShort((short) addressBytes.length);
+        slab.put(addressBytes);
+        liveBytes += length;
+        return address;
+    }
+
+    /** Copies the live records into fresh slabs once more space is wasted than used. */
+    private void maybeCompact() {
+        if (deadBytes < slabSize || deadBytes < liveBytes)
+            return;
+        List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+        slabs.clear();
+        liveBytes = deadBytes = 0;
+        ByteBuffer target = null;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            long address = addresses[slot];
+            if (address < 0)
+                continue;
+            ByteBuffer source = oldSlabs.get((int) (address >>> 32));
+            int offset = offset(address);
+            int scriptLength = source.getInt(offset + 49);
+            int length = FIXED_RECORD_BYTES + scriptLength + (source.getShort(offset + 53 + scriptLength) & 0xFFFF);
+            if (target == null || target.remaining() < length) {
+                target = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+                slabs.add(target);
+            }
+            addresses[slot] = ((long) (slabs.size() - 1) << 32) | target.position();
+            ByteBuffer record = source.duplicate();
+            record.position(offset);
+            record.limit(offset + length);
+            target.put(record);
+            liveBytes += length;
+        }
+    }
+}
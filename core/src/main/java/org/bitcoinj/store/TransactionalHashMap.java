@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * A HashMap<KeyType, ValueType> that is DB transaction-aware
+ * This class is not thread-safe.
+ */
+class TransactionalHashMap<KeyType, ValueType> {
+    ThreadLocal<HashMap<KeyType, ValueType>> tempMap;
+    ThreadLocal<HashSet<KeyType>> tempSetRemoved;
+    private ThreadLocal<Boolean> inTransaction;
+    
+    HashMap<KeyType, ValueType> map;
+    
+    public TransactionalHashMap() {
+        tempMap = new ThreadLocal<>();
+        tempSetRemoved = new ThreadLocal<>();
+        inTransaction = new ThreadLocal<>();
+        map = new HashMap<>();
+    }
+    
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for(KeyType key : tempSetRemoved.get())
+                map.remove(key);
+        if (tempMap.get() != null)
+            for (Map.Entry<KeyType, ValueType> entry : tempMap.get().entrySet())
+                map.put(entry.getKey(), entry.getValue());
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    @Nullable
+    public ValueType get(KeyType key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempMap.get() != null) {
+                ValueType value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return map.get(key);
+    }
+
+    public List<ValueType> values() {
+        List<ValueType> valueTypes = new ArrayList<>();
+        for (KeyType keyType : map.keySet()) {
+            valueTypes.add(get(keyType));
+        }
+        return valueTypes;
+    }
+    
+    public void put(KeyType key, ValueType value) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<KeyType, ValueType>());
+            tempMap.get().put(key, value);
+        }else{
+            map.put(key, value);
+        }
+    }
+    
+    @Nullable
+    public ValueType remove(KeyType key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            ValueType retVal = map.get(key);
+            if (retVal != null) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<KeyType>());
+                tempSetRemoved.get().add(key);
+            }
+            if (tempMap.get() != null) {
+                ValueType tempVal = tempMap.get().remove(key);
+                if (tempVal != null)
+                    return tempVal;
+            }
+            return retVal;
+        }else{
+            return map.remove(key);
+        }
+    }
+}
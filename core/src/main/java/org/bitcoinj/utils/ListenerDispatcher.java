@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An executor for event listeners that runs them on a pool of threads, while keeping the events of each listener in
+ * order. {@link ListenerRegistration} asks the dispatcher for a {@link #newSerialExecutor() serial executor} per
+ * registered listener, so one slow listener only delays its own events. Tasks given to the dispatcher directly share
+ * one serial executor.</p>
+ *
+ * <p>Of all listeners that have events waiting, the one with the oldest event runs first. With a single thread this
+ * runs all events in the order they were queued, like the user thread always did.</p>
+ *
+ * <p>The number of queued events is bounded. Once the bound is reached, queueing an event waits for a short while for
+ * room, which slows down whatever produces the events. The wait is limited because events are often queued with locks
+ * held that listeners might need; if there still is no room afterwards, the event is queued anyway and counted as an
+ * overflow. After an overflow, events are queued without waiting until a listener frees room again, so a burst of
+ * events queued while the listeners are stuck, e.g. on a lock the producer holds, only waits once.</p>
+ *
+ * <p>When {@link #setCoalescing(boolean) coalescing} is enabled, an event created with
+ * {@link #coalescing(Object, Runnable)} is dropped if the same listener still has an event with an equal key waiting.
+ * This is used for events like {@code onWalletChanged} and {@code onConfidenceChanged}, where the listener looks at the
+ * current state anyway.</p>
+ */
+public class ListenerDispatcher implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    /** The default number of events that can be queued before producers are slowed down. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** The default time a producer waits for room in a full queue. */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 100;
+
+    private final String name;
+    private final int capacity;
+    private final List<Thread> threads = new ArrayList<>();
+    private final SerialExecutor defaultExecutor;
+    private final PriorityBlockingQueue<SerialExecutor> ready = new PriorityBlockingQueue<>(11,
+            new Comparator<SerialExecutor>() {
+                @Override
+                public int compare(SerialExecutor a, SerialExecutor b) {
+                    return Long.compare(a.headSequence, b.headSequence);
+                }
+            });
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    // Set when waiting for room timed out, cleared when room is freed. No producer waits while it is set.
+    private volatile boolean overflowed;
+    private volatile boolean coalescing;
+
+    // Sequence numbers of the events that haven't finished yet, for waitForEventsQueuedBefore().
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> unfinished = new ConcurrentSkipListSet<>();
+    private final ReentrantLock finishedLock = new ReentrantLock();
+    private final Condition finished = finishedLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ThreadLocal<Long> currentEvent = new ThreadLocal<>();
+    private final Semaphore room;
+
+    private final AtomicLong eventsRun = new AtomicLong();
+    private final AtomicLong eventsCoalesced = new AtomicLong();
+    private final AtomicLong producersSlowed = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private volatile long maxLatencyNanos;
+    private volatile int maxQueueDepth;
+
+    /**
+     * Creates a dispatcher with the given number of threads and the {@link #DEFAULT_CAPACITY}.
+     * @param name name of the threads
+     */
+    public ListenerDispatcher(String name, int numThreads) {
+        this(name, numThreads, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a dispatcher.
+     * @param name name of the threads
+     * @param numThreads number of threads that run listeners
+     * @param capacity number of events that can be queued before producers are slowed down
+     */
+    public ListenerDispatcher(String name, int numThreads, int capacity) {
+        checkArgument(numThreads > 0);
+        checkArgument(capacity > 0);
+        this.name = checkNotNull(name);
+        this.capacity = capacity;
+        this.room = new Semaphore(capacity);
+        this.defaultExecutor = new SerialExecutor();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(new Worker(), numThreads == 1 ? name : name + " " + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    /**
+     * Wraps a task so that it can be dropped if the same listener still has a task with an equal key waiting, see
+     * {@link #setCoalescing(boolean)}. The task runs as usual on any other executor.
+     */
+    public static Runnable coalescing(Object key, Runnable task) {
+        return new CoalescingTask(checkNotNull(key), checkNotNull(task));
+    }
+
+    /** Returns a new executor that runs its tasks in order on the threads of this dispatcher. */
+    public Executor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    /** Queues a task that is run in order with the other tasks given to the dispatcher directly. */
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        defaultExecutor.execute(command);
+    }
+
+    /**
+     * Waits until all events that were queued before this call have been run. If called from a thread of this
+     * dispatcher, this doesn't wait for the event being run by the calling thread.
+     */
+    public void waitForEventsQueuedBefore() {
+        long before = sequence.get();
+        Long running = currentEvent.get();
+        finishedLock.lock();
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                Long oldest = firstUnfinishedExcept(running);
+                if (oldest == null || oldest >= before)
+                    return;
+                finished.awaitUninterruptibly();
+            }
+        } finally {
+            waiters.decrementAndGet();
+            finishedLock.unlock();
+        }
+    }
+
+    @Nullable
+    private Long firstUnfinishedExcept(@Nullable Long running) {
+        for (Long seq : unfinished) {
+            if (!seq.equals(running))
+                return seq;
+        }
+        return null;
+    }
+
+    /** Sets whether tasks created with {@link #coalescing(Object, Runnable)} may be dropped. Off by default. */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /** Sets how long queueing an event waits for room if the queue is full. Zero doesn't wait. */
+    public void setMaxWait(long time, TimeUnit unit) {
+        checkArgument(time >= 0);
+        this.maxWaitMillis = unit.toMillis(time);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumThreads() {
+        return threads.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of events that are waiting to be run. */
+    public int getQueueDepth() {
+        return Math.max(0, capacity - room.availablePermits());
+    }
+
+    /** Returns the highest number of events that were waiting at once. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Returns the number of events that have been run. */
+    public long getEventsRun() {
+        return eventsRun.get();
+    }
+
+    /** Returns the number of events that were dropped because an equal one was still waiting. */
+    public long getEventsCoalesced() {
+        return eventsCoalesced.get();
+    }
+
+    /** Returns how often queueing an event had to wait because the queue was full. */
+    public long getProducersSlowed() {
+        return producersSlowed.get();
+    }
+
+    /** Returns how often an event was queued beyond the capacity, because no room became available in time. */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /** Returns the average time between queueing an event and starting to run it. */
+    public long getAverageLatency(TimeUnit unit) {
+        long run = eventsRun.get();
+        return run == 0 ? 0 : unit.convert(totalLatencyNanos.get() / run, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time between queueing an event and starting to run it. */
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerDispatcher{" + name + ", threads=" + getNumThreads() + ", queued=" + getQueueDepth()
+                + ", maxQueued=" + getMaxQueueDepth() + ", run=" + getEventsRun() + ", coalesced="
+                + getEventsCoalesced() + ", overflows=" + getOverflows() + ", avgLatencyMillis="
+                + getAverageLatency(TimeUnit.MILLISECONDS) + "}";
+    }
+
+    private boolean isDispatcherThread() {
+        return threads.contains(Thread.currentThread());
+    }
+
+    /** Takes room for an event, returns false if it is queued beyond the capacity. */
+    private boolean acquireRoom() {
+        if (room.tryAcquire())
+            return true;
+        // Listeners that queue events of their own aren't slowed down, as that would only delay other listeners.
+        long maxWait = maxWaitMillis;
+        if (maxWait > 0 && !overflowed && !isDispatcherThread()) {
+            producersSlowed.incrementAndGet();
+            if (Uninterruptibles.tryAcquireUninterruptibly(room, maxWait, TimeUnit.MILLISECONDS))
+                return true;
+            // The listeners are stuck, waiting for them again would only stall the producers.
+            overflowed = true;
+        }
+        if (overflows.getAndIncrement() == 0)
+            log.warn("{} has more than {} queued events, check for deadlocked or slow event listeners", name,
+                    capacity);
+        return false;
+    }
+
+    private static class CoalescingTask implements Runnable {
+        private final Object key;
+        private final Runnable task;
+
+        private CoalescingTask(Object key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static class Event {
+        private final long sequence;
+        private final Runnable task;
+        private final long queuedNanos = System.nanoTime();
+        private final boolean hasRoom;
+        @Nullable private final Object coalescingKey;
+
+        private Event(long sequence, Runnable task, boolean hasRoom, @Nullable Object coalescingKey) {
+            this.sequence = sequence;
+            this.task = task;
+            this.hasRoom = hasRoom;
+            this.coalescingKey = coalescingKey;
+        }
+    }
+
+    /**
+     * The events of one listener. It is in the ready queue while it has events and none of them is running, ordered
+     * by the sequence number of its oldest event.
+     */
+    private class SerialExecutor implements Executor {
+        // All guarded by this.
+        private final ArrayDeque<Event> events = new ArrayDeque<>();
+        private final Set<Object> waitingKeys = new HashSet<>();
+        private boolean scheduled;
+        private boolean running;
+        // Only changes while this isn't in the ready queue.
+        private volatile long headSequence;
+
+        @Override
+        public void execute(@Nonnull Runnable command) {
+            checkNotNull(command);
+            Object key = coalescing && command instanceof CoalescingTask ? ((CoalescingTask) command).key : null;
+            if (key != null) {
+                synchronized (this) {
+                    if (waitingKeys.contains(key)) {
+                        eventsCoalesced.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+            boolean hasRoom = acquireRoom();
+            int depth = getQueueDepth();
+            if (depth > maxQueueDepth)
+                maxQueueDepth = depth;
+            synchronized (this) {
+                if (key != null && !waitingKeys.add(key)) {
+                    // An equal event was queued while we were waiting for room.
+                    if (hasRoom)
+                        room.release();
+                    eventsCoalesced.incrementAndGet();
+                    return;
+                }
+                long seq = sequence.getAndIncrement();
+                unfinished.add(seq);
+                events.add(new Event(seq, command, hasRoom, key));
+                if (!scheduled && !running)
+                    schedule();
+            }
+        }
+
+        // Called with the monitor held.
+        private void schedule() {
+            headSequence = events.peek().sequence;
+            scheduled = true;
+            ready.add(this);
+        }
+
+        private void runNext() {
+            Event event;
+            synchronized (this) {
+                scheduled = false;
+                event = events.poll();
+                if (event == null)
+                    return;
+                running = true;
+                if (event.coalescingKey != null)
+                    waitingKeys.remove(event.coalescingKey);
+            }
+            if (event.hasRoom) {
+                room.release();
+                overflowed = false;
+            }
+            long latency = System.nanoTime() - event.queuedNanos;
+            totalLatencyNanos.addAndGet(latency);
+            if (latency > maxLatencyNanos)
+                maxLatencyNanos = latency;
+            currentEvent.set(event.sequence);
+            try {
+                event.task.run();
+            } catch (Throwable throwable) {
+                log.warn("Exception in " + name, throwable);
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(Thread.currentThread(), throwable);
+            } finally {
+                currentEvent.remove();
+                eventsRun.incrementAndGet();
+                synchronized (this) {
+                    running = false;
+                    if (!events.isEmpty())
+                        schedule();
+                }
+                unfinished.remove(event.sequence);
+                if (waiters.get() > 0) {
+                    finishedLock.lock();
+                    try {
+                        finished.signalAll();
+                    } finally {
+                        finishedLock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @SuppressWarnings("InfiniteLoopStatement")
+        @Override
+        public void run() {
+            while (true)
+                Uninterruptibles.takeUninterruptibly(ready).runNext();
+        }
+    }
+}
@@ -22,7 +22,8 @@ import java.util.concurrent.Executor;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
-* A simple wrapper around a listener and an executor, with some utility methods.
+* A simple wrapper around a listener and an executor, with some utility methods. If the executor is a
+* {@link ListenerDispatcher}, the listener gets its own serial executor on it.
 */
 public class ListenerRegistration<T> {
     public final T listener;
@@ -30,7 +31,8 @@ public class ListenerRegistration<T> {
 
     public ListenerRegistration(T listener, Executor executor) {
         this.listener = checkNotNull(listener);
-        this.executor = checkNotNull(executor);
+        this.executor = executor instanceof ListenerDispatcher ? ((ListenerDispatcher) executor).newSerialExecutor()
+                : checkNotNull(executor);
     }
 
     /** Returns true if the listener was removed, else false. */
@@ -43,9 +43,13 @@ public class Threading {
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * An executor with one thread that is intended for running event listeners on. This ensures all event listener code
-     * runs without any locks being held. It's intended for the API user to run things on. Callbacks registered by
-     * bitcoinj internally shouldn't normally run here, although currently there are a few exceptions.
+     * An executor that is intended for running event listeners on. This ensures all event listener code runs without
+     * any locks being held. It's intended for the API user to run things on. Callbacks registered by bitcoinj
+     * internally shouldn't normally run here, although currently there are a few exceptions.
+     *
+     * <p>By default this is a {@link ListenerDispatcher} with one thread, which runs all listeners in the order their
+     * events happened. Replace it with a dispatcher with more threads, before registering listeners, to run
+     * independent listeners in parallel; see {@link #setUserThreads(int)}.</p>
      */
     public static Executor USER_THREAD;
 
@@ -63,6 +67,11 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
+        if (USER_THREAD instanceof ListenerDispatcher) {
+            // Listeners may run in parallel, so a dummy task doesn't mean earlier ones are done.
+            ((ListenerDispatcher) USER_THREAD).waitForEventsQueuedBefore();
+            return;
+        }
         final CountDownLatch latch = new CountDownLatch(1);
         USER_THREAD.execute(new Runnable() {
             @Override public void run() {
@@ -83,6 +92,20 @@ public class Threading {
     @Nullable
     public static volatile Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
+    /**
+     * Replaces {@link #USER_THREAD} with a {@link ListenerDispatcher} with the given number of threads. Listeners
+     * that were registered before keep running on the previous executor.
+     */
+    public static ListenerDispatcher setUserThreads(int numThreads) {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("bitcoinj user thread", numThreads);
+        USER_THREAD = dispatcher;
+        return dispatcher;
+    }
+
+    /**
+     * A single thread that runs all tasks in order. This was the {@link #USER_THREAD} before
+     * {@link ListenerDispatcher} replaced it.
+     */
     public static class UserThread extends Thread implements Executor {
         private static final Logger log = LoggerFactory.getLogger(UserThread.class);
         // 10,000 pending tasks is entirely arbitrary and may or may not be appropriate for the device we're
@@ -132,7 +155,7 @@ public class Threading {
         // from that point onwards.
         throwOnLockCycles();
 
-        USER_THREAD = new UserThread();
+        setUserThreads(1);
         SAME_THREAD = new Executor() {
             @Override
             public void execute(@Nonnull Runnable runnable) {
@@ -295,14 +295,17 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
         Map<ECKey, Protos.Key.Builder> result = new LinkedHashMap<>();
-        for (ECKey ecKey : hashToKeys.values()) {
-            Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
-            protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
-            result.put(ecKey, protoKey);
-        }
+        for (ECKey ecKey : hashToKeys.values())
+            result.put(ecKey, serializeKey(ecKey));
         return result;
     }
 
+    /*package*/ static Protos.Key.Builder serializeKey(ECKey ecKey) {
+        Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
+        protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
+        return protoKey;
+    }
+
     @Override
     public List<Protos.Key> serializeToProtobuf() {
         Collection<Protos.Key.Builder> builders = serializeToEditableProtobufs().values();
@@ -845,35 +845,54 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 		}
 		Map<ECKey, Protos.Key.Builder> keys = basicKeyChain.serializeToEditableProtobufs();
 		for (Map.Entry<ECKey, Protos.Key.Builder> entry : keys.entrySet()) {
-			DeterministicKey key = (DeterministicKey) entry.getKey();
-			Protos.Key.Builder proto = entry.getValue();
-			proto.setType(Protos.Key.Type.DETERMINISTIC_KEY);
-			final Protos.DeterministicKey.Builder detKey = proto.getDeterministicKeyBuilder();
-			detKey.setChainCode(ByteString.copyFrom(key.getChainCode()));
-			for (ChildNumber num : key.getPath())
-				detKey.addPath(num.i());
-			if (key.equals(externalParentKey)) {
-				detKey.setIssuedSubkeys(issuedExternalKeys);
-				detKey.setLookaheadSize(lookaheadSize);
-				detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
-			} else if (key.equals(internalParentKey)) {
-				detKey.setIssuedSubkeys(issuedInternalKeys);
-				detKey.setLookaheadSize(lookaheadSize);
-				detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
-			}
+			Protos.Key.Builder proto = serializeKey((DeterministicKey) entry.getKey(), entry.getValue());
 			// Flag the very first key of following keychain.
 			if (entries.isEmpty() && isFollowing()) {
-				detKey.setIsFollowing(true);
-			}
-			if (key.getParent() != null) {
-				// HD keys inherit the timestamp of their parent if they have one, so no need to serialize it.
-				proto.clearCreationTimestamp();
+				proto.getDeterministicKeyBuilder().setIsFollowing(true);
 			}
 			entries.add(proto.build());
 		}
 		return entries;
 	}
 
+	private Protos.Key.Builder serializeKey(DeterministicKey key, Protos.Key.Builder proto) {
+		proto.setType(Protos.Key.Type.DETERMINISTIC_KEY);
+		final Protos.DeterministicKey.Builder detKey = proto.getDeterministicKeyBuilder();
+		detKey.setChainCode(ByteString.copyFrom(key.getChainCode()));
+		for (ChildNumber num : key.getPath())
+			detKey.addPath(num.i());
+		if (key.equals(externalParentKey)) {
+			detKey.setIssuedSubkeys(issuedExternalKeys);
+			detKey.setLookaheadSize(lookaheadSize);
+			detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
+		} else if (key.equals(internalParentKey)) {
+			detKey.setIssuedSubkeys(issuedInternalKeys);
+			detKey.setLookaheadSize(lookaheadSize);
+			detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
+		}
+		if (key.getParent() != null) {
+			// HD keys inherit the timestamp of their parent if they have one, so no need to serialize it.
+			proto.clearCreationTimestamp();
+		}
+		return proto;
+	}
+
+	/**
+	 * Returns the external and internal parent keys as serialized by {@link #serializeToProtobuf()}. They carry the
+	 * numbers of issued keys, from which all other keys of the chain are derived again when it is loaded.
+	 */
+	/*package*/ List<Protos.Key> serializeParentKeysToProtobuf() {
+		lock.lock();
+		try {
+			List<Protos.Key> result = newArrayList();
+			result.add(serializeKey(externalParentKey, BasicKeyChain.serializeKey(externalParentKey)).build());
+			result.add(serializeKey(internalParentKey, BasicKeyChain.serializeKey(internalParentKey)).build());
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	static List<DeterministicKeyChain> fromProtobuf(List<Protos.Key> keys, @Nullable KeyCrypter crypter) throws UnreadableWalletException {
 		return fromProtobuf(keys, crypter, new DefaultKeyChainFactory());
 	}
@@ -1291,16 +1310,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 		log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
 				needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-		List<DeterministicKey> result  = new ArrayList<>(needed);
 		final Stopwatch watch = Stopwatch.createStarted();
-		int nextChild = numChildren;
-		for (int i = 0; i < needed; i++) {
-			DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-			key = key.dropPrivateBytes();
+		// Derive all keys in one batch, which is spread over all cores. Only public keys are needed here.
+		List<DeterministicKey> result = HDKeyDerivation.deriveChildKeys(parent, numChildren, needed);
+		for (DeterministicKey key : result)
 			hierarchy.putKey(key);
-			result.add(key);
-			nextChild = key.getChildNumber().num() + 1;
-		}
 		watch.stop();
 		log.info("Took {}", watch);
 		return result;
@@ -678,6 +678,38 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Returns protobufs for the given imported keys and for the parent keys of each deterministic chain, which carry
+     * the numbers of issued keys. Applied to an earlier result of {@link #serializeToProtobuf()} of the same group,
+     * they bring it up to date as long as the group wasn't restructured (see {@link #getStructure()}) and no keys were
+     * removed: all other deterministic keys are derived again when the group is loaded.
+     */
+    /*package*/ List<Protos.Key> serializeKeyChangesToProtobuf(Collection<ECKey> importedKeys) {
+        List<Protos.Key> result = Lists.newArrayList();
+        for (ECKey key : importedKeys)
+            result.add(BasicKeyChain.serializeKey(key).build());
+        for (DeterministicKeyChain chain : chains)
+            result.addAll(chain.serializeParentKeysToProtobuf());
+        return result;
+    }
+
+    /**
+     * Returns the basic chain, the deterministic chains and the key crypter. These are replaced when the group is
+     * restructured, e.g. by adding a chain or encrypting the group, so the list is no longer equal to an earlier one.
+     */
+    /*package*/ List<Object> getStructure() {
+        List<Object> structure = Lists.newArrayList();
+        structure.add(basic);
+        structure.add(keyCrypter);
+        structure.addAll(chains);
+        return structure;
+    }
+
+    /** Returns the number of keys that have been imported into the wallet. */
+    /*package*/ int numImportedKeys() {
+        return basic.numKeys();
+    }
+
     static KeyChainGroup fromProtobufUnencrypted(NetworkParameters params, List<Protos.Key> keys) throws UnreadableWalletException {
         return fromProtobufUnencrypted(params, keys, new DefaultKeyChainFactory());
     }
@@ -234,6 +234,20 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return result;
     }
 
+    @Override
+    /*package*/ List<Protos.Key> serializeParentKeysToProtobuf() {
+        List<Protos.Key> result = newArrayList();
+        lock.lock();
+        try {
+            for (DeterministicKeyChain chain : followingKeyChains)
+                result.addAll(chain.serializeParentKeysToProtobuf());
+            result.addAll(super.serializeParentKeysToProtobuf());
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
     @Override
     protected void formatAddresses(boolean includePrivateKeys, @Nullable KeyParameter aesKey, NetworkParameters params,
             StringBuilder builder2) {
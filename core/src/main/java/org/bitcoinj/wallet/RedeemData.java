@@ -50,11 +50,12 @@ public class RedeemData {
     }
 
     /**
-     * Creates RedeemData for P2PKH or P2PK input. Provided key is a single private key needed
-     * to spend such inputs and provided program should be a proper CHECKSIG program.
+     * Creates RedeemData for P2PKH, P2WPKH or P2PK input. Provided key is a single private key needed
+     * to spend such inputs and provided program should be a proper CHECKSIG program or P2WPKH program.
      */
     public static RedeemData of(ECKey key, Script program) {
-        checkArgument(ScriptPattern.isPayToPubKeyHash(program) || ScriptPattern.isPayToPubKey(program));
+        checkArgument(ScriptPattern.isPayToPubKeyHash(program) || ScriptPattern.isPayToWitnessPubKeyHash(program)
+                || ScriptPattern.isPayToPubKey(program));
         return key != null ? new RedeemData(Collections.singletonList(key), program) : null;
     }
 
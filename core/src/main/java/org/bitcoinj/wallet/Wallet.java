@@ -156,9 +156,36 @@ public class Wallet extends BaseTaggableObject
 	// All transactions together.
 	protected final Map<Sha256Hash, Transaction> transactions;
 
+	// Hashes of the transactions that were added, moved between pools, removed or changed confidence (other than
+	// depth) since takeChangedTransactions() was last called, or null if nobody is recording changes. Used by
+	// WalletJournal so that saving costs time in proportion to what changed.
+	@GuardedBy("lock") @Nullable private Set<Sha256Hash> changedTransactions;
+	@GuardedBy("lock") private boolean transactionsCleared;
+
+	// Spent and dead transactions that were read from the wallet file but not materialized yet, and the number of
+	// blocks they missed since. They are all materialized the first time one of them, or a whole pool that may hold
+	// them, is accessed. Double spends against them only materialize the ones they conflict with.
+	// See WalletProtobufSerializer#setDeferTransactionHistory(boolean).
+	@GuardedBy("lock") @Nullable private DeferredTransactions deferredTransactions;
+	@GuardedBy("lock") private int deferredBlocks;
+
 	// All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-	// Used to speed up various calculations.
-	protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+	// Used to speed up various calculations. It keeps a running total of its value, so the ESTIMATED balance is
+	// available without walking the outputs.
+	protected final HashSet<TransactionOutput> myUnspents = new UnspentOutputSet();
+
+	// Bumped whenever anything that can affect a balance or a snapshot changes: the pools, the set of unspent
+	// outputs, the confidence of a transaction, the last block seen, the keys or the coin selector. Balances computed
+	// for the current version are cached, so repeated calls to getBalance (e.g. for each balance future) don't rerun
+	// the coin selector.
+	private final AtomicLong stateVersion = new AtomicLong();
+	@GuardedBy("lock") private final EnumMap<BalanceType, Coin> balanceCache = new EnumMap<>(BalanceType.class);
+	@GuardedBy("lock") private long balanceCacheVersion = -1;
+	@GuardedBy("lock") private long balanceCachePendingState;
+
+	// The snapshot built last, see getSnapshot(). It is stale once stateVersion moves past its version, and the next
+	// call to getSnapshot() builds a new one.
+	@Nullable private volatile WalletSnapshot snapshot;
 
 	// Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
 	// to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -185,7 +212,8 @@ public class Wallet extends BaseTaggableObject
 	protected final NetworkParameters params;
 
 	@Nullable private Sha256Hash lastBlockSeenHash;
-	private int lastBlockSeenHeight;
+	// Volatile so that the depth of building transactions can be derived from it without the wallet lock.
+	private volatile int lastBlockSeenHeight;
 	private long lastBlockSeenTimeSecs;
 
 	private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
@@ -200,6 +228,8 @@ public class Wallet extends BaseTaggableObject
 			= new CopyOnWriteArrayList<>();
 	private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>> transactionConfidenceListeners
 			= new CopyOnWriteArrayList<>();
+	private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceBatchEventListener>> transactionConfidenceBatchListeners
+			= new CopyOnWriteArrayList<>();
 
 	// A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
 	// as a convenience to API users so they don't have to register on every transaction themselves.
@@ -221,6 +251,30 @@ public class Wallet extends BaseTaggableObject
 	private int onWalletChangedSuppressions;
 	private boolean insideReorg;
 	private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+	// If set, building transactions derive their depth from the last block seen and confidence changes are also
+	// collected here to be reported once per block, see setPerBlockConfidenceEvents().
+	private boolean perBlockConfidenceEvents;
+	private final Set<Sha256Hash> batchedConfidenceChanges = new HashSet<>();
+	// The confidences deriving their depth from the last block seen which have listeners other than ours, so that only
+	// they are told about new blocks. Updated by the confidences themselves, without the wallet lock.
+	private final Set<TransactionConfidence> depthListenedConfidences
+			= Collections.newSetFromMap(new ConcurrentHashMap<TransactionConfidence, Boolean>());
+	private final TransactionConfidence.ChainHeightSource lastBlockSeenHeightSource
+			= new TransactionConfidence.ChainHeightSource() {
+		@Override
+		public int getBestChainHeight() {
+			return lastBlockSeenHeight;
+		}
+
+		@Override
+		public void onListenerCountChanged(TransactionConfidence confidence, int listenerCount) {
+			// Each of our transactions carries txConfidenceListener, which doesn't care about depth.
+			if (listenerCount > 1)
+				depthListenedConfidences.add(confidence);
+			else
+				depthListenedConfidences.remove(confidence);
+		}
+	};
 	protected volatile WalletFiles vFileManager;
 	// Object that is used to send transactions asynchronously when the wallet requires it.
 	protected volatile TransactionBroadcaster vTransactionBroadcaster;
@@ -388,16 +442,23 @@ public class Wallet extends BaseTaggableObject
 		if (this.keyChainGroup.numKeys() == 0)
 			this.keyChainGroup.createAndActivateNewHDChain();
 		watchedScripts = Sets.newHashSet();
-		unspent = new HashMap<>();
-		spent = new HashMap<>();
-		pending = new HashMap<>();
-		dead = new HashMap<>();
-		transactions = new HashMap<>();
+		unspent = new TransactionMap(false);
+		spent = new TransactionMap(true);
+		pending = new TransactionMap(false);
+		dead = new TransactionMap(true);
+		transactions = new TransactionMap(true);
 		extensions = new HashMap<>();
 		// Use a linked hash map to ensure ordering of event listeners is correct.
 		confidenceChanged = new LinkedHashMap<>();
 		signers = new ArrayList<>();
 		addTransactionSigner(new LocalTransactionSigner());
+		// New keys can make outputs we already know about spendable.
+		this.keyChainGroup.addEventListener(new KeyChainEventListener() {
+			@Override
+			public void onKeysAdded(List<ECKey> keys) {
+				invalidateCachedState();
+			}
+		}, Threading.SAME_THREAD);
 		createTransientState();
 	}
 
@@ -412,11 +473,14 @@ public class Wallet extends BaseTaggableObject
 				// doesn't necessarily know at that point which wallets contain which transactions, so it's up
 				// to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
 				// so we'll queue up a wallet change event in other parts of the code.
+				invalidateCachedState();
 				if (reason == ChangeReason.SEEN_PEERS) {
 					lock.lock();
 					try {
 						checkBalanceFuturesLocked(null);
 						Transaction tx = getTransaction(confidence.getTransactionHash());
+						if (tx != null)
+							recordTransactionChange(tx);
 						queueOnTransactionConfidenceChanged(tx);
 						maybeQueueOnWalletChanged();
 					} finally {
@@ -676,7 +740,10 @@ public class Wallet extends BaseTaggableObject
 	public boolean removeKey(ECKey key) {
 		keyChainGroupLock.lock();
 		try {
-			return keyChainGroup.removeImportedKey(key);
+			boolean removed = keyChainGroup.removeImportedKey(key);
+			if (removed)
+				invalidateCachedState();
+			return removed;
 		} finally {
 			keyChainGroupLock.unlock();
 		}
@@ -1332,6 +1399,105 @@ public class Wallet extends BaseTaggableObject
 		}
 	}
 
+	/** Starts or stops recording which transactions change, see {@link #takeChangedTransactions()}. */
+	void setRecordingChanges(boolean recording) {
+		lock.lock();
+		try {
+			changedTransactions = recording ? new HashSet<Sha256Hash>() : null;
+			transactionsCleared = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the hashes of the transactions that were added, moved between pools, removed or had their confidence
+	 * changed since the last call, and starts recording afresh. Returns null if all transactions were cleared in the
+	 * meantime. Changes to the depth of building transactions are not recorded.
+	 */
+	@Nullable
+	Set<Sha256Hash> takeChangedTransactions() {
+		checkState(lock.isHeldByCurrentThread());
+		checkState(changedTransactions != null, "Not recording changes");
+		Set<Sha256Hash> changed = transactionsCleared ? null : changedTransactions;
+		changedTransactions = new HashSet<>();
+		transactionsCleared = false;
+		return changed;
+	}
+
+	/**
+	 * Records a change to the given transaction, and to the wallet transactions it spends from, as spending them
+	 * changes which of their outputs are available.
+	 */
+	private void recordTransactionChange(Transaction tx) {
+		if (changedTransactions == null)
+			return;
+		changedTransactions.add(tx.getHash());
+		for (TransactionInput input : tx.getInputs()) {
+			Sha256Hash parent = input.getOutpoint().getHash();
+			if (transactions.containsKey(parent))
+				changedTransactions.add(parent);
+		}
+	}
+
+	/** Returns the transaction with the given hash along with the pool it is in, or null if there is none. */
+	@Nullable
+	WalletTransaction getWalletTransaction(Sha256Hash hash) {
+		lock.lock();
+		try {
+			Transaction tx;
+			if ((tx = unspent.get(hash)) != null)
+				return new WalletTransaction(Pool.UNSPENT, tx);
+			if ((tx = spent.get(hash)) != null)
+				return new WalletTransaction(Pool.SPENT, tx);
+			if ((tx = pending.get(hash)) != null)
+				return new WalletTransaction(Pool.PENDING, tx);
+			if ((tx = dead.get(hash)) != null)
+				return new WalletTransaction(Pool.DEAD, tx);
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** See {@link KeyChainGroup#getStructure()}. */
+	List<Object> getKeyChainGroupStructure() {
+		keyChainGroupLock.lock();
+		try {
+			return keyChainGroup.getStructure();
+		} finally {
+			keyChainGroupLock.unlock();
+		}
+	}
+
+	/** Returns the number of keys that have been imported into the wallet. */
+	int getNumImportedKeys() {
+		keyChainGroupLock.lock();
+		try {
+			return keyChainGroup.numImportedKeys();
+		} finally {
+			keyChainGroupLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns what {@link KeyChainGroup#serializeKeyChangesToProtobuf(Collection)} does for the given newly imported
+	 * keys, or null if that isn't enough to bring a serialization of the keys taken with the given structure and
+	 * number of imported keys up to date.
+	 */
+	@Nullable
+	List<Protos.Key> serializeKeyChangesToProtobuf(List<Object> structure, int numImportedKeys, List<ECKey> importedKeys) {
+		keyChainGroupLock.lock();
+		try {
+			if (!keyChainGroup.getStructure().equals(structure)
+					|| keyChainGroup.numImportedKeys() != numImportedKeys + importedKeys.size())
+				return null;
+			return keyChainGroup.serializeKeyChangesToProtobuf(importedKeys);
+		} finally {
+			keyChainGroupLock.unlock();
+		}
+	}
+
 	/** Saves the wallet first to the given temp file, then renames to the dest file. */
 	public void saveToFile(File temp, File destFile) throws IOException {
 		FileOutputStream stream = null;
@@ -1462,10 +1628,23 @@ public class Wallet extends BaseTaggableObject
 	 */
 	public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
 									  @Nullable WalletFiles.Listener eventListener) {
+		return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+	}
+
+	/**
+	 * <p>Like {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}, but if journaled is true only
+	 * the changes since the previous save are appended to a journal next to the file, which is occasionally compacted
+	 * into the file itself. See {@link WalletJournal} for details. {@link #loadFromFile(File, WalletExtension...)}
+	 * replays the journal.</p>
+	 *
+	 * <p>The event listener is only called when the journal is compacted.</p>
+	 */
+	public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+									  @Nullable WalletFiles.Listener eventListener, boolean journaled) {
 		lock.lock();
 		try {
 			checkState(vFileManager == null, "Already auto saving this wallet.");
-			WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+			WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
 			if (eventListener != null)
 				manager.setListener(eventListener);
 			vFileManager = manager;
@@ -1548,6 +1727,8 @@ public class Wallet extends BaseTaggableObject
 	 * @param walletExtensions extensions possibly added to the wallet.
 	 */
 	public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+		if (WalletJournal.getJournalFile(file).exists())
+			return WalletJournal.loadFromFile(file, walletExtensions);
 		try {
 			FileInputStream stream = null;
 			try {
@@ -1587,7 +1768,8 @@ public class Wallet extends BaseTaggableObject
 	public void isConsistentOrThrow() throws IllegalStateException {
 		lock.lock();
 		try {
-			Set<Transaction> transactions = getTransactions(true);
+			// Deferred transactions are checked once they are materialized.
+			Set<Transaction> transactions = getMaterializedTransactions();
 
 			Set<Sha256Hash> hashes = new HashSet<>();
 			for (Transaction tx : transactions) {
@@ -1599,18 +1781,19 @@ public class Wallet extends BaseTaggableObject
 				throw new IllegalStateException("Two transactions with same hash");
 			}
 
-			int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
+			int size2 = materialized(unspent).size() + materialized(spent).size() + materialized(pending).size()
+					+ materialized(dead).size();
 			if (size1 != size2) {
 				throw new IllegalStateException("Inconsistent wallet sizes: " + size1 + ", " + size2);
 			}
 
-			for (Transaction tx : unspent.values()) {
+			for (Transaction tx : materialized(unspent)) {
 				if (!isTxConsistent(tx, false)) {
 					throw new IllegalStateException("Inconsistent unspent tx: " + tx.getHashAsString());
 				}
 			}
 
-			for (Transaction tx : spent.values()) {
+			for (Transaction tx : materialized(spent)) {
 				if (!isTxConsistent(tx, true)) {
 					throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
 				}
@@ -1860,9 +2043,16 @@ public class Wallet extends BaseTaggableObject
 		for (TransactionInput input : tx.getInputs()) {
 			outpoints.add(input.getOutpoint());
 		}
+		// Deferred transactions are only materialized if they spend one of these outpoints.
+		if (deferredTransactions != null && ((TransactionMap) candidates).mayHoldDeferred) {
+			Set<Sha256Hash> deferredSpenders = deferredTransactions.findSpendersOf(outpoints);
+			deferredSpenders.remove(tx.getHash());
+			if (!deferredSpenders.isEmpty())
+				materializeDeferredTransactions(deferredSpenders);
+		}
 		// Now for each pending transaction, see if it shares any outpoints with this tx.
 		Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-		for (Transaction p : candidates.values()) {
+		for (Transaction p : materialized(candidates)) {
 			if (p.equals(tx))
 				continue;
 			for (TransactionInput input : p.getInputs()) {
@@ -2024,15 +2214,16 @@ public class Wallet extends BaseTaggableObject
 				// When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
 				// change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
 				// Consider dependency chains.
+				// Deferred transactions are confirmed or dead, so none of them can lead to a pending one.
 				Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-				addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+				addTransactionsDependingOn(currentTxDependencies, getMaterializedTransactions());
 				currentTxDependencies.remove(tx);
 				List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
 				for (Transaction txDependency : currentTxDependenciesSorted) {
 					if (txDependency.getConfidence().getConfidenceType().equals(ConfidenceType.IN_CONFLICT)) {
 						if (isNotSpendingTxnsInConfidenceType(txDependency, ConfidenceType.IN_CONFLICT)) {
 							txDependency.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-							confidenceChanged.put(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
+							markConfidenceChanged(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
 						}
 					}
 				}
@@ -2044,7 +2235,7 @@ public class Wallet extends BaseTaggableObject
 		// Side chains don't affect confidence.
 		if (bestChain) {
 			// notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-			confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+			markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
 		} else {
 			maybeQueueOnWalletChanged();
 		}
@@ -2057,7 +2248,7 @@ public class Wallet extends BaseTaggableObject
 		//    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
 		//    listeners.
 		if (!insideReorg && bestChain) {
-			Coin newBalance = getBalance();  // This is slow.
+			Coin newBalance = getBalance();
 			log.info("Balance is now: " + newBalance.toFriendlyString());
 			if (!wasPending) {
 				int diff = valueDifference.signum();
@@ -2126,6 +2317,14 @@ public class Wallet extends BaseTaggableObject
 		return false;
 	}
 
+	private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+		confidenceChanged.put(tx, reason);
+		invalidateCachedState();
+		// The depth of building transactions follows from the height they appeared at and the last block seen.
+		if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+			recordTransactionChange(tx);
+	}
+
 	private void informConfidenceListenersIfNotReorganizing() {
 		if (insideReorg)
 			return;
@@ -2133,10 +2332,53 @@ public class Wallet extends BaseTaggableObject
 			final Transaction tx = entry.getKey();
 			tx.getConfidence().queueListeners(entry.getValue());
 			queueOnTransactionConfidenceChanged(tx);
+			if (perBlockConfidenceEvents)
+				batchedConfidenceChanges.add(tx.getHash());
 		}
 		confidenceChanged.clear();
 	}
 
+	/**
+	 * <p>Switches to reporting confidence changes once per block, which scales to wallets with many transactions.
+	 * While enabled:</p>
+	 *
+	 * <ul>
+	 *     <li>the depth of building transactions is derived from the height they appeared at and the last block seen
+	 *     by this wallet, rather than being incremented for each of them on every block.</li>
+	 *     <li>{@link TransactionConfidenceEventListener}s are no longer called for every building transaction on
+	 *     every block, only for other changes. Listeners added to a {@link TransactionConfidence} itself, and so
+	 *     depth futures, still see every depth change.</li>
+	 *     <li>{@link TransactionConfidenceBatchEventListener}s are called once per block with the transactions whose
+	 *     confidence changed in another way.</li>
+	 * </ul>
+	 *
+	 * <p>Disabled by default.</p>
+	 */
+	public void setPerBlockConfidenceEvents(boolean enabled) {
+		lock.lock();
+		try {
+			if (enabled == perBlockConfidenceEvents)
+				return;
+			perBlockConfidenceEvents = enabled;
+			batchedConfidenceChanges.clear();
+			// Deferred transactions are switched over by addWalletTransaction() once they are materialized.
+			for (Transaction tx : getMaterializedTransactions())
+				tx.getConfidence().setChainHeightSource(enabled ? lastBlockSeenHeightSource : null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns whether confidence changes are reported once per block, see {@link #setPerBlockConfidenceEvents(boolean)}. */
+	public boolean isPerBlockConfidenceEvents() {
+		lock.lock();
+		try {
+			return perBlockConfidenceEvents;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	/**
 	 * <p>Called by the {@link BlockChain} when a new block on the best chain is seen, AFTER relevant wallet
 	 * transactions are extracted and sent to us UNLESS the new block caused a re-org, in which case this will
@@ -2153,36 +2395,65 @@ public class Wallet extends BaseTaggableObject
 			return;
 		lock.lock();
 		try {
+			// Coinbase outputs may have matured.
+			invalidateCachedState();
 			// Store the new block hash.
 			setLastBlockSeenHash(newBlockHash);
 			setLastBlockSeenHeight(block.getHeight());
 			setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
 			// Notify all the BUILDING transactions of the new block.
-			// This is so that they can update their depth.
-			Set<Transaction> transactions = getTransactions(true);
-			for (Transaction tx : transactions) {
-				if (ignoreNextNewBlock.contains(tx.getHash())) {
-					// tx was already processed in receive() due to it appearing in this block, so we don't want to
-					// increment the tx confidence depth twice, it'd result in miscounting.
-					ignoreNextNewBlock.remove(tx.getHash());
-				} else {
-					TransactionConfidence confidence = tx.getConfidence();
-					if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-						// Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-						// pending again. We could clear this data the moment a tx is seen in the block chain, but
-						// in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-						// pending tx has zero confidence at all, which would not be right: we expect it to be
-						// included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-						// but this way is backwards compatible with existing software, and the new state probably
-						// wouldn't mean anything different to just remembering peers anyway.
-						if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+			// This is so that they can update their depth. Deferred transactions catch up once materialized.
+			if (deferredTransactions != null)
+				deferredBlocks++;
+			if (perBlockConfidenceEvents && !insideReorg) {
+				// The depth of building transactions is derived from the last block seen already, so only the ones
+				// with listeners of their own need to hear about the block. The wallet listeners get a single event
+				// for the whole block below.
+				ignoreNextNewBlock.clear();
+				for (TransactionConfidence confidence : depthListenedConfidences) {
+					if (confidence.getChainHeightSource() == lastBlockSeenHeightSource
+							&& confidence.getConfidenceType() == ConfidenceType.BUILDING)
+						confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+				}
+				// Forgetting the seen peers of buried transactions (see below) only saves memory, so looking for
+				// them once per event horizon is enough.
+				if (block.getHeight() % context.getEventHorizon() == 0) {
+					for (Transaction tx : getMaterializedTransactions()) {
+						TransactionConfidence confidence = tx.getConfidence();
+						if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+								&& confidence.getDepthInBlocks() > context.getEventHorizon())
 							confidence.clearBroadcastBy();
-						confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+					}
+				}
+			} else {
+				for (Transaction tx : getMaterializedTransactions()) {
+					if (ignoreNextNewBlock.contains(tx.getHash())) {
+						// tx was already processed in receive() due to it appearing in this block, so we don't want
+						// to increment the tx confidence depth twice, it'd result in miscounting.
+						ignoreNextNewBlock.remove(tx.getHash());
+					} else {
+						TransactionConfidence confidence = tx.getConfidence();
+						if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+							// A derived depth already includes this block.
+							boolean derived = confidence.getChainHeightSource() == lastBlockSeenHeightSource;
+							int depth = derived ? confidence.getDepthInBlocks() : confidence.incrementDepthInBlocks();
+							// Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+							// pending again. We could clear this data the moment a tx is seen in the block chain,
+							// but in cases where the chain re-orgs, this would mean that wallets would perceive a
+							// newly pending tx has zero confidence at all, which would not be right: we expect it to
+							// be included once again. We could have a separate was-in-chain-and-now-isn't confidence
+							// type but this way is backwards compatible with existing software, and the new state
+							// probably wouldn't mean anything different to just remembering peers anyway.
+							if (depth > context.getEventHorizon())
+								confidence.clearBroadcastBy();
+							markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+						}
 					}
 				}
 			}
 
 			informConfidenceListenersIfNotReorganizing();
+			maybeQueueOnTransactionConfidencesChanged();
 			maybeQueueOnWalletChanged();
 
 			if (hardSaveOnNextBlock) {
@@ -2400,7 +2671,7 @@ public class Wallet extends BaseTaggableObject
 				maybeMovePool(connected, "kill");
 			}
 			tx.getConfidence().setOverridingTransaction(overridingTx);
-			confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+			markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
 			// Now kill any transactions we have that depended on this one.
 			for (TransactionOutput deadOutput : tx.getOutputs()) {
 				if (myUnspents.remove(deadOutput))
@@ -2492,7 +2763,7 @@ public class Wallet extends BaseTaggableObject
 				// Add tx to the dead pool and schedule confidence listener notifications.
 				log.info("->dead: {}", tx.getHashAsString());
 				tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
-				confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+				markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
 				addWalletTransaction(Pool.DEAD, tx);
 			} else if (!doubleSpendPendingTxns.isEmpty() ||
 					!isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
@@ -2505,14 +2776,14 @@ public class Wallet extends BaseTaggableObject
 				addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
 				for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
 					doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
-					confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+					markConfidenceChanged(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
 				}
 			} else {
 				// No conflict detected.
 				// Add to the pending pool and schedule confidence listener notifications.
 				log.info("->pending: {}", tx.getHashAsString());
 				tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-				confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+				markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
 				addWalletTransaction(Pool.PENDING, tx);
 			}
 			if (log.isInfoEnabled())
@@ -2685,6 +2956,26 @@ public class Wallet extends BaseTaggableObject
 		transactionConfidenceListeners.add(new ListenerRegistration<>(listener, executor));
 	}
 
+	/**
+	 * Adds an event listener object. Methods on this object are called once per block with the transactions whose
+	 * confidence changed, if enabled by {@link #setPerBlockConfidenceEvents(boolean)}. Runs the listener methods in
+	 * the user thread.
+	 */
+	public void addTransactionConfidenceBatchEventListener(TransactionConfidenceBatchEventListener listener) {
+		addTransactionConfidenceBatchEventListener(Threading.USER_THREAD, listener);
+	}
+
+	/**
+	 * Adds an event listener object. Methods on this object are called once per block with the transactions whose
+	 * confidence changed, if enabled by {@link #setPerBlockConfidenceEvents(boolean)}. The listener is executed by
+	 * the given executor.
+	 */
+	public void addTransactionConfidenceBatchEventListener(Executor executor,
+			TransactionConfidenceBatchEventListener listener) {
+		// This is thread safe, so we don't need to take the lock.
+		transactionConfidenceBatchListeners.add(new ListenerRegistration<>(listener, executor));
+	}
+
 	/**
 	 * Removes the given event listener object. Returns true if the listener was removed, false if that listener
 	 * was never added.
@@ -2741,6 +3032,14 @@ public class Wallet extends BaseTaggableObject
 		return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
 	}
 
+	/**
+	 * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+	 * was never added.
+	 */
+	public boolean removeTransactionConfidenceBatchEventListener(TransactionConfidenceBatchEventListener listener) {
+		return ListenerRegistration.removeFromList(listener, transactionConfidenceBatchListeners);
+	}
+
 	private void queueOnTransactionConfidenceChanged(final Transaction tx) {
 		checkState(lock.isHeldByCurrentThread());
 		for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
@@ -2757,6 +3056,27 @@ public class Wallet extends BaseTaggableObject
 		}
 	}
 
+	private void maybeQueueOnTransactionConfidencesChanged() {
+		checkState(lock.isHeldByCurrentThread());
+		if (!perBlockConfidenceEvents || insideReorg)
+			return;
+		final int bestChainHeight = lastBlockSeenHeight;
+		final Set<Sha256Hash> changed = ImmutableSet.copyOf(batchedConfidenceChanges);
+		batchedConfidenceChanges.clear();
+		for (final ListenerRegistration<TransactionConfidenceBatchEventListener> registration : transactionConfidenceBatchListeners) {
+			if (registration.executor == Threading.SAME_THREAD) {
+				registration.listener.onTransactionConfidencesChanged(this, bestChainHeight, changed);
+			} else {
+				registration.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						registration.listener.onTransactionConfidencesChanged(Wallet.this, bestChainHeight, changed);
+					}
+				});
+			}
+		}
+	}
+
 	protected void maybeQueueOnWalletChanged() {
 		// Don't invoke the callback in some circumstances, eg, whilst we are re-organizing or fiddling with
 		// transactions due to a new block arriving. It will be called later instead.
@@ -2764,12 +3084,13 @@ public class Wallet extends BaseTaggableObject
 		checkState(onWalletChangedSuppressions >= 0);
 		if (onWalletChangedSuppressions > 0) return;
 		for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-			registration.executor.execute(new Runnable() {
+			// Listeners look at the current state of the wallet, so a change that is still waiting covers this one.
+			registration.executor.execute(ListenerDispatcher.coalescing(WalletChangeEventListener.class, new Runnable() {
 				@Override
 				public void run() {
 					registration.listener.onWalletChanged(Wallet.this);
 				}
-			});
+			}));
 		}
 	}
 
@@ -2832,6 +3153,9 @@ public class Wallet extends BaseTaggableObject
 	 * @param includeDead     If true, transactions that were overridden by a double spend are included.
 	 */
 	public Set<Transaction> getTransactions(boolean includeDead) {
+		WalletSnapshot snapshot = getCurrentSnapshot();
+		if (snapshot != null)
+			return new HashSet<>(snapshot.getTransactions(includeDead));
 		lock.lock();
 		try {
 			Set<Transaction> all = new HashSet<>();
@@ -2863,6 +3187,45 @@ public class Wallet extends BaseTaggableObject
 		}
 	}
 
+	/**
+	 * Like {@link #getWalletTransactions()}, but leaves the deferred transactions alone and adds them to the given list
+	 * in serialized form instead. This is intended for usage by {@link WalletProtobufSerializer}, so that saving the
+	 * wallet doesn't read its history.
+	 */
+	Iterable<WalletTransaction> getWalletTransactions(List<ByteString> deferred) {
+		lock.lock();
+		try {
+			Set<WalletTransaction> all = new HashSet<>();
+			addWalletTransactionsToSet(all, Pool.UNSPENT, materialized(unspent));
+			addWalletTransactionsToSet(all, Pool.SPENT, materialized(spent));
+			addWalletTransactionsToSet(all, Pool.DEAD, materialized(dead));
+			addWalletTransactionsToSet(all, Pool.PENDING, materialized(pending));
+			if (deferredTransactions != null)
+				deferred.addAll(deferredTransactions.serialize(deferredBlocks, context.getEventHorizon()));
+			return all;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Like {@link #getTransactions(boolean)} including dead ones, but leaves deferred transactions alone. */
+	private Set<Transaction> getMaterializedTransactions() {
+		Set<Transaction> all = new HashSet<>();
+		all.addAll(materialized(unspent));
+		all.addAll(materialized(spent));
+		all.addAll(materialized(pending));
+		all.addAll(materialized(dead));
+		return all;
+	}
+
+	private static Collection<Transaction> materialized(Map<Sha256Hash, Transaction> pool) {
+		return ((TransactionMap) pool).materializedValues();
+	}
+
+	private static ImmutableMap<Sha256Hash, Transaction> immutableCopy(Map<Sha256Hash, Transaction> pool) {
+		return ((TransactionMap) pool).immutableCopy();
+	}
+
 	private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
 												   Pool poolType, Collection<Transaction> pool) {
 		for (Transaction tx : pool) {
@@ -2915,6 +3278,8 @@ public class Wallet extends BaseTaggableObject
 		// This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
 		// registration requests. That makes the code in the wallet simpler.
 		tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+		if (perBlockConfidenceEvents)
+			tx.getConfidence().setChainHeightSource(lastBlockSeenHeightSource);
 	}
 
 	/**
@@ -2932,9 +3297,12 @@ public class Wallet extends BaseTaggableObject
 	 * depending on how the wallet is implemented (eg if backed by a database).</p>
 	 */
 	public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+		checkArgument(numTransactions >= 0);
+		WalletSnapshot snapshot = getCurrentSnapshot();
+		if (snapshot != null)
+			return snapshot.getRecentTransactions(numTransactions, includeDead);
 		lock.lock();
 		try {
-			checkArgument(numTransactions >= 0);
 			// Firstly, put all transactions into an array.
 			int size = unspent.size() + spent.size() + pending.size();
 			if (numTransactions > size || numTransactions == 0) {
@@ -3073,8 +3441,8 @@ public class Wallet extends BaseTaggableObject
 		lock.lock();
 		try {
 			boolean dirty = false;
-			for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
-				Transaction tx = i.next();
+			// Removed through the map rather than an iterator, so that it notices.
+			for (Transaction tx : new ArrayList<>(pending.values())) {
 				if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
 					log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
 					if (!tx.isAnyOutputSpent()) {
@@ -3089,7 +3457,7 @@ public class Wallet extends BaseTaggableObject
 						for (TransactionOutput output : tx.getOutputs())
 							myUnspents.remove(output);
 
-						i.remove();
+						pending.remove(tx.getHash());
 						transactions.remove(tx.getHash());
 						dirty = true;
 						log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
@@ -3350,6 +3718,9 @@ public class Wallet extends BaseTaggableObject
 	/** Returns the hash of the last seen best-chain block, or null if the wallet is too old to store this data. */
 	@Nullable
 	public Sha256Hash getLastBlockSeenHash() {
+		WalletSnapshot snapshot = getCurrentSnapshot();
+		if (snapshot != null)
+			return snapshot.getLastBlockSeenHash();
 		lock.lock();
 		try {
 			return lastBlockSeenHash;
@@ -3362,6 +3733,7 @@ public class Wallet extends BaseTaggableObject
 		lock.lock();
 		try {
 			this.lastBlockSeenHash = lastBlockSeenHash;
+			invalidateCachedState();
 		} finally {
 			lock.unlock();
 		}
@@ -3371,6 +3743,7 @@ public class Wallet extends BaseTaggableObject
 		lock.lock();
 		try {
 			this.lastBlockSeenHeight = lastBlockSeenHeight;
+			invalidateCachedState();
 		} finally {
 			lock.unlock();
 		}
@@ -3380,6 +3753,7 @@ public class Wallet extends BaseTaggableObject
 		lock.lock();
 		try {
 			lastBlockSeenTimeSecs = timeSecs;
+			invalidateCachedState();
 		} finally {
 			lock.unlock();
 		}
@@ -3393,6 +3767,9 @@ public class Wallet extends BaseTaggableObject
 	 * time then this method returns zero.
 	 */
 	public long getLastBlockSeenTimeSecs() {
+		WalletSnapshot snapshot = getCurrentSnapshot();
+		if (snapshot != null)
+			return snapshot.getLastBlockSeenTimeSecs();
 		lock.lock();
 		try {
 			return lastBlockSeenTimeSecs;
@@ -3422,6 +3799,9 @@ public class Wallet extends BaseTaggableObject
 	 * is old and doesn't have that data.
 	 */
 	public int getLastBlockSeenHeight() {
+		WalletSnapshot snapshot = getCurrentSnapshot();
+		if (snapshot != null)
+			return snapshot.getLastBlockSeenHeight();
 		lock.lock();
 		try {
 			return lastBlockSeenHeight;
@@ -3510,28 +3890,398 @@ public class Wallet extends BaseTaggableObject
 	}
 
 	/**
-	 * Returns the balance of this wallet as calculated by the provided balanceType.
+	 * <p>Returns the balance of this wallet as calculated by the provided balanceType.</p>
+	 *
+	 * <p>The {@link BalanceType#ESTIMATED} balance is a running total of the unspent outputs, so it is cheap to get.
+	 * The other balance types depend on the coin selector and on which keys the wallet has, so they are calculated
+	 * from the unspent outputs and then cached until something that affects them changes. Nothing is cached if a
+	 * {@link UTXOProvider} is set.</p>
 	 */
 	public Coin getBalance(BalanceType balanceType) {
 		lock.lock();
 		try {
-			if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-				List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-				CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-				return selection.valueGathered;
-			} else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-				List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-				Coin value = Coin.ZERO;
-				for (TransactionOutput out : all) value = value.add(out.getValue());
-				return value;
-			} else {
-				throw new AssertionError("Unknown balance type");  // Unreachable.
+			if (vUTXOProvider != null)
+				return calculateBalance(balanceType);
+			if (balanceType == BalanceType.ESTIMATED)
+				return ((UnspentOutputSet) myUnspents).getValue();
+			// Read the version before calculating, so a concurrent change (e.g. keys being added) can't be missed.
+			long version = stateVersion.get();
+			long pendingState = getPendingBroadcastState();
+			if (version != balanceCacheVersion || pendingState != balanceCachePendingState) {
+				balanceCache.clear();
+				balanceCacheVersion = version;
+				balanceCachePendingState = pendingState;
+			}
+			Coin balance = balanceCache.get(balanceType);
+			if (balance == null) {
+				balance = calculateBalance(balanceType);
+				balanceCache.put(balanceType, balance);
+			}
+			return balance;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Coin calculateBalance(BalanceType balanceType) {
+		checkState(lock.isHeldByCurrentThread());
+		if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+			List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+			CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+			return selection.valueGathered;
+		} else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+			List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+			Coin value = Coin.ZERO;
+			for (TransactionOutput out : all) value = value.add(out.getValue());
+			return value;
+		} else {
+			throw new AssertionError("Unknown balance type");  // Unreachable.
+		}
+	}
+
+	private void invalidateCachedState() {
+		stateVersion.incrementAndGet();
+	}
+
+	/**
+	 * Coin selectors look at who announced and who created pending transactions, but
+	 * {@link TransactionConfidence#markBroadcastBy} and friends don't always tell us about changes. So
+	 * summarize that state here. The pending pool is normally small, so this is much cheaper than selecting coins.
+	 */
+	private long getPendingBroadcastState() {
+		checkState(lock.isHeldByCurrentThread());
+		long state = pending.size();
+		for (Transaction tx : pending.values()) {
+			TransactionConfidence confidence = tx.getConfidence();
+			state = 31 * state + confidence.numBroadcastPeers();
+			state = 31 * state + confidence.getSource().ordinal();
+		}
+		return state;
+	}
+
+	/**
+	 * <p>Returns an immutable snapshot of the pools, balances and last seen block of this wallet, see
+	 * {@link WalletSnapshot}. If the wallet hasn't changed since the last snapshot, that one is returned without
+	 * taking the wallet lock.</p>
+	 *
+	 * <p>Otherwise a new snapshot is built, so changes to the wallet cost nothing until somebody asks for one. Pools that
+	 * didn't change since the last snapshot are shared with it rather than copied again. If another thread holds the
+	 * lock, e.g. to connect a block, this doesn't wait for it and returns the last snapshot instead, which may be
+	 * several changes behind. Compare {@link WalletSnapshot#getVersion()} to tell snapshots apart.</p>
+	 *
+	 * <p>Building a snapshot reads any deferred transactions, see
+	 * {@link WalletProtobufSerializer#setDeferTransactionHistory(boolean)}.</p>
+	 */
+	public WalletSnapshot getSnapshot() {
+		WalletSnapshot snapshot = this.snapshot;
+		if (snapshot != null) {
+			if (snapshot.getVersion() == stateVersion.get())
+				return snapshot;
+			if (!lock.tryLock())
+				return snapshot;
+		} else {
+			lock.lock();
+		}
+		try {
+			return buildSnapshot();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the last snapshot if nothing changed since it was built, so it can answer queries lock-free. */
+	@Nullable
+	private WalletSnapshot getCurrentSnapshot() {
+		WalletSnapshot snapshot = this.snapshot;
+		return snapshot != null && snapshot.getVersion() == stateVersion.get() ? snapshot : null;
+	}
+
+	private WalletSnapshot buildSnapshot() {
+		checkState(lock.isHeldByCurrentThread());
+		// Read the version first, so a change that doesn't take the wallet lock (e.g. keys being added) can't be
+		// missed.
+		long version = stateVersion.get();
+		EnumMap<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+		for (BalanceType type : BalanceType.values())
+			balances.put(type, getBalance(type));
+		WalletSnapshot snapshot = new WalletSnapshot(version, immutableCopy(unspent), immutableCopy(spent),
+				immutableCopy(pending), immutableCopy(dead), balances,
+				lastBlockSeenHash, lastBlockSeenHeight, lastBlockSeenTimeSecs);
+		this.snapshot = snapshot;
+		return snapshot;
+	}
+
+	/** Transactions that are read from the wallet file when they are first needed. */
+	interface DeferredTransactions {
+		/** Returns whether the transaction with the given hash is one of the deferred ones. */
+		boolean contains(Sha256Hash hash);
+
+		/** Returns whether all deferred transactions were read. */
+		boolean isEmpty();
+
+		/** Returns the hashes of the deferred transactions that spend any of the given outpoints. */
+		Set<Sha256Hash> findSpendersOf(Set<TransactionOutPoint> outpoints);
+
+		/**
+		 * Reads the given deferred transactions, or all of them if null, along with the deferred ones they are
+		 * connected to, and connects them to the given, already materialized, ones. The read transactions are no
+		 * longer deferred.
+		 */
+		List<WalletTransaction> materialize(@Nullable Set<Sha256Hash> hashes, Collection<Transaction> transactions)
+				throws UnreadableWalletException;
+
+		/**
+		 * Returns the deferred transactions as serialized {@link Protos.Transaction}s without reading them, with the
+		 * given number of blocks added to the depth of those that are building, as they missed these blocks.
+		 */
+		List<ByteString> serialize(int missedBlocks, int eventHorizon);
+	}
+
+	/**
+	 * Sets the spent and dead transactions that are only read from the wallet file when first needed. This is
+	 * intended for usage by {@link WalletProtobufSerializer}.
+	 */
+	void setDeferredTransactions(@Nullable DeferredTransactions deferred) {
+		lock.lock();
+		try {
+			deferredTransactions = deferred;
+			deferredBlocks = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns true if some transactions read from the wallet file were not materialized yet. */
+	@VisibleForTesting
+	boolean hasDeferredTransactions() {
+		lock.lock();
+		try {
+			return deferredTransactions != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void materializeDeferredTransactions() {
+		materializeDeferredTransactions(null);
+	}
+
+	/** Materializes the given deferred transactions, or all of them if null, and what they are connected to. */
+	private void materializeDeferredTransactions(@Nullable Set<Sha256Hash> hashes) {
+		lock.lock();
+		try {
+			DeferredTransactions deferred = deferredTransactions;
+			if (deferred == null)
+				return;
+			// Adding the transactions below accesses the pools again.
+			deferredTransactions = null;
+			List<WalletTransaction> wtxs;
+			try {
+				wtxs = deferred.materialize(hashes, materialized(transactions));
+			} catch (UnreadableWalletException e) {
+				// Keep them deferred, so the history isn't lost by saving the wallet without it.
+				deferredTransactions = deferred;
+				throw new RuntimeException("Could not read deferred transactions", e);
+			}
+			for (WalletTransaction wtx : wtxs) {
+				TransactionConfidence confidence = wtx.getTransaction().getConfidence();
+				if (deferredBlocks > 0 && confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+					confidence.setDepthInBlocks(confidence.getDepthInBlocks() + deferredBlocks);
+					if (confidence.getDepthInBlocks() > context.getEventHorizon())
+						confidence.clearBroadcastBy();
+				}
+				addWalletTransaction(wtx.getPool(), wtx.getTransaction());
 			}
+			// The ones still deferred keep counting the blocks they miss.
+			if (deferred.isEmpty())
+				deferredBlocks = 0;
+			else
+				deferredTransactions = deferred;
+			log.info("Materialized {} deferred transactions", wtxs.size());
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * A map of transactions by hash, which records the transactions put into or removed from it. If it may hold
+	 * deferred transactions, they are materialized before anything looks at them.
+	 */
+	private class TransactionMap extends HashMap<Sha256Hash, Transaction> {
+		private static final long serialVersionUID = 6271683419872640275L;
+
+		private final boolean mayHoldDeferred;
+		// A copy for snapshots, kept until the map changes.
+		@Nullable private transient ImmutableMap<Sha256Hash, Transaction> copy;
+
+		TransactionMap(boolean mayHoldDeferred) {
+			this.mayHoldDeferred = mayHoldDeferred;
+		}
+
+		private void materializeIfDeferred(Object hash) {
+			if (deferredTransactions != null && hash instanceof Sha256Hash
+					&& deferredTransactions.contains((Sha256Hash) hash))
+				materializeDeferredTransactions();
+		}
+
+		private void materializeIfMayHoldDeferred() {
+			if (mayHoldDeferred && deferredTransactions != null)
+				materializeDeferredTransactions();
+		}
+
+		/** Returns the transactions in this map, leaving any deferred ones alone. */
+		Collection<Transaction> materializedValues() {
+			return super.values();
+		}
+
+		/** Returns an immutable copy of this map, which is only copied again once the map has changed. */
+		ImmutableMap<Sha256Hash, Transaction> immutableCopy() {
+			materializeIfMayHoldDeferred();
+			if (copy == null)
+				copy = ImmutableMap.copyOf(this);
+			return copy;
+		}
+
+		@Override
+		public Transaction get(Object hash) {
+			materializeIfDeferred(hash);
+			return super.get(hash);
+		}
+
+		@Override
+		public boolean containsKey(Object hash) {
+			materializeIfDeferred(hash);
+			return super.containsKey(hash);
+		}
+
+		@Override
+		public Transaction put(Sha256Hash hash, Transaction tx) {
+			materializeIfDeferred(hash);
+			recordTransactionChange(tx);
+			Transaction previous = super.put(hash, tx);
+			copy = null;
+			invalidateCachedState();
+			return previous;
+		}
+
+		@Override
+		public Transaction remove(Object hash) {
+			materializeIfDeferred(hash);
+			Transaction tx = super.remove(hash);
+			if (tx != null) {
+				recordTransactionChange(tx);
+				copy = null;
+				invalidateCachedState();
+			}
+			return tx;
+		}
+
+		@Override
+		public int size() {
+			materializeIfMayHoldDeferred();
+			return super.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			materializeIfMayHoldDeferred();
+			return super.isEmpty();
+		}
+
+		@Override
+		public Set<Sha256Hash> keySet() {
+			materializeIfMayHoldDeferred();
+			return super.keySet();
+		}
+
+		@Override
+		public Collection<Transaction> values() {
+			materializeIfMayHoldDeferred();
+			return super.values();
+		}
+
+		@Override
+		public Set<Map.Entry<Sha256Hash, Transaction>> entrySet() {
+			materializeIfMayHoldDeferred();
+			return super.entrySet();
+		}
+
+		@Override
+		public void clear() {
+			if (mayHoldDeferred)
+				deferredTransactions = null;
+			super.clear();
+			copy = null;
+			invalidateCachedState();
+			if (changedTransactions != null)
+				transactionsCleared = true;
+		}
+	}
+
+	/**
+	 * The set backing {@link #myUnspents}. It keeps the total value of its outputs, which is the ESTIMATED balance,
+	 * and invalidates the cache of the other balance types whenever it changes.
+	 */
+	private class UnspentOutputSet extends HashSet<TransactionOutput> {
+		private static final long serialVersionUID = -2236398420637283511L;
+
+		private Coin value = Coin.ZERO;
+
+		Coin getValue() {
+			return value;
+		}
+
+		@Override
+		public boolean add(TransactionOutput output) {
+			if (!super.add(output))
+				return false;
+			value = value.add(output.getValue());
+			invalidateCachedState();
+			return true;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!super.remove(o))
+				return false;
+			value = value.subtract(((TransactionOutput) o).getValue());
+			invalidateCachedState();
+			return true;
+		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			value = Coin.ZERO;
+			invalidateCachedState();
+		}
+
+		@Override
+		public Iterator<TransactionOutput> iterator() {
+			final Iterator<TransactionOutput> iterator = super.iterator();
+			return new Iterator<TransactionOutput>() {
+				private TransactionOutput last;
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public TransactionOutput next() {
+					return last = iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					iterator.remove();
+					value = value.subtract(last.getValue());
+					invalidateCachedState();
+				}
+			};
+		}
+	}
+
 	/**
 	 * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
 	 * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4079,7 +4829,8 @@ public class Wallet extends BaseTaggableObject
 					// We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
 					// we sign missing pieces (to check this would require either assuming any signatures are signing
 					// standard output types or a way to get processed signatures out of script execution)
-					txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+					txIn.getScriptSig().correctlySpends(tx, i, txIn.getWitness(), txIn.getConnectedOutput().getValue(),
+							txIn.getConnectedOutput().getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
 					log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
 					continue;
 				} catch (ScriptException e) {
@@ -4171,6 +4922,9 @@ public class Wallet extends BaseTaggableObject
 		} else if (ScriptPattern.isPayToPubKeyHash(script)) {
 			ECKey key = findKeyFromPubHash(ScriptPattern.extractHashFromPayToPubKeyHash(script));
 			return key != null && (key.isEncrypted() || key.hasPrivKey());
+		} else if (ScriptPattern.isPayToWitnessPubKeyHash(script)) {
+			ECKey key = findKeyFromPubHash(ScriptPattern.extractHashFromPayToWitnessHash(script));
+			return key != null && key.isCompressed() && (key.isEncrypted() || key.hasPrivKey());
 		} else if (ScriptPattern.isSentToMultisig(script)) {
 			for (ECKey pubkey : script.getPubKeys()) {
 				ECKey key = findKeyFromPubKey(pubkey.getPubKey());
@@ -4269,6 +5023,7 @@ public class Wallet extends BaseTaggableObject
 		lock.lock();
 		try {
 			this.coinSelector = checkNotNull(coinSelector);
+			invalidateCachedState();
 		} finally {
 			lock.unlock();
 		}
@@ -4310,6 +5065,7 @@ public class Wallet extends BaseTaggableObject
 		try {
 			checkArgument(provider == null || provider.getParams().equals(params));
 			this.vUTXOProvider = provider;
+			invalidateCachedState();
 		} finally {
 			lock.unlock();
 		}
@@ -4487,7 +5243,7 @@ public class Wallet extends BaseTaggableObject
 				log.info("  ->pending {}", tx.getHash());
 
 				tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-				confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+				markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
 				addWalletTransaction(Pool.PENDING, tx);
 				updateForSpends(tx, false);
 			}
@@ -4536,6 +5292,7 @@ public class Wallet extends BaseTaggableObject
 			maybeQueueOnWalletChanged();
 			checkBalanceFuturesLocked(balance);
 			informConfidenceListenersIfNotReorganizing();
+			maybeQueueOnTransactionConfidencesChanged();
 			saveLater();
 		} finally {
 			lock.unlock();
@@ -4549,7 +5306,7 @@ public class Wallet extends BaseTaggableObject
 		for (Transaction tx : transactions) {
 			if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
 				tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-				confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+				markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
 			}
 		}
 	}
@@ -4579,7 +5336,8 @@ public class Wallet extends BaseTaggableObject
 		bloomOutPoints.clear();
 		Set<Transaction> all = new HashSet<>();
 		all.addAll(unspent.values());
-		all.addAll(spent.values());
+		// Outputs of spent transactions only match for watched scripts, so otherwise deferred ones can stay deferred.
+		all.addAll(watchedScripts.isEmpty() ? ((TransactionMap) spent).materializedValues() : spent.values());
 		all.addAll(pending.values());
 		for (Transaction tx : all) {
 			for (TransactionOutput out : tx.getOutputs()) {
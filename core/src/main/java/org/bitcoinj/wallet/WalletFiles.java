@@ -47,6 +47,7 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
 
     private volatile Listener vListener;
 
@@ -72,6 +73,14 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Like {@link #WalletFiles(Wallet, File, long, TimeUnit)}, but if journaled is true saves append the changes to a
+     * {@link WalletJournal} instead of rewriting the whole file.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -83,6 +92,7 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = journaled ? new WalletJournal(wallet, file) : null;
 
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
@@ -129,6 +139,12 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        if (journal != null) {
+            journal.save(vListener);
+            watch.stop();
+            log.info("Save completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
@@ -156,5 +172,7 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        if (journal != null)
+            journal.close();
     }
 }
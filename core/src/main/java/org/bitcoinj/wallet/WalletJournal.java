@@ -0,0 +1,517 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Saves a {@link Wallet} by appending what changed since the previous save to a journal, rather than rewriting the
+ * whole wallet file each time. The wallet file itself, called the snapshot here, stays in the usual protobuf format
+ * and the journal is kept next to it, see {@link #getJournalFile(File)}.</p>
+ *
+ * <p>Each record of the journal holds the transactions that were added, moved between pools, removed or changed
+ * confidence, the keys that were imported and the parent keys of the deterministic key chains (which carry the numbers
+ * of issued keys), along with the small properties of the wallet such as the last block seen and its extensions. So
+ * the cost of a save depends on what changed rather than on the size of the wallet. Once the journal grows larger than
+ * the snapshot, the two are compacted into a new snapshot and an empty journal. Changes that can't be expressed as a
+ * record, e.g. encrypting the wallet or removing a key, cause a compaction too.</p>
+ *
+ * <p>{@link Wallet#loadFromFile(File, WalletExtension...)} replays the journal, so it's enough to keep both files
+ * together. The journal starts with the hash of the snapshot it belongs to and is ignored if the snapshot was replaced
+ * by other means, e.g. {@link Wallet#saveToFile(File)}. A record that was only partly written when the process died is
+ * ignored as well.</p>
+ *
+ * <p>Changes the wallet isn't told about, such as setting the memo of a transaction that is already in the wallet,
+ * are only saved by the next compaction. Call {@link #compact()} to save them right away.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final int MAGIC = 0x626a776a;  // "bjwj"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + Sha256Hash.LENGTH;
+    // Set in the flags of a record whose watched scripts replace the current ones.
+    private static final int FLAG_WATCHED_SCRIPTS = 1;
+
+    /** Journals smaller than this are not compacted, even if the snapshot is smaller still. */
+    public static final long DEFAULT_MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+    private final KeyChainEventListener keyListener;
+    private final ScriptsChangeEventListener scriptsListener;
+    private final Queue<ECKey> importedKeys = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean watchedScriptsChanged = new AtomicBoolean();
+
+    // The rest is guarded by the wallet lock. The journal is null until the first save, which always compacts.
+    @Nullable private FileOutputStream journal;
+    private long journalSize, snapshotSize, snapshotLastModified;
+    private List<Object> keyChainGroupStructure;
+    private int numImportedKeys;
+    private long minCompactionSize = DEFAULT_MIN_COMPACTION_SIZE;
+
+    /**
+     * Creates a journal for the given wallet and wallet file. Changes are recorded from now on, but the first call to
+     * {@link #save()} writes a new snapshot.
+     */
+    public WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+        this.keyListener = new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                // Deterministic keys are derived again when the wallet is loaded.
+                for (ECKey key : keys)
+                    if (!(key instanceof DeterministicKey))
+                        importedKeys.add(key);
+            }
+        };
+        this.scriptsListener = new ScriptsChangeEventListener() {
+            @Override
+            public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+                watchedScriptsChanged.set(true);
+            }
+        };
+        wallet.setRecordingChanges(true);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, keyListener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, scriptsListener);
+    }
+
+    /** Returns the journal that belongs to the given wallet file. */
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + ".journal");
+    }
+
+    /** Sets the size below which the journal is never compacted. */
+    public void setMinCompactionSize(long minCompactionSize) {
+        wallet.lock.lock();
+        try {
+            checkArgument(minCompactionSize >= 0);
+            this.minCompactionSize = minCompactionSize;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Appends the changes since the previous save to the journal, or compacts it if that's due. */
+    public void save() throws IOException {
+        save(null);
+    }
+
+    /**
+     * Appends the changes since the previous save to the journal, or compacts it if that's due. The listener is only
+     * called when compacting.
+     */
+    public void save(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            if (journal == null || journalSize > Math.max(minCompactionSize, snapshotSize)
+                    || file.length() != snapshotSize || file.lastModified() != snapshotLastModified) {
+                compactLocked(listener);
+                return;
+            }
+            Set<Sha256Hash> changed = wallet.takeChangedTransactions();
+            List<ECKey> newKeys = new ArrayList<>();
+            for (ECKey key; (key = importedKeys.poll()) != null; )
+                newKeys.add(key);
+            List<Protos.Key> keys = wallet.serializeKeyChangesToProtobuf(keyChainGroupStructure, numImportedKeys, newKeys);
+            if (changed == null || keys == null) {
+                compactLocked(listener);
+                return;
+            }
+
+            boolean appended = false;
+            try {
+                Protos.Wallet.Builder delta = new WalletProtobufSerializer().walletPropertiesToProto(wallet);
+                List<Sha256Hash> removed = new ArrayList<>();
+                for (Sha256Hash hash : changed) {
+                    WalletTransaction wtx = wallet.getWalletTransaction(hash);
+                    if (wtx != null)
+                        delta.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+                    else
+                        removed.add(hash);
+                }
+                delta.addAllKey(keys);
+                int flags = 0;
+                if (watchedScriptsChanged.getAndSet(false)) {
+                    flags |= FLAG_WATCHED_SCRIPTS;
+                    WalletProtobufSerializer.populateWatchedScripts(wallet, delta);
+                }
+
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(payload);
+                out.writeByte(flags);
+                out.writeInt(removed.size());
+                for (Sha256Hash hash : removed)
+                    out.write(hash.getBytes());
+                delta.build().writeTo(out);
+                out.flush();
+                appendRecord(payload.toByteArray());
+                numImportedKeys += newKeys.size();
+                appended = true;
+            } finally {
+                // The changes were taken from the wallet, and the journal may end in a partial record now, so only a
+                // compaction can save them. Dropping the journal makes the next save compact.
+                if (!appended)
+                    closeJournal();
+            }
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Writes the whole wallet to a new snapshot and starts an empty journal for it. */
+    public void compact() throws IOException {
+        wallet.lock.lock();
+        try {
+            compactLocked(null);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Stops recording changes. The journal can't be used afterwards. */
+    public void close() {
+        wallet.lock.lock();
+        try {
+            wallet.removeKeyChainEventListener(keyListener);
+            wallet.removeScriptChangeEventListener(scriptsListener);
+            wallet.setRecordingChanges(false);
+            closeJournal();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Failed to close wallet journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    private void appendRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(8 + payload.length);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        // Write the record in one go, so a crash leaves at most one partial record at the end.
+        write(checkNotNull(journal), record.toByteArray());
+        journalSize += record.size();
+    }
+
+    /** Writes the given bytes to the end of the journal and syncs it to disk. */
+    @VisibleForTesting
+    void write(FileOutputStream journal, byte[] bytes) throws IOException {
+        journal.write(bytes);
+        journal.getFD().sync();
+    }
+
+    private void compactLocked(@Nullable WalletFiles.Listener listener) throws IOException {
+        // Take the state of the keys first: anything that changes it from now on shows up in the next save.
+        importedKeys.clear();
+        watchedScriptsChanged.set(false);
+        List<Object> structure = wallet.getKeyChainGroupStructure();
+        int imported = wallet.getNumImportedKeys();
+        wallet.takeChangedTransactions();
+
+        // What was just taken is only saved by this compaction, so if it fails the next save has to compact again.
+        closeJournal();
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        File journalTemp = null;
+        try {
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            MessageDigest digest = Sha256Hash.newDigest();
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                wallet.saveToFileStream(new DigestOutputStream(stream, digest));
+                stream.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+
+            journalTemp = File.createTempFile("wallet", null, directory);
+            stream = new FileOutputStream(journalTemp);
+            try {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(digest.digest());
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+
+            // If we die between these two renames, the old journal doesn't match the new snapshot and is ignored.
+            replace(temp, file);
+            replace(journalTemp, journalFile);
+        } finally {
+            if (temp.exists() && !temp.delete())
+                log.warn("Could not delete temp file {}", temp);
+            if (journalTemp != null && journalTemp.exists() && !journalTemp.delete())
+                log.warn("Could not delete temp file {}", journalTemp);
+        }
+        journal = new FileOutputStream(journalFile, true);
+        journalSize = HEADER_SIZE;
+        snapshotSize = file.length();
+        snapshotLastModified = file.lastModified();
+        keyChainGroupStructure = structure;
+        numImportedKeys = imported;
+        if (listener != null)
+            listener.onAfterAutoSave(file);
+    }
+
+    private static void replace(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file, with its journal replayed if it has one. Extensions
+     * previously saved with the wallet can be deserialized by passing them in.
+     */
+    public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = readProto(file);
+            String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+            if (!wallet.isConsistent())
+                log.error("Loaded an inconsistent wallet");
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+    }
+
+    /**
+     * Returns the protocol buffer read from the given wallet file, with its journal applied if it has one. You normally
+     * want {@link #loadFromFile(File, WalletExtension...)} instead.
+     */
+    public static Protos.Wallet readProto(File file) throws IOException, UnreadableWalletException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+            ByteStreams.exhaust(stream);
+        } finally {
+            stream.close();
+        }
+        File journalFile = getJournalFile(file);
+        if (!journalFile.exists())
+            return snapshot;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] snapshotHash = new byte[Sha256Hash.LENGTH];
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new UnreadableWalletException("Not a wallet journal: " + journalFile);
+                in.readFully(snapshotHash);
+            } catch (EOFException e) {
+                throw new UnreadableWalletException("Truncated wallet journal: " + journalFile);
+            }
+            if (!Arrays.equals(snapshotHash, digest.digest())) {
+                log.info("Ignoring {} as it belongs to an earlier version of the wallet file", journalFile);
+                return snapshot;
+            }
+            Replay replay = new Replay(snapshot);
+            int records = 0;
+            byte[] payload;
+            while ((payload = readRecord(in, journalFile.length())) != null) {
+                replay.apply(payload);
+                records++;
+            }
+            log.info("Replayed {} records from {}", records, journalFile);
+            return records > 0 ? replay.build() : snapshot;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Nullable
+    private static byte[] readRecord(DataInputStream in, long maxLength) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            int checksum = in.readInt();
+            if (length < 0 || length > maxLength) {
+                log.warn("Ignoring the end of the wallet journal as it has a bad record length");
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Ignoring the end of the wallet journal as it has a bad checksum");
+                return null;
+            }
+            return payload;
+        } catch (EOFException e) {
+            log.warn("Ignoring a partly written record at the end of the wallet journal");
+            return null;
+        }
+    }
+
+    /** The state of a wallet protobuf while journal records are applied to it. */
+    private static class Replay {
+        // Everything but the transactions, keys and watched scripts.
+        private Protos.Wallet properties;
+        private final Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        private final List<Protos.Key> keys;
+        private final Map<ByteString, Integer> deterministicKeyIndex = new HashMap<>();
+        private final Map<ByteString, Integer> basicKeyIndex = new HashMap<>();
+        private List<Protos.Script> watchedScripts;
+
+        Replay(Protos.Wallet snapshot) {
+            properties = withoutCollections(snapshot);
+            for (Protos.Transaction tx : snapshot.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            keys = new ArrayList<>(snapshot.getKeyList());
+            for (int i = 0; i < keys.size(); i++) {
+                Map<ByteString, Integer> index = indexFor(keys.get(i));
+                if (index != null)
+                    index.put(keys.get(i).getPublicKey(), i);
+            }
+            watchedScripts = snapshot.getWatchedScriptList();
+        }
+
+        void apply(byte[] payload) throws IOException, UnreadableWalletException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int flags = in.readUnsignedByte();
+            int numRemoved = in.readInt();
+            for (int i = 0; i < numRemoved; i++) {
+                byte[] hash = new byte[Sha256Hash.LENGTH];
+                in.readFully(hash);
+                transactions.remove(ByteString.copyFrom(hash));
+            }
+            Protos.Wallet delta = Protos.Wallet.parseFrom(in);
+            // The properties are recorded in full.
+            properties = withoutCollections(delta);
+            for (Protos.Transaction tx : delta.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            for (Protos.Key key : delta.getKeyList()) {
+                Map<ByteString, Integer> index = indexFor(key);
+                Integer i = index != null ? index.get(key.getPublicKey()) : null;
+                if (i != null) {
+                    keys.set(i, key);
+                } else if (index == basicKeyIndex) {
+                    index.put(key.getPublicKey(), keys.size());
+                    keys.add(key);
+                } else {
+                    throw new UnreadableWalletException("Wallet journal refers to a key that isn't in the wallet");
+                }
+            }
+            if ((flags & FLAG_WATCHED_SCRIPTS) != 0)
+                watchedScripts = delta.getWatchedScriptList();
+        }
+
+        Protos.Wallet build() {
+            Protos.Wallet.Builder wallet = properties.toBuilder();
+            // Depth changes aren't recorded, as it follows from the height a transaction appeared at and the last
+            // block seen.
+            int height = properties.hasLastSeenBlockHeight() ? properties.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : transactions.values()) {
+                Protos.TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                        && confidence.hasAppearedAtHeight() && confidence.getAppearedAtHeight() <= height) {
+                    int depth = height - confidence.getAppearedAtHeight() + 1;
+                    tx = tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+                }
+                wallet.addTransaction(tx);
+            }
+            wallet.addAllKey(keys);
+            wallet.addAllWatchedScript(watchedScripts);
+            return wallet.build();
+        }
+
+        @Nullable
+        private Map<ByteString, Integer> indexFor(Protos.Key key) {
+            if (!key.hasPublicKey())
+                return null;
+            switch (key.getType()) {
+                case ORIGINAL:
+                case ENCRYPTED_SCRYPT_AES:
+                    return basicKeyIndex;
+                case DETERMINISTIC_KEY:
+                    return deterministicKeyIndex;
+                default:
+                    return null;
+            }
+        }
+
+        private static Protos.Wallet withoutCollections(Protos.Wallet wallet) {
+            return wallet.toBuilder().clearTransaction().clearKey().clearWatchedScript().build();
+        }
+    }
+}
@@ -37,10 +37,13 @@ import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -92,6 +95,7 @@ public class WalletProtobufSerializer {
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
+    private boolean deferTransactionHistory = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
 
     public interface WalletFactory {
@@ -136,6 +140,24 @@ public class WalletProtobufSerializer {
         requireAllExtensionsKnown = value;
     }
 
+    /**
+     * <p>If this property is set to true, {@link #readWallet(InputStream, boolean, WalletExtension[])} streams through
+     * the wallet instead of parsing it into one protocol buffer, and doesn't materialize the spent and dead
+     * transactions, which are only kept for history. They are kept in serialized form and read the first time the
+     * wallet needs them, e.g. when the transactions or these pools are listed or on a re-org. Saving the wallet with
+     * {@link #writeWallet(Wallet, OutputStream)} writes them back as they are. Transactions that spend from unspent or
+     * pending ones are read right away, so the balances and the unspent outputs are complete and the wallet can receive
+     * payments and spend from the start. The outpoints spent by the deferred transactions are indexed, so a transaction
+     * that double spends one of them reads just the deferred transactions it conflicts with, along with those they are
+     * connected to.</p>
+     *
+     * <p>Confidence events for deferred transactions are not sent until they are read, and a deferred transaction that
+     * turns out to be unreadable causes a {@link RuntimeException} at that point.</p>
+     */
+    public void setDeferTransactionHistory(boolean value) {
+        deferTransactionHistory = value;
+    }
+
     /**
      * Change buffer size for writing wallet to output stream. Default is {@link com.google.protobuf.CodedOutputStream#DEFAULT_BUFFER_SIZE}
      * @param walletWriteBufferSize - buffer size in bytes
@@ -150,9 +172,13 @@ public class WalletProtobufSerializer {
      * Equivalent to walletToProto(wallet).writeTo(output);
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
+        List<ByteString> deferred = new ArrayList<>();
+        Protos.Wallet walletProto = walletToProto(wallet, deferred).build();
         final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
         walletProto.writeTo(codedOutput);
+        // Transactions whose reading was deferred are written back as they are. The order of fields doesn't matter.
+        for (ByteString txBytes : deferred)
+            codedOutput.writeBytes(Protos.Wallet.TRANSACTION_FIELD_NUMBER, txBytes);
         codedOutput.flush();
     }
 
@@ -173,27 +199,46 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
+        List<ByteString> deferred = new ArrayList<>();
+        Protos.Wallet.Builder walletBuilder = walletToProto(wallet, deferred);
+        try {
+            for (ByteString txBytes : deferred)
+                walletBuilder.addTransaction(Protos.Transaction.parseFrom(txBytes));
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Could not parse deferred transaction", e);
         }
+        return walletBuilder.build();
+    }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+    /**
+     * Like {@link #walletToProto(Wallet)}, but leaves out the transactions whose reading was deferred and adds them to
+     * the given list in serialized form instead, see {@link #setDeferTransactionHistory(boolean)}.
+     */
+    private Protos.Wallet.Builder walletToProto(Wallet wallet, List<ByteString> deferred) {
+        Protos.Wallet.Builder walletBuilder = walletPropertiesToProto(wallet);
+
+        for (WalletTransaction wtx : wallet.getWalletTransactions(deferred)) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+        populateWatchedScripts(wallet, walletBuilder);
 
-            walletBuilder.addWatchedScript(protoScript);
+        return walletBuilder;
+    }
+
+    /**
+     * Converts everything about the given wallet except its transactions, keys and watched scripts to the object
+     * representation of the protocol buffers. {@link WalletJournal} records these properties in full with each
+     * change, as they are small.
+     */
+    /*package*/ Protos.Wallet.Builder walletPropertiesToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
         }
 
         // Populate the lastSeenBlockHash field.
@@ -237,7 +282,19 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
+    }
+
+    /*package*/ static void populateWatchedScripts(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        for (Script script : wallet.getWatchedScripts()) {
+            Protos.Script protoScript =
+                    Protos.Script.newBuilder()
+                            .setProgram(ByteString.copyFrom(script.getProgram()))
+                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                            .build();
+
+            walletBuilder.addWatchedScript(protoScript);
+        }
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -250,7 +307,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    /*package*/ static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -439,6 +496,8 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
+            if (deferTransactionHistory)
+                return readWalletDeferringHistory(input, forceReset, extensions);
             Protos.Wallet walletProto = parseToProto(input);
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
@@ -488,6 +547,12 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, walletProto.getTransactionList(), null, forceReset);
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, List<Protos.Transaction> transactions,
+                              @Nullable DeferredHistory deferred, boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -529,15 +594,17 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
             // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            for (Protos.Transaction txProto : transactions) {
+                readTransaction(txProto, wallet.getParams(), txMap);
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (Protos.Transaction txProto : transactions) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, txMap);
                 wallet.addWalletTransaction(wtx);
             }
+            if (deferred != null)
+                wallet.setDeferredTransactions(deferred);
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -623,7 +690,283 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /**
+     * Streams through a wallet, leaving the spent and dead transactions serialized unless something that is read
+     * right away refers to them. See {@link #setDeferTransactionHistory(boolean)}.
+     */
+    private Wallet readWalletDeferringHistory(InputStream input, boolean forceReset,
+                                              @Nullable WalletExtension[] extensions)
+            throws IOException, UnreadableWalletException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything but the transactions is small, so it's copied aside and parsed as usual.
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        List<Protos.Transaction> transactions = new ArrayList<>();
+        Map<ByteString, ByteString> deferred = new LinkedHashMap<>();
+        Map<ByteString, Protos.Transaction> deferredHeaders = new HashMap<>();
+        int tag;
+        while ((tag = codedInput.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == Protos.Wallet.TRANSACTION_FIELD_NUMBER
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                ByteString bytes = codedInput.readBytes();
+                if (forceReset)
+                    continue;
+                Protos.Transaction header = readTransactionHeader(bytes);
+                if (header.getPool() == Protos.Transaction.Pool.SPENT || header.getPool() == Protos.Transaction.Pool.DEAD) {
+                    deferred.put(header.getHash(), bytes);
+                    deferredHeaders.put(header.getHash(), header);
+                } else
+                    transactions.add(Protos.Transaction.parseFrom(bytes));
+            } else {
+                copyField(tag, codedInput, restOutput);
+            }
+        }
+        restOutput.flush();
+        Protos.Wallet walletProto = Protos.Wallet.parseFrom(rest.toByteString());
+        String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+
+        // Read what spends from the transactions read right away, and what overrides them, so that all of their
+        // outputs are connected.
+        for (int i = 0; i < transactions.size(); i++) {
+            Protos.Transaction txProto = transactions.get(i);
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList())
+                if (outputProto.hasSpentByTransactionHash())
+                    readDeferred(outputProto.getSpentByTransactionHash(), deferred, transactions);
+            if (txProto.getConfidence().hasOverridingTransaction())
+                readDeferred(txProto.getConfidence().getOverridingTransaction(), deferred, transactions);
+        }
+        log.info("Reading {} transactions, deferring {}", transactions.size(), deferred.size());
+        if (deferred.isEmpty())
+            return readWallet(params, extensions, walletProto, transactions, null, forceReset);
+        // Index what the deferred transactions spend, so double spends against them can be found without them.
+        // A dead transaction spends the same outpoints as the one overriding it, so there may be several per outpoint.
+        ListMultimap<TransactionOutPoint, Sha256Hash> spenders = ArrayListMultimap.create(deferred.size(), 1);
+        for (ByteString hash : deferred.keySet()) {
+            Sha256Hash txHash = byteStringToHash(hash);
+            for (Protos.TransactionInput inputProto : deferredHeaders.get(hash).getTransactionInputList())
+                spenders.put(outPoint(params, inputProto), txHash);
+        }
+        return readWallet(params, extensions, walletProto, transactions,
+                new DeferredHistory(params, deferred, spenders), forceReset);
+    }
+
+    /** Copies the field with the given tag, which was just read, from the input to the output. */
+    private static void copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        output.writeUInt32NoTag(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64NoTag(input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64NoTag(input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytesNoTag(input.readBytes());
+                break;
+            case WireFormat.WIRETYPE_START_GROUP:
+                // Copies the fields of the group and then its end tag.
+                int fieldTag;
+                do {
+                    fieldTag = input.readTag();
+                    if (fieldTag == 0)
+                        throw new IOException("Truncated group in tag " + tag);
+                    copyField(fieldTag, input, output);
+                } while (WireFormat.getTagWireType(fieldTag) != WireFormat.WIRETYPE_END_GROUP);
+                if (WireFormat.getTagFieldNumber(fieldTag) != WireFormat.getTagFieldNumber(tag))
+                    throw new IOException("Mismatched end of group in tag " + tag);
+                break;
+            case WireFormat.WIRETYPE_END_GROUP:
+                // Only the tag, which was already copied.
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32NoTag(input.readRawLittleEndian32());
+                break;
+            default:
+                throw new IOException("Invalid wire type in tag " + tag);
+        }
+    }
+
+    private static void readDeferred(ByteString hash, Map<ByteString, ByteString> deferred,
+                                     List<Protos.Transaction> transactions) throws IOException {
+        ByteString bytes = deferred.remove(hash);
+        if (bytes != null)
+            transactions.add(Protos.Transaction.parseFrom(bytes));
+    }
+
+    /**
+     * Returns a transaction with just the hash and pool of the given serialized one, and the outpoints of its inputs if
+     * it is spent or dead.
+     */
+    private static Protos.Transaction readTransactionHeader(ByteString bytes) throws IOException {
+        Protos.Transaction.Builder header = Protos.Transaction.newBuilder();
+        CodedInputStream input = bytes.newCodedInput();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case Protos.Transaction.HASH_FIELD_NUMBER:
+                    header.setHash(input.readBytes());
+                    break;
+                case Protos.Transaction.POOL_FIELD_NUMBER:
+                    Protos.Transaction.Pool pool = Protos.Transaction.Pool.forNumber(input.readEnum());
+                    if (pool != null)
+                        header.setPool(pool);
+                    break;
+                case Protos.Transaction.TRANSACTION_INPUT_FIELD_NUMBER:
+                    header.addTransactionInput(readOutPoint(input.readBytes()));
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        if (header.getPool() != Protos.Transaction.Pool.SPENT && header.getPool() != Protos.Transaction.Pool.DEAD)
+            header.clearTransactionInput();
+        return header.buildPartial();
+    }
+
+    /** Returns an input with just the outpoint of the given serialized one. */
+    private static Protos.TransactionInput readOutPoint(ByteString bytes) throws IOException {
+        Protos.TransactionInput.Builder outPoint = Protos.TransactionInput.newBuilder();
+        CodedInputStream input = bytes.newCodedInput();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case Protos.TransactionInput.TRANSACTION_OUT_POINT_HASH_FIELD_NUMBER:
+                    outPoint.setTransactionOutPointHash(input.readBytes());
+                    break;
+                case Protos.TransactionInput.TRANSACTION_OUT_POINT_INDEX_FIELD_NUMBER:
+                    outPoint.setTransactionOutPointIndex(input.readUInt32());
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        return outPoint.buildPartial();
+    }
+
+    private static TransactionOutPoint outPoint(NetworkParameters params, Protos.TransactionInput inputProto) {
+        return new TransactionOutPoint(params, inputProto.getTransactionOutPointIndex() & 0xFFFFFFFFL,
+                byteStringToHash(inputProto.getTransactionOutPointHash()));
+    }
+
+    /** The spent and dead transactions of a wallet, which are read once the wallet needs them. */
+    private class DeferredHistory implements Wallet.DeferredTransactions {
+        private final NetworkParameters params;
+        // The transactions that were not read yet, and the transaction spending each of their outpoints.
+        private final Map<ByteString, ByteString> transactions;
+        private final ListMultimap<TransactionOutPoint, Sha256Hash> spenders;
+
+        DeferredHistory(NetworkParameters params, Map<ByteString, ByteString> transactions,
+                        ListMultimap<TransactionOutPoint, Sha256Hash> spenders) {
+            this.params = params;
+            this.transactions = transactions;
+            this.spenders = spenders;
+        }
+
+        @Override
+        public boolean contains(Sha256Hash hash) {
+            return transactions.containsKey(hashToByteString(hash));
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return transactions.isEmpty();
+        }
+
+        @Override
+        public Set<Sha256Hash> findSpendersOf(Set<TransactionOutPoint> outpoints) {
+            Set<Sha256Hash> found = new HashSet<>();
+            for (TransactionOutPoint outpoint : outpoints)
+                found.addAll(spenders.get(outpoint));
+            return found;
+        }
+
+        @Override
+        public List<WalletTransaction> materialize(@Nullable Set<Sha256Hash> hashes,
+                                                   Collection<Transaction> materialized)
+                throws UnreadableWalletException {
+            // Parse the requested transactions, and those they are connected to, so that all of their outputs are
+            // connected. Nothing is taken out of the deferred ones before all of them are read.
+            Map<ByteString, Protos.Transaction> txProtos = new LinkedHashMap<>();
+            Deque<ByteString> toRead = new ArrayDeque<>();
+            if (hashes == null) {
+                toRead.addAll(transactions.keySet());
+            } else {
+                for (Sha256Hash hash : hashes)
+                    toRead.add(hashToByteString(hash));
+            }
+            try {
+                while (!toRead.isEmpty()) {
+                    ByteString hash = toRead.poll();
+                    ByteString bytes = transactions.get(hash);
+                    if (bytes == null || txProtos.containsKey(hash))
+                        continue;
+                    Protos.Transaction txProto = Protos.Transaction.parseFrom(bytes);
+                    txProtos.put(hash, txProto);
+                    for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList())
+                        if (outputProto.hasSpentByTransactionHash())
+                            toRead.add(outputProto.getSpentByTransactionHash());
+                    if (txProto.getConfidence().hasOverridingTransaction())
+                        toRead.add(txProto.getConfidence().getOverridingTransaction());
+                }
+            } catch (IOException e) {
+                throw new UnreadableWalletException("Could not parse deferred transaction", e);
+            }
+
+            Map<ByteString, Transaction> txMap = new HashMap<>();
+            for (Transaction tx : materialized)
+                txMap.put(hashToByteString(tx.getHash()), tx);
+            for (Protos.Transaction txProto : txProtos.values())
+                readTransaction(txProto, params, txMap);
+            List<WalletTransaction> wtxs = new ArrayList<>(txProtos.size());
+            for (Protos.Transaction txProto : txProtos.values())
+                wtxs.add(connectTransactionOutputs(params, txProto, txMap));
+
+            for (Map.Entry<ByteString, Protos.Transaction> entry : txProtos.entrySet()) {
+                transactions.remove(entry.getKey());
+                Sha256Hash hash = byteStringToHash(entry.getKey());
+                for (Protos.TransactionInput inputProto : entry.getValue().getTransactionInputList())
+                    spenders.remove(outPoint(params, inputProto), hash);
+            }
+            return wtxs;
+        }
+
+        @Override
+        public List<ByteString> serialize(int missedBlocks, int eventHorizon) {
+            List<ByteString> serialized = new ArrayList<>(transactions.size());
+            for (ByteString bytes : transactions.values())
+                serialized.add(missedBlocks > 0 ? addDepth(bytes, missedBlocks, eventHorizon) : bytes);
+            return serialized;
+        }
+    }
+
+    /**
+     * Returns the given serialized transaction with the given number of blocks added to its depth if it is building,
+     * dropping the peers that announced it once it is past the event horizon, like the wallet does.
+     */
+    private static ByteString addDepth(ByteString bytes, int blocks, int eventHorizon) {
+        Protos.Transaction txProto;
+        try {
+            txProto = Protos.Transaction.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException e) {
+            // Left as it is, so reading it fails just like it would have.
+            return bytes;
+        }
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return bytes;
+        Protos.TransactionConfidence.Builder confidenceBuilder = confidence.toBuilder()
+                .setDepth(confidence.getDepth() + blocks);
+        if (confidenceBuilder.getDepth() > eventHorizon)
+            confidenceBuilder.clearBroadcastBy();
+        return txProto.toBuilder().setConfidence(confidenceBuilder).build().toByteString();
+    }
+
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -708,7 +1051,8 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -746,7 +1090,7 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            readConfidence(params, tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
@@ -754,7 +1098,8 @@ public class WalletProtobufSerializer {
 
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An immutable view of the pools, balances and last seen block of a {@link Wallet}, as returned by
+ * {@link Wallet#getSnapshot()}. A snapshot can be queried from any thread without taking the wallet lock, which makes
+ * it suitable for user interfaces that refresh often while the wallet is busy connecting blocks.</p>
+ *
+ * <p>The pools and balances don't change after the snapshot was taken, but the {@link Transaction} objects are the
+ * live ones of the wallet, so e.g. their confidence keeps being updated.</p>
+ */
+public class WalletSnapshot {
+    private final long version;
+    private final ImmutableMap<Sha256Hash, Transaction> unspent;
+    private final ImmutableMap<Sha256Hash, Transaction> spent;
+    private final ImmutableMap<Sha256Hash, Transaction> pending;
+    private final ImmutableMap<Sha256Hash, Transaction> dead;
+    private final ImmutableMap<BalanceType, Coin> balances;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final long lastBlockSeenTimeSecs;
+
+    WalletSnapshot(long version, ImmutableMap<Sha256Hash, Transaction> unspent,
+            ImmutableMap<Sha256Hash, Transaction> spent, ImmutableMap<Sha256Hash, Transaction> pending,
+            ImmutableMap<Sha256Hash, Transaction> dead, Map<BalanceType, Coin> balances,
+            @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight, long lastBlockSeenTimeSecs) {
+        this.version = version;
+        this.unspent = unspent;
+        this.spent = spent;
+        this.pending = pending;
+        this.dead = dead;
+        this.balances = ImmutableMap.copyOf(balances);
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+    }
+
+    /**
+     * Returns the version of the wallet state this snapshot was taken at. Versions increase with every change, so a
+     * snapshot with a higher version is more recent.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Returns the transactions of the given pool, keyed by their hash. */
+    public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /** Returns the transactions of all pools, see {@link Wallet#getTransactions(boolean)}. */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        ImmutableSet.Builder<Transaction> all = ImmutableSet.builder();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all.build();
+    }
+
+    /** Returns the transaction with the given hash, or null if it isn't in any pool. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = unspent.get(hash);
+        if (tx == null)
+            tx = spent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            tx = dead.get(hash);
+        return tx;
+    }
+
+    /** Returns the transactions that aren't in the chain yet. */
+    public Collection<Transaction> getPendingTransactions() {
+        return pending.values();
+    }
+
+    /** Returns the most recently updated transactions, see {@link Wallet#getRecentTransactions(int, boolean)}. */
+    public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        int size = unspent.size() + spent.size() + pending.size();
+        if (numTransactions > size || numTransactions == 0)
+            numTransactions = size;
+        ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions < all.size())
+            all.subList(numTransactions, all.size()).clear();
+        return all;
+    }
+
+    /** Returns the {@link BalanceType#AVAILABLE} balance. */
+    public Coin getBalance() {
+        return getBalance(BalanceType.AVAILABLE);
+    }
+
+    /** Returns the balance of the given type, as {@link Wallet#getBalance(BalanceType)} returned it. */
+    public Coin getBalance(BalanceType balanceType) {
+        return balances.get(balanceType);
+    }
+
+    /** Returns the hash of the last block seen, or null if the wallet hasn't seen any. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last block seen, or -1 if the wallet hasn't seen any. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    /** Returns the time of the last block seen in seconds since the epoch, or 0 if unknown. */
+    public long getLastBlockSeenTimeSecs() {
+        return lastBlockSeenTimeSecs;
+    }
+
+    @Override
+    public String toString() {
+        return "snapshot " + version + " at block " + lastBlockSeenHeight + ": " + unspent.size() + " unspent, "
+                + spent.size() + " spent, " + pending.size() + " pending, " + dead.size() + " dead, balance "
+                + getBalance().toFriendlyString();
+    }
+}
@@ -35,8 +35,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -161,6 +163,95 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void scriptFailureKeepsEngineUsable() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ScriptVerificationEngine engine = new ScriptVerificationEngine(2, 1);
+        chain.setScriptVerificationEngine(engine);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction spendableTx = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // A block spending the output with an invalid script is rejected.
+        Block badBlock = rollingBlock.createNextBlock(null);
+        Transaction bad = new Transaction(PARAMS);
+        bad.addOutput(new TransactionOutput(PARAMS, bad, FIFTY_COINS, new byte[] {}));
+        bad.addInput(spendableTx.getOutput(0)).clearScriptBytes();
+        badBlock.addTransaction(bad);
+        badBlock.solve();
+        try {
+            chain.add(badBlock);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertFalse(engine.isShutdown());
+
+        // The same engine goes on to verify a correctly signed spend.
+        long batchesBefore = engine.getBatchesVerified();
+        Block goodBlock = rollingBlock.createNextBlock(null);
+        Transaction good = new Transaction(PARAMS);
+        good.addOutput(new TransactionOutput(PARAMS, good, FIFTY_COINS, new byte[] {}));
+        good.addSignedInput(new TransactionOutPoint(PARAMS, 0, spendableTx.getHash()),
+                spendableTx.getOutput(0).getScriptPubKey(), outKey);
+        goodBlock.addTransaction(good);
+        goodBlock.solve();
+        assertTrue(chain.add(goodBlock));
+        assertEquals(batchesBefore + 1, engine.getBatchesVerified());
+        assertEquals(1, engine.getLastBatchInputs());
+        engine.shutdown();
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void getTransactionOutputsInBulk() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        List<Transaction> coinbases = new ArrayList<>();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 3; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+            coinbases.add(rollingBlock.getTransactions().get(0));
+        }
+
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (Transaction coinbase : coinbases)
+            outPoints.add(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()));
+        TransactionOutPoint unknownIndex = new TransactionOutPoint(PARAMS, 1, coinbases.get(0).getHash());
+        TransactionOutPoint unknownHash = new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }));
+        outPoints.add(unknownIndex);
+        outPoints.add(unknownHash);
+
+        Map<TransactionOutPoint, UTXO> outputs = store.getTransactionOutputs(outPoints);
+        assertEquals(coinbases.size(), outputs.size());
+        for (Transaction coinbase : coinbases) {
+            UTXO out = outputs.get(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()));
+            assertEquals(store.getTransactionOutput(coinbase.getHash(), 0), out);
+            assertEquals(coinbase.getOutput(0).getValue(), out.getValue());
+        }
+        assertFalse(outputs.containsKey(unknownIndex));
+        assertFalse(outputs.containsKey(unknownHash));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
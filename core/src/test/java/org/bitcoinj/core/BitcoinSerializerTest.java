@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -130,6 +131,27 @@ public class BitcoinSerializerTest {
         assertTrue(Arrays.equals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray()));
     }
 
+    @Test
+    public void testDeserializeOwnedPayloadTakesArray() throws Exception {
+        BitcoinSerializer serializer = (BitcoinSerializer) MAINNET.getSerializer(true);
+        ByteBuffer message = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(message);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(message);
+        byte[] payload = Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, message.position(),
+                TRANSACTION_MESSAGE_BYTES.length);
+
+        // The public method copies, even from a buffer wrapping exactly the payload.
+        ByteBuffer exact = ByteBuffer.wrap(payload);
+        Transaction transaction = (Transaction) serializer.deserializePayload(header, exact);
+        assertEquals(payload.length, exact.position());
+        assertArrayEquals(payload, transaction.unsafeBitcoinSerialize());
+        assertNotSame(payload, transaction.unsafeBitcoinSerialize());
+
+        // A payload handed over is used as is.
+        transaction = (Transaction) serializer.deserializeOwnedPayload(header, payload);
+        assertSame(payload, transaction.unsafeBitcoinSerialize());
+    }
+
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
@@ -213,6 +235,29 @@ public class BitcoinSerializerTest {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(wrongMessageLength));
     }
 
+    @Test
+    public void testOversizedMessageRejectedOnHeader() throws Exception {
+        PeerSocketHandler handler = new PeerSocketHandler(MAINNET, new InetSocketAddress(InetAddress.getLocalHost(), 8333)) {
+            @Override
+            protected void processMessage(Message m) {
+                fail();
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        // Just the header of a message with a size which is 1 too big, and plenty of room in the read buffer.
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        buff.put(HEX.decode("f9beb4d9" + "626c6f636b00000000000000" + "01000002" + "00000000"));
+        buff.flip();
+        assertEquals(-1, handler.receiveBytes(buff));
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testSeekPastMagicBytes() {
         // Fail in another way, there is data in the stream but no magic bytes.
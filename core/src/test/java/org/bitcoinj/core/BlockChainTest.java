@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.params.UnitTestParams;
@@ -24,6 +25,7 @@ import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
@@ -35,7 +37,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -151,6 +155,56 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void addHeaders() throws Exception {
+        final List<StoredBlock> bestBlocks = new ArrayList<>();
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                bestBlocks.add(block);
+            }
+        });
+        List<Block> headers = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            headers.add(prev.cloneAsHeader());
+        }
+        assertTrue(chain.add(headers.get(0)));
+        // The header we already have is skipped.
+        assertEquals(4, chain.addHeaders(headers));
+        assertEquals(5, chain.getBestChainHeight());
+        assertEquals(headers.get(4), chain.getChainHead().getHeader());
+        assertEquals(5, bestBlocks.size());
+        assertEquals(5, bestBlocks.get(4).getHeight());
+        assertEquals(0, chain.addHeaders(headers));
+
+        // A bad header stops the batch, but the ones before it are kept.
+        List<Block> more = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            more.add(prev.cloneAsHeader());
+        }
+        more.get(1).setTime(Utils.currentTimeSeconds() + 3 * 60 * 60);
+        try {
+            chain.addHeaders(more);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(6, chain.getBestChainHeight());
+        assertEquals(more.get(0), chain.getChainHead().getHeader());
+
+        // Headers which don't connect are rejected.
+        try {
+            chain.addHeaders(more.subList(2, 3));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(6, chain.getBestChainHeight());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
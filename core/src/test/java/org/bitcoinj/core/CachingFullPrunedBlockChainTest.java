@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the FullPrunedBlockStoreTest against an H2 store wrapped in a {@link CachingFullPrunedBlockStore}. The cache
+ * is kept tiny so that evictions and flushes happen every few blocks.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, "cachetest", "sa", "sa", blockCount),
+                16, 4);
+    }
+
+    @Test
+    public void readdingSpentOutputBeforeFlush() throws Exception {
+        store = createStore(PARAMS, 10);
+        try {
+            CachingFullPrunedBlockStore cachingStore = (CachingFullPrunedBlockStore) store;
+            ECKey key = new ECKey();
+            UTXO out = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                    ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key)),
+                    LegacyAddress.fromKey(PARAMS, key).toString());
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            cachingStore.flush();
+
+            // Spend it and undo the spend, as a re-org would. The H2 store rejects inserting the output again.
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            assertEquals(0, cachingStore.getPendingChanges());
+            cachingStore.flush();
+
+            assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+            assertEquals(out, cachingStore.getDelegate().getTransactionOutput(out.getHash(), out.getIndex()));
+        } finally {
+            store.close();
+        }
+    }
+
+    private void deleteFiles() {
+        maybeDelete("cachetest.h2.db");
+        maybeDelete("cachetest.trace.db");
+        maybeDelete("cachetest.lock.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((H2FullPrunedBlockStore) ((CachingFullPrunedBlockStore) store).getDelegate()).resetStore();
+    }
+}
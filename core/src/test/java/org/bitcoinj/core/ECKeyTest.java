@@ -38,8 +38,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.DERSequenceGenerator;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.SignatureException;
@@ -119,6 +122,45 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void batchVerify() throws Exception {
+        List<byte[]> data = Lists.newArrayList();
+        List<ECDSASignature> signatures = Lists.newArrayList();
+        List<byte[]> pubs = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            data.add(hash.getBytes());
+            signatures.add(key.sign(hash));
+            pubs.add(key.getPubKey());
+        }
+        // Signed by somebody else.
+        pubs.set(3, new ECKey().getPubKey());
+        boolean[] results = ECKey.verify(data, signatures, pubs);
+        assertArrayEquals(new boolean[] { true, true, true, false, true }, results);
+        for (int i = 0; i < results.length; i++)
+            assertEquals(results[i], ECKey.verify(data.get(i), signatures.get(i), pubs.get(i)));
+        assertEquals(0, ECKey.verify(data.subList(0, 0), signatures.subList(0, 0), pubs.subList(0, 0)).length);
+    }
+
+    @Test
+    public void derEncodingMatchesASN1() throws Exception {
+        Random random = new Random(42);
+        BigInteger[] values = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(0x80), BigInteger.ONE.negate(),
+                ECKey.CURVE.getN().subtract(BigInteger.ONE), BigInteger.ONE.shiftLeft(255), BigInteger.ONE.shiftLeft(600),
+                new BigInteger(256, random), new BigInteger(256, random), new BigInteger(250, random) };
+        for (BigInteger r : values) {
+            for (BigInteger s : values) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DERSequenceGenerator seq = new DERSequenceGenerator(bos);
+                seq.addObject(new ASN1Integer(r));
+                seq.addObject(new ASN1Integer(s));
+                seq.close();
+                assertArrayEquals(bos.toByteArray(), new ECDSASignature(r, s).encodeToDER());
+            }
+        }
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
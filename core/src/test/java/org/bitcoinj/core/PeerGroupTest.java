@@ -30,7 +30,10 @@ import org.junit.runner.*;
 import org.junit.runners.*;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -65,7 +68,9 @@ public class PeerGroupTest extends TestWithPeerGroup {
     @Parameterized.Parameters
     public static Collection<ClientType[]> parameters() {
         return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
-                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+                             new ClientType[] {ClientType.NIO_CLIENT_MANAGER_GROUP},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS});
     }
 
     public PeerGroupTest(ClientType clientType) {
@@ -345,6 +350,123 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void headersFirstSync() throws Exception {
+        // Six blocks from well before the fast catchup time, with a checkpoint at height 3.
+        long time = Utils.currentTimeSeconds() - 30 * 86400;
+        List<Block> headers = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int height = 1; height <= 6; height++) {
+            prev = prev.createNextBlock((Address) null);
+            prev.setTime(time + height * 600);
+            prev.solve();
+            headers.add(prev.cloneAsHeader());
+        }
+        StoredBlock checkpoint = new StoredBlock(headers.get(2), BigInteger.ONE, 3);
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        checkpoint.serializeCompact(buffer);
+        String checkpoints = "TXT CHECKPOINTS 1\n0\n1\n" + CheckpointManager.BASE64.encode(buffer.array()) + "\n";
+        peerGroup.setHeadersFirstSync(true, new CheckpointManager(UNITTEST,
+                new ByteArrayInputStream(checkpoints.getBytes(StandardCharsets.US_ASCII))));
+        peerGroup.start();
+
+        VersionMessage versionMessage = new VersionMessage(UNITTEST, 6);
+        versionMessage.clientVersion = NetworkParameters.ProtocolVersion.BLOOM_FILTER.getBitcoinProtocolVersion();
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+
+        // Each peer is asked for one range.
+        GetHeadersMessage getheaders1 = (GetHeadersMessage) outbound(p1);
+        GetHeadersMessage getheaders2 = (GetHeadersMessage) outbound(p2);
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), getheaders1.getLocator().getHashes().get(0));
+        assertEquals(checkpoint.getHeader().getHash(), getheaders1.getStopHash());
+        assertEquals(checkpoint.getHeader().getHash(), getheaders2.getLocator().getHashes().get(0));
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders2.getStopHash());
+
+        // The second range arrives first, but headers are added in order.
+        inbound(p2, new HeadersMessage(UNITTEST, headers.subList(3, 6)));
+        pingAndWait(p2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        ListenableFuture<StoredBlock> synced = blockChain.getHeightFuture(6);
+        inbound(p1, new HeadersMessage(UNITTEST, headers.subList(0, 3)));
+        synced.get(10, TimeUnit.SECONDS);
+        assertEquals(headers.get(5), blockChain.getChainHead().getHeader());
+
+        // Then the download peer carries on as usual.
+        Peer downloadPeer = peerGroup.getDownloadPeer();
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(downloadPeer == peerOf(p1) ? p1 : p2);
+        assertEquals(headers.get(5).getHash(), getblocks.getLocator().getHashes().get(0));
+    }
+
+    @Test
+    public void blockDownloadWindow() throws Exception {
+        peerGroup.setMaxBlocksInFlight(3);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        Map<Sha256Hash, Block> blocks = new HashMap<>();
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 4; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.put(prev.getHash(), prev);
+            inv.addBlock(prev);
+        }
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        InboundMessageQueuer announcer = peerGroup.getDownloadPeer() == peerOf(p1) ? p1 : p2;
+        InboundMessageQueuer other = announcer == p1 ? p2 : p1;
+        assertTrue(outbound(announcer) instanceof GetBlocksMessage);
+
+        // The first three blocks are spread over both peers. The last one is requested from the peer that announced
+        // it right away, so that it announces the next blocks while these download.
+        inbound(announcer, inv);
+        List<Sha256Hash> requested1 = requestedBlocks(announcer);
+        List<Sha256Hash> requested2 = requestedBlocks(other);
+        assertEquals(4, requested1.size() + requested2.size());
+        Sha256Hash last = inv.getItems().get(3).hash;
+        assertTrue(requested1.contains(last));
+        assertTrue(requested1.size() > 1);
+        assertFalse(requested2.isEmpty());
+
+        // Blocks are added in order, whichever peer answers first.
+        InboundMessageQueuer first = requested1.contains(inv.getItems().get(0).hash) ? other : announcer;
+        InboundMessageQueuer second = first == announcer ? other : announcer;
+        for (Sha256Hash hash : (first == announcer ? requested1 : requested2))
+            inbound(first, blocks.get(hash));
+        pingAndWait(first);
+        assertEquals(0, blockChain.getBestChainHeight());
+        ListenableFuture<StoredBlock> downloaded = blockChain.getHeightFuture(4);
+        for (Sha256Hash hash : (second == announcer ? requested1 : requested2))
+            inbound(second, blocks.get(hash));
+        downloaded.get(10, TimeUnit.SECONDS);
+
+        // A newly solved block is requested from the peer that announced it, as the others may not have it yet.
+        Block solved = FakeTxBuilder.makeSolvedTestBlock(prev);
+        inv = new InventoryMessage(UNITTEST);
+        inv.addBlock(solved);
+        inbound(announcer, inv);
+        assertEquals(Collections.singletonList(solved.getHash()), requestedBlocks(announcer));
+        assertTrue(requestedBlocks(other).isEmpty());
+        downloaded = blockChain.getHeightFuture(5);
+        inbound(announcer, solved);
+        downloaded.get(10, TimeUnit.SECONDS);
+    }
+
+    private List<Sha256Hash> requestedBlocks(InboundMessageQueuer p) throws Exception {
+        pingAndWait(p);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        Message m;
+        while ((m = p.nextMessage()) != null)
+            if (m instanceof GetDataMessage)
+                for (InventoryItem item : ((GetDataMessage) m).getItems())
+                    hashes.add(item.hash);
+        return hashes;
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -855,6 +977,110 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void autoRescanOnKeyExhaustionWithBlockDownloadWindow() throws Exception {
+        // Like autoRescanOnKeyExhaustion, but the blocks are downloaded from two peers. When the filter is used up, the
+        // download peer takes back what it announced and downloads it again with the new filter, while answers to the
+        // old requests are dropped.
+        final int NUM_KEYS = 9;
+        Wallet shadow = Wallet.fromSeed(wallet.getParams(), wallet.getKeyChainSeed());
+        List<ECKey> keys = new ArrayList<>(NUM_KEYS);
+        for (int i = 0; i < NUM_KEYS; i++) {
+            keys.add(shadow.freshReceiveKey());
+        }
+        wallet.setKeyChainGroupLookaheadSize(4);
+        wallet.setKeyChainGroupLookaheadThreshold(2);
+
+        peerGroup.setMaxBlocksInFlight(NUM_KEYS);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        peerGroup.startBlockChainDownload(null);
+        InboundMessageQueuer announcer = peerGroup.getDownloadPeer() == peerOf(p1) ? p1 : p2;
+        InboundMessageQueuer other = announcer == p1 ? p2 : p1;
+        assertTrue(outbound(announcer) instanceof GetBlocksMessage);
+
+        List<Block> blocks = Lists.newArrayList();
+        Coin expectedBalance = Coin.ZERO;
+        Block prev = blockStore.getChainHead().getHeader();
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        for (ECKey key1 : keys) {
+            Address addr = LegacyAddress.fromKey(UNITTEST, key1);
+            Block next = FakeTxBuilder.makeSolvedTestBlock(prev, FakeTxBuilder.createFakeTx(UNITTEST, Coin.FIFTY_COINS, addr));
+            expectedBalance = expectedBalance.add(next.getTransactions().get(2).getOutput(0).getValue());
+            blocks.add(next);
+            inv.addBlock(next);
+            prev = next;
+        }
+        inbound(announcer, inv);
+        List<Sha256Hash> fromAnnouncer = requestedBlocks(announcer);
+        List<Sha256Hash> fromOther = requestedBlocks(other);
+        assertEquals(NUM_KEYS, fromAnnouncer.size() + fromOther.size());
+        List<Block> inFlightFromOther = new ArrayList<>();
+        for (Block block : blocks.subList(4, blocks.size()))
+            if (fromOther.contains(block.getHash()))
+                inFlightFromOther.add(block);
+        assertFalse(inFlightFromOther.isEmpty());
+
+        // The first three blocks are added. The later ones the download peer sends wait for the fourth one, which
+        // uses up the filter.
+        BloomFilter filter = new BloomFilter(UNITTEST, announcer.lastReceivedFilter.bitcoinSerialize());
+        for (Block block : blocks.subList(0, 3)) {
+            InboundMessageQueuer sender = fromAnnouncer.contains(block.getHash()) ? announcer : other;
+            filterAndSend(sender, Collections.singletonList(block), filter);
+            pingAndWait(sender);
+        }
+        for (Block block : blocks.subList(4, blocks.size()))
+            if (fromAnnouncer.contains(block.getHash()))
+                filterAndSend(announcer, Collections.singletonList(block), filter);
+        pingAndWait(announcer);
+        Block exhaustionPoint = blocks.get(3);
+        InboundMessageQueuer sender = fromAnnouncer.contains(exhaustionPoint.getHash()) ? announcer : other;
+        filterAndSend(sender, Collections.singletonList(exhaustionPoint), filter);
+        pingAndWait(sender);
+        assertEquals(Coin.FIFTY_COINS.multiply(3), wallet.getBalance());
+        assertEquals(exhaustionPoint.getPrevBlockHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // The new filter goes out, and nothing is requested from the other peer meanwhile.
+        peerGroup.waitForJobQueue();
+        BloomFilter newFilter = assertNextMessageIs(announcer, BloomFilter.class);
+        assertNotEquals(filter, newFilter);
+        assertNextMessageIs(announcer, MemoryPoolMessage.class);
+        Ping ping = assertNextMessageIs(announcer, Ping.class);
+        assertNextMessageIs(other, BloomFilter.class);
+        assertTrue(requestedBlocks(other).isEmpty());
+        inbound(announcer, new Pong(ping.getNonce()));
+
+        // The download peer asks for all the blocks from the exhaustion point again, with the new filter.
+        GetDataMessage getdata = assertNextMessageIs(announcer, GetDataMessage.class);
+        assertEquals(blocks.size() - 3, getdata.getItems().size());
+        for (int i = 0; i < getdata.getItems().size(); i++) {
+            assertEquals(blocks.get(3 + i).getHash(), getdata.getHashOf(i));
+            assertEquals(InventoryItem.Type.FilteredBlock, getdata.getItems().get(i).type);
+        }
+        assertNextMessageIs(announcer, Ping.class);
+
+        // The other peer answers its requests with the old filter only now, and the answers are dropped.
+        filterAndSend(other, inFlightFromOther, filter);
+        pingAndWait(other);
+        assertEquals(exhaustionPoint.getPrevBlockHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNull(announcer.nextMessage());
+
+        // The rest is like autoRescanOnKeyExhaustion, with the download peer downloading by itself.
+        filterAndSend(announcer, blocks.subList(3, blocks.size()), newFilter);
+        peerGroup.waitForJobQueue();
+        newFilter = assertNextMessageIs(announcer, BloomFilter.class);
+        assertNextMessageIs(announcer, MemoryPoolMessage.class);
+        inbound(announcer, new Pong(assertNextMessageIs(announcer, Ping.class).getNonce()));
+        assertNextMessageIs(announcer, GetDataMessage.class);
+        filterAndSend(announcer, blocks.subList(6, blocks.size()), newFilter);
+        inbound(announcer, new Ping());
+        pingAndWait(announcer);
+
+        assertEquals(expectedBalance, wallet.getBalance());
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
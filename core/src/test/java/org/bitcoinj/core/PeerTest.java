@@ -47,6 +47,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -69,6 +70,7 @@ public class PeerTest extends TestWithNetworkConnections {
     public static Collection<ClientType[]> parameters() {
         return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
                              new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS},
                              new ClientType[] {ClientType.NIO_CLIENT},
                              new ClientType[] {ClientType.BLOCKING_CLIENT});
     }
@@ -704,6 +706,60 @@ public class PeerTest extends TestWithNetworkConnections {
         assertTrue(results.contains(t2));
     }
 
+    @Test
+    public void recursiveDependencyDownload_sharedAndCached() throws Exception {
+        connect();
+
+        // Make some fake transactions in the following graph:
+        //   t1 -> t3 -> [t4]
+        //   t2 -> t3
+        // The ones in brackets are assumed to be in the chain and are represented only by hashes.
+        Sha256Hash t4hash = Sha256Hash.wrap("2b801dd82f01d17bbde881687bf72bc62e2faa8ab8133d36fcb8c3abe7459da6");
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addInput(new TransactionInput(UNITTEST, t3, new byte[]{}, new TransactionOutPoint(UNITTEST, 0, t4hash)));
+        t3.addOutput(COIN, new ECKey());
+        t3.addOutput(COIN, new ECKey());
+        t3 = FakeTxBuilder.roundTripTransaction(UNITTEST, t3);
+        Transaction t1 = new Transaction(UNITTEST);
+        t1.addInput(t3.getOutput(0));
+        t1.addOutput(COIN, new ECKey());
+        t1 = FakeTxBuilder.roundTripTransaction(UNITTEST, t1);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t3.getOutput(1));
+        t2.addOutput(COIN, new ECKey());
+        t2 = FakeTxBuilder.roundTripTransaction(UNITTEST, t2);
+
+        // Two downloads at once only request t3 once, and then t4 once.
+        ListenableFuture<List<Transaction>> futures1 = peer.downloadDependencies(t1);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t3.getHash(), getdata.getItems().get(0).hash);
+        ListenableFuture<List<Transaction>> futures2 = peer.downloadDependencies(t2);
+        assertNull(outbound(writeTarget));
+        inbound(writeTarget, t3);
+        getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t4hash, getdata.getItems().get(0).hash);
+        assertNull(outbound(writeTarget));
+        assertFalse(futures1.isDone());
+        assertFalse(futures2.isDone());
+        NotFoundMessage notFound = new NotFoundMessage(UNITTEST);
+        notFound.addItem(new InventoryItem(InventoryItem.Type.Transaction, t4hash));
+        inbound(writeTarget, notFound);
+        pingAndWait(writeTarget);
+        assertEquals(Collections.singletonList(t3), futures1.get());
+        assertEquals(Collections.singletonList(t3), futures2.get());
+
+        // Downloading again takes t3 from the cache, and only asks for t4.
+        ListenableFuture<List<Transaction>> futures3 = peer.downloadDependencies(t2);
+        getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t4hash, getdata.getItems().get(0).hash);
+        inbound(writeTarget, new NotFoundMessage(UNITTEST, getdata.getItems()));
+        pingAndWait(writeTarget);
+        assertEquals(Collections.singletonList(t3), futures3.get());
+    }
+
     @Test
     public void timeLockedTransactionNew() throws Exception {
         connectWithVersion(70001, VersionMessage.NODE_NETWORK);
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SigHashCacheTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final byte[] SIGHASH_TYPES = { 0, 1, 2, 3, 4, (byte) 0x81, (byte) 0x82, (byte) 0x83 };
+
+    private final Random random = new Random(7);
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        tx = new Transaction(UNITTEST);
+        tx.setVersion(2);
+        tx.setLockTime(123456);
+        for (int i = 0; i < 7; i++) {
+            TransactionInput input = tx.addInput(Sha256Hash.wrap(randomBytes(32)), random.nextInt(10),
+                    new Script(new byte[] { ScriptOpCodes.OP_1 }));
+            input.setSequenceNumber(random.nextInt(Integer.MAX_VALUE));
+        }
+        for (int i = 0; i < 5; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000000)), ScriptBuilder.createOutputScript(new ECKey()));
+        connectedScript = new ScriptBuilder().number(1).op(ScriptOpCodes.OP_CODESEPARATOR).number(2)
+                .op(ScriptOpCodes.OP_DROP).build().getProgram();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void matchesReferenceForAllTypesAndInputs() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        // Go through the inputs forward and backward, so that cached hash states are both reused and discarded.
+        for (byte type : SIGHASH_TYPES) {
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                assertEquals(reference(tx, i, connectedScript, type), cache.hashForSignature(i, connectedScript, type));
+            for (int i = tx.getInputs().size() - 1; i >= 0; i--)
+                assertEquals(reference(tx, i, connectedScript, type), cache.hashForSignature(i, connectedScript, type));
+        }
+    }
+
+    @Test
+    public void transactionDelegatesToCache() throws Exception {
+        assertEquals(reference(tx, 2, connectedScript, (byte) 1),
+                tx.hashForSignature(2, connectedScript, SigHash.ALL, false));
+        assertEquals(reference(tx, 3, connectedScript, (byte) 0x83),
+                tx.hashForSignature(3, connectedScript, SigHash.SINGLE, true));
+    }
+
+    @Test
+    public void sigHashSingleWithoutMatchingOutput() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        assertEquals(Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000"),
+                cache.hashForSignature(6, connectedScript, SigHash.SINGLE, false));
+    }
+
+    @Test
+    public void signaturesVerifyWithCache() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        SigHashCache cache = new SigHashCache(tx);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            Sha256Hash hash = cache.hashForSignature(i, scriptPubKey.getProgram(), SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(
+                    new TransactionSignature(key.sign(hash), SigHash.ALL, false)));
+        }
+        // Setting the input scripts didn't invalidate the cache.
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            tx.getInput(i).getScriptSig().correctlySpends(cache, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            tx.getInput(i).getScriptSig().correctlySpends(tx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+    }
+
+    @Test
+    public void witnessSignatureHashBip143Vector() throws Exception {
+        // Native P2WPKH example from BIP143.
+        Transaction tx = new Transaction(UNITTEST, Utils.HEX.decode("0100000002fff7f7881a8099afa6940d42d1e7f6362bec"
+                + "38171ea3edf433541db4e4ad969f0000000000eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57"
+                + "b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac909351"
+                + "0d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac11000000"));
+        byte[] scriptCode = Utils.HEX.decode("76a9141d0f172a0ecb48aee1be1f2687d2963ae33f71a188ac");
+        Sha256Hash expected = Sha256Hash.wrap("c37af31116d1b27caf68aae9e3ac82f1477929014d5b917657d0eb49478cb670");
+        SigHashCache cache = new SigHashCache(tx);
+        assertEquals(expected, cache.hashForWitnessSignature(1, scriptCode, Coin.valueOf(6, 0), SigHash.ALL, false));
+        assertEquals(expected, tx.hashForWitnessSignature(1, scriptCode, Coin.valueOf(6, 0), SigHash.ALL, false));
+    }
+
+    @Test
+    public void witnessSignaturesVerify() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(SegwitAddress.fromKey(UNITTEST, key));
+        Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key.getPubKeyHash());
+        Coin value = Coin.COIN;
+        SigHashCache cache = new SigHashCache(tx);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            byte type = SIGHASH_TYPES[i % SIGHASH_TYPES.length];
+            if (type == 0 || type == 4)
+                type = 1;
+            Sha256Hash hash = cache.hashForWitnessSignature(i, scriptCode.getProgram(), value, type);
+            ECKey.ECDSASignature sig = key.sign(hash);
+            TransactionSignature signature = new TransactionSignature(sig.r, sig.s, type & 0xff);
+            tx.getInput(i).setScriptSig(new ScriptBuilder().build());
+            tx.getInput(i).setWitness(ScriptBuilder.createWitness(signature, key));
+        }
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(cache, i, input.getWitness(), value, scriptPubKey,
+                    Script.ALL_VERIFY_FLAGS);
+            input.getScriptSig().correctlySpends(tx, i, input.getWitness(), value, scriptPubKey,
+                    Script.ALL_VERIFY_FLAGS);
+        }
+        // The signature commits to the value of the spent output.
+        try {
+            tx.getInput(0).getScriptSig().correctlySpends(cache, 0, tx.getInput(0).getWitness(), Coin.CENT,
+                    scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    /** Calculates a signature hash by modifying a copy of the transaction, as described by the original client. */
+    private static Sha256Hash reference(Transaction original, int inputIndex, byte[] connectedScript, byte type)
+            throws Exception {
+        if ((type & 0x1f) == SigHash.SINGLE.value && inputIndex >= original.getOutputs().size())
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction tx = UNITTEST.getDefaultSerializer().makeTransaction(original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.clearScriptBytes();
+        tx.getInput(inputIndex).setScriptBytes(
+                Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR));
+        List<TransactionInput> inputs = new ArrayList<>(tx.getInputs());
+        List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
+        if ((type & 0x1f) == SigHash.NONE.value || (type & 0x1f) == SigHash.SINGLE.value) {
+            outputs.clear();
+            if ((type & 0x1f) == SigHash.SINGLE.value) {
+                for (int i = 0; i < inputIndex; i++)
+                    outputs.add(new TransactionOutput(UNITTEST, null, Coin.NEGATIVE_SATOSHI, new byte[0]));
+                outputs.add(tx.getOutput(inputIndex));
+            }
+            for (int i = 0; i < inputs.size(); i++)
+                if (i != inputIndex)
+                    inputs.get(i).setSequenceNumber(0);
+        }
+        if ((type & SigHash.ANYONECANPAY.value) != 0) {
+            TransactionInput input = inputs.get(inputIndex);
+            inputs.clear();
+            inputs.add(input);
+        }
+        Transaction copy = new Transaction(UNITTEST);
+        copy.setVersion((int) tx.getVersion());
+        copy.setLockTime(tx.getLockTime());
+        for (TransactionInput input : inputs)
+            copy.addInput(new TransactionInput(UNITTEST, copy, input.getScriptBytes(), input.getOutpoint()))
+                    .setSequenceNumber(input.getSequenceNumber());
+        for (TransactionOutput output : outputs)
+            copy.addOutput(new TransactionOutput(UNITTEST, copy, output.getValue(), output.getScriptBytes()));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & type, bos);
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+}
@@ -22,6 +22,7 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static org.bitcoinj.core.Coin.COIN;
 import static org.easymock.EasyMock.anyObject;
@@ -140,4 +141,52 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void sizeIsBoundedAcrossSegments() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(100, 16);
+        // Segments hold at least MIN_SEGMENT_SIZE entries.
+        assertEquals(2, table.getConcurrencyLevel());
+        List<TransactionConfidence> pinned = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            pinned.add(table.seen(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), address1));
+        assertEquals(100, table.size());
+        assertEquals(900, table.getEvictedCount());
+        // The most recent hashes are still tracked.
+        assertEquals(1, table.numBroadcastPeers(pinned.get(999).getTransactionHash()));
+        assertEquals(1, new TxConfidenceTable(1).getConcurrencyLevel());
+        assertEquals(16, new TxConfidenceTable(100000).getConcurrencyLevel());
+    }
+
+    @Test
+    public void concurrentSeen() throws Exception {
+        final TxConfidenceTable table = new TxConfidenceTable(10000, 8);
+        final List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }));
+        final List<TransactionConfidence> pinned = new ArrayList<>();
+        for (Sha256Hash hash : hashes)
+            pinned.add(table.getOrCreate(hash));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final PeerAddress peer = new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) t }));
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (Sha256Hash hash : hashes)
+                        table.seen(hash, peer);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(4, table.numBroadcastPeers(hashes.get(i)));
+            assertEquals(pinned.get(i), table.get(hashes.get(i)));
+        }
+        assertEquals(500, table.size());
+        assertEquals(0, table.getEvictedCount());
+    }
 }
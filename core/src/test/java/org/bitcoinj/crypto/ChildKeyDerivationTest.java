@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -287,6 +289,37 @@ public class ChildKeyDerivationTest {
 
     }
 
+    @Test
+    public void batchDerivationMatchesSingleDerivation() throws Exception {
+        DeterministicKey parent = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes(), "Bitcoin seed");
+        DeterministicKey watchingParent = parent.dropPrivateBytes().dropParent();
+        // Enough keys to be split into several parallel tasks.
+        List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(parent, 5, 150);
+        List<DeterministicKey> watchingKeys = HDKeyDerivation.deriveChildKeys(watchingParent, 5, 150);
+        assertEquals(150, keys.size());
+        assertEquals(150, watchingKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(5 + i, false));
+            DeterministicKey key = keys.get(i);
+            assertEquals(expected.getPath(), key.getPath());
+            assertArrayEquals(expected.getPubKey(), key.getPubKey());
+            assertArrayEquals(expected.getChainCode(), key.getChainCode());
+            assertSame(parent, key.getParent());
+            // The private key isn't stored, but can still be derived from the parent.
+            assertEquals(expected.getPrivKey(), key.getPrivKey());
+            assertTrue(watchingKeys.get(i).isPubKeyOnly());
+            assertArrayEquals(expected.getPubKey(), watchingKeys.get(i).getPubKey());
+            assertArrayEquals(expected.getChainCode(), watchingKeys.get(i).getChainCode());
+        }
+        assertTrue(HDKeyDerivation.deriveChildKeys(parent, 0, 0).isEmpty());
+
+        // The checked mode gives the same keys.
+        List<DeterministicKey> checkedKeys = HDKeyDerivation.deriveChildKeys(watchingParent, 5, 40,
+                HDKeyDerivation.PublicDeriveMode.WITH_INVERSION);
+        for (int i = 0; i < checkedKeys.size(); i++)
+            assertArrayEquals(watchingKeys.get(i).getPubKey(), checkedKeys.get(i).getPubKey());
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return HEX.encode(pubKey.getPubKey());
     }
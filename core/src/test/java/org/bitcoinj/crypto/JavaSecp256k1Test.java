@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.ECKey.ECDSASignature;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JavaSecp256k1Test {
+    private final Random random = new Random(1);
+
+    @Before
+    public void setUp() throws Exception {
+        JavaSecp256k1.clearPublicKeyCache();
+    }
+
+    @Test
+    public void matchesBouncyCastle() throws Exception {
+        BigInteger n = ECKey.CURVE.getN();
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            byte[] data = new byte[32];
+            random.nextBytes(data);
+            ECDSASignature sig = key.sign(Sha256Hash.wrap(data));
+            ECPoint pub = JavaSecp256k1.decodePublicKey(key.getPubKey());
+            assertVerifiesLikeBouncyCastle(true, data, sig.r, sig.s, pub);
+            // Both S values verify.
+            assertVerifiesLikeBouncyCastle(true, data, sig.r, n.subtract(sig.s), pub);
+            // Wrong data, key and components.
+            byte[] other = data.clone();
+            other[i % 32] ^= 1;
+            assertVerifiesLikeBouncyCastle(false, other, sig.r, sig.s, pub);
+            assertVerifiesLikeBouncyCastle(false, data, sig.r, sig.s, new ECKey().getPubKeyPoint());
+            assertVerifiesLikeBouncyCastle(false, data, sig.r.add(BigInteger.ONE), sig.s, pub);
+            assertVerifiesLikeBouncyCastle(false, data, sig.r, sig.s.add(BigInteger.ONE), pub);
+        }
+    }
+
+    @Test
+    public void rejectsOutOfRangeComponents() throws Exception {
+        ECKey key = new ECKey();
+        byte[] data = Sha256Hash.ZERO_HASH.getBytes();
+        ECDSASignature sig = key.sign(Sha256Hash.ZERO_HASH);
+        BigInteger n = ECKey.CURVE.getN();
+        assertFalse(JavaSecp256k1.verify(data, BigInteger.ZERO, sig.s, key.getPubKeyPoint()));
+        assertFalse(JavaSecp256k1.verify(data, sig.r, BigInteger.ZERO, key.getPubKeyPoint()));
+        assertFalse(JavaSecp256k1.verify(data, sig.r.add(n), sig.s, key.getPubKeyPoint()));
+        assertFalse(JavaSecp256k1.verify(data, sig.r, sig.s.add(n), key.getPubKeyPoint()));
+        assertFalse(JavaSecp256k1.verify(data, sig.r.negate(), sig.s, key.getPubKeyPoint()));
+    }
+
+    @Test
+    public void publicKeysAreCached() throws Exception {
+        ECKey key = new ECKey();
+        ECPoint point = JavaSecp256k1.decodePublicKey(key.getPubKey());
+        assertSame(point, JavaSecp256k1.decodePublicKey(key.getPubKey().clone()));
+        assertEquals(key.getPubKeyPoint(), point);
+        // Verifying through the cache gives the same results as through the key.
+        ECDSASignature sig = key.sign(Sha256Hash.ZERO_HASH);
+        assertTrue(ECKey.verify(Sha256Hash.ZERO_HASH.getBytes(), sig, key.getPubKey()));
+        assertTrue(key.verify(Sha256Hash.ZERO_HASH, sig));
+        assertFalse(key.verify(Sha256Hash.of(new byte[1]), sig));
+        JavaSecp256k1.clearPublicKeyCache();
+        assertNotSame(point, JavaSecp256k1.decodePublicKey(key.getPubKey()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPublicKey() throws Exception {
+        byte[] pub = new ECKey().getPubKey();
+        pub[0] = 0x05;
+        JavaSecp256k1.decodePublicKey(pub);
+    }
+
+    private static void assertVerifiesLikeBouncyCastle(boolean expected, byte[] data, BigInteger r, BigInteger s,
+            ECPoint pub) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(pub, ECKey.CURVE));
+        assertEquals(expected, signer.verifySignature(data, r, s));
+        assertEquals(expected, JavaSecp256k1.verify(data, r, s, pub));
+    }
+}
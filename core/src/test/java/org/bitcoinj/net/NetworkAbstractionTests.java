@@ -29,16 +29,22 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.net.SocketFactory;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -49,23 +55,28 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
         this.clientType = clientType;
         if (clientType == 0) {
             channels = new NioClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
+        } else if (clientType == 4) {
+            BlockingClientManager manager = new BlockingClientManager();
+            manager.setUseVirtualThreads(true);
+            channels = manager;
+            channels.startAsync().awaitRunning();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -659,4 +670,156 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    // A connection which doesn't parse anything, only counts the bytes it is given once it is allowed to read them
+    private static class RawConnection implements StreamConnection {
+        final SettableFuture<MessageWriteTarget> writeTarget = SettableFuture.create();
+        final SettableFuture<Void> opened = SettableFuture.create();
+        final SettableFuture<Void> closed = SettableFuture.create();
+        final CountDownLatch reading;
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        RawConnection(boolean reading) {
+            this.reading = new CountDownLatch(reading ? 0 : 1);
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.set(null);
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.set(null);
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            reading.await();
+            int count = buff.remaining();
+            buff.position(buff.limit());
+            bytesReceived.addAndGet(count);
+            return count;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget.set(writeTarget);
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 0x10000;
+        }
+    }
+
+    // Only the NIO clients queue outbound bytes themselves, the blocking ones write straight to the socket
+    private MessageWriteTarget openRawConnection(SocketAddress addr, RawConnection connection) throws Exception {
+        MessageWriteTarget client;
+        if (clientType == 0) {
+            channels.openConnection(addr, connection);
+            client = connection.writeTarget.get();
+        } else
+            client = new NioClient(addr, connection, 100);
+        connection.opened.get();
+        return client;
+    }
+
+    @Test
+    public void outboundBufferFullFailsFastTest() throws Exception {
+        if (clientType != 0 && clientType != 2)
+            return;
+        final RawConnection serverConnection = new RawConnection(false);
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return serverConnection;
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        RawConnection clientConnection = new RawConnection(true);
+        MessageWriteTarget client = openRawConnection(new InetSocketAddress("localhost", 4243), clientConnection);
+        serverConnection.opened.get();
+
+        // However much the OS buffers, writing more than that plus our own outbound buffer while the server isn't
+        // reading must fill the buffer up. As nobody asked to wait, the write is then refused and the connection dropped.
+        byte[] message = new byte[1024 * 1024];
+        int maxMessages = 3 * ConnectionHandler.OUTBOUND_BUFFER_BYTE_COUNT / message.length;
+        try {
+            try {
+                for (int i = 0; i < maxMessages; i++)
+                    client.writeBytes(message);
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+            clientConnection.closed.get();
+        } finally {
+            serverConnection.reading.countDown();
+        }
+        serverConnection.closed.get();
+
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void outboundBufferFullWaitsForDrainTest() throws Exception {
+        if (clientType != 0 && clientType != 2)
+            return;
+        final RawConnection serverConnection = new RawConnection(false);
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return serverConnection;
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        RawConnection clientConnection = new RawConnection(true);
+        final MessageWriteTarget client = openRawConnection(new InetSocketAddress("localhost", 4243), clientConnection);
+        serverConnection.opened.get();
+
+        // Write more than the OS and our own outbound buffer can take while the server isn't reading, so the writer
+        // has to wait for it to start reading again.
+        final byte[] message = new byte[1024 * 1024];
+        final int messageCount = 3 * ConnectionHandler.OUTBOUND_BUFFER_BYTE_COUNT / message.length;
+        final SettableFuture<Void> allQueued = SettableFuture.create();
+        try {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < messageCount; i++)
+                            client.writeBytes(message, 1, TimeUnit.MINUTES);
+                        allQueued.set(null);
+                    } catch (Throwable t) {
+                        allQueued.setException(t);
+                    }
+                }
+            }.start();
+            Thread.sleep(1000);
+            assertFalse(allQueued.isDone());
+        } finally {
+            serverConnection.reading.countDown();
+        }
+        allQueued.get();
+
+        long total = (long) messageCount * message.length;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (serverConnection.bytesReceived.get() < total && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(total, serverConnection.bytesReceived.get());
+        assertFalse(clientConnection.closed.isDone());
+
+        client.closeConnection();
+        clientConnection.closed.get();
+        serverConnection.closed.get();
+
+        server.stopAsync();
+        server.awaitTerminated();
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedSPVBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private File blockStoreFile;
+    private Address to;
+
+    @Before
+    public void setup() throws Exception {
+        blockStoreFile = File.createTempFile("indexedspvblockstore", null);
+        blockStoreFile.delete();
+        blockStoreFile.deleteOnExit();
+        to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+        new File(blockStoreFile.getPath() + ".idx").delete();
+        new File(blockStoreFile.getPath() + ".hgt").delete();
+    }
+
+    private StoredBlock extend(BlockStore store, StoredBlock prev) throws Exception {
+        StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(next);
+        return next;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+        assertEquals(genesis, store.getByHeight(0));
+
+        StoredBlock b1 = extend(store, genesis);
+        store.setChainHead(b1);
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getByHeight(1));
+        assertNull(store.getByHeight(2));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void twoStores_onSameFile() throws Exception {
+        new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+        new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() throws Exception {
+        // Each block is five seconds after its parent, so move the clock far enough for them not to be in the future.
+        Utils.setMockClock();
+        Utils.rollMockClock(60 * 60 * 24);
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile, 10);
+        StoredBlock[] blocks = new StoredBlock[3000];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++)
+            blocks[i] = extend(store, blocks[i - 1]);
+        store.setChainHead(blocks[blocks.length - 1]);
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+            assertEquals(blocks[i], store.getByHeight(i));
+        }
+        store.close();
+        assertTrue(blockStoreFile.length() >= IndexedSPVBlockStore.getFileSize(blocks.length));
+
+        store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile, 10);
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+        assertEquals(blocks[1234], store.getByHeight(1234));
+        store.close();
+    }
+
+    @Test
+    public void reorgUpdatesHeightIndex() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock a1 = extend(store, genesis);
+        StoredBlock a2 = extend(store, a1);
+        StoredBlock a3 = extend(store, a2);
+        store.setChainHead(a3);
+        assertEquals(a3, store.getByHeight(3));
+
+        // Re-organize onto a shorter side chain forking after a1.
+        StoredBlock b2 = extend(store, a1);
+        store.setChainHead(b2);
+        assertEquals(a1, store.getByHeight(1));
+        assertEquals(b2, store.getByHeight(2));
+        assertNull(store.getByHeight(3));
+        // Blocks on the losing side are still retrievable by hash.
+        assertEquals(a3, store.get(a3.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void rebuildsMissingIndexes() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock b1 = extend(store, store.getChainHead());
+        StoredBlock b2 = extend(store, b1);
+        store.setChainHead(b2);
+        store.close();
+        assertTrue(new File(blockStoreFile.getPath() + ".idx").delete());
+        assertTrue(new File(blockStoreFile.getPath() + ".hgt").delete());
+
+        store = new IndexedSPVBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(b2, store.getChainHead());
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getByHeight(1));
+        store.close();
+    }
+}
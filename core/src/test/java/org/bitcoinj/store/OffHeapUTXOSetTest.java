@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.junit.Test;
+
+public class OffHeapUTXOSetTest {
+    private final Random random = new Random(42);
+
+    private UTXO randomUTXO(int height) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return new UTXO(Sha256Hash.wrap(hash), random.nextInt(4), Coin.valueOf(random.nextInt(1000000)), height,
+                height % 10 == 0, new Script(new byte[random.nextInt(40)]), "address" + height);
+    }
+
+    private static void assertSameUTXO(UTXO expected, UTXO actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.isCoinbase(), actual.isCoinbase());
+        assertEquals(expected.getAddress(), actual.getAddress());
+    }
+
+    @Test
+    public void basics() throws Exception {
+        OffHeapUTXOSet set = new OffHeapUTXOSet(1024);
+        UTXO out = randomUTXO(1);
+        assertNull(set.get(out.getHash(), out.getIndex()));
+        set.put(out);
+        assertEquals(1, set.size());
+        assertSameUTXO(out, set.get(out.getHash(), out.getIndex()));
+        assertFalse(set.contains(out.getHash(), out.getIndex() + 1));
+
+        // Putting the same outpoint again replaces the output.
+        UTXO replacement = new UTXO(out.getHash(), out.getIndex(), Coin.COIN, 2, false, out.getScript(), "other");
+        set.put(replacement);
+        assertEquals(1, set.size());
+        assertSameUTXO(replacement, set.get(out.getHash(), out.getIndex()));
+
+        assertTrue(set.remove(out.getHash(), out.getIndex()));
+        assertFalse(set.remove(out.getHash(), out.getIndex()));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void growsAndCompacts() throws Exception {
+        OffHeapUTXOSet set = new OffHeapUTXOSet(1024);
+        List<UTXO> live = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            if (live.isEmpty() || random.nextInt(3) != 0) {
+                UTXO out = randomUTXO(i);
+                set.put(out);
+                live.add(out);
+            } else {
+                UTXO out = live.remove(random.nextInt(live.size()));
+                assertTrue(set.remove(out.getHash(), out.getIndex()));
+            }
+        }
+        assertEquals(live.size(), set.size());
+        for (UTXO out : live)
+            assertSameUTXO(out, set.get(out.getHash(), out.getIndex()));
+        assertEquals(live.size(), set.values().size());
+
+        // Removing most outputs compacts the slabs.
+        long allocated = set.getAllocatedBytes();
+        for (UTXO out : live.subList(100, live.size()))
+            assertTrue(set.remove(out.getHash(), out.getIndex()));
+        assertTrue(set.getAllocatedBytes() < allocated / 10);
+        for (UTXO out : live.subList(0, 100))
+            assertSameUTXO(out, set.get(out.getHash(), out.getIndex()));
+    }
+}
@@ -63,7 +63,9 @@ public class TestWithNetworkConnections {
 
     public enum ClientType {
         NIO_CLIENT_MANAGER,
+        NIO_CLIENT_MANAGER_GROUP,
         BLOCKING_CLIENT_MANAGER,
+        BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS,
         NIO_CLIENT,
         BLOCKING_CLIENT
     }
@@ -72,12 +74,22 @@ public class TestWithNetworkConnections {
         this.clientType = clientType;
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
             channels = new NioClientManager();
+        else if (clientType == ClientType.NIO_CLIENT_MANAGER_GROUP)
+            channels = new NioClientManagerGroup(2, 2);
         else if (clientType == ClientType.BLOCKING_CLIENT_MANAGER)
             channels = new BlockingClientManager();
+        else if (clientType == ClientType.BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS)
+            channels = createVirtualThreadClientManager();
         else
             channels = null;
     }
 
+    protected static BlockingClientManager createVirtualThreadClientManager() {
+        BlockingClientManager manager = new BlockingClientManager();
+        manager.setUseVirtualThreads(true);
+        return manager;
+    }
+
     public void setUp() throws Exception {
         setUp(new MemoryBlockStore(UNITTEST));
     }
@@ -95,7 +107,7 @@ public class TestWithNetworkConnections {
         blockChain = new BlockChain(UNITTEST, wallet, blockStore);
 
         startPeerServers();
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER) {
+        if (channels != null) {
             channels.startAsync();
             channels.awaitRunning();
         }
@@ -157,7 +169,7 @@ public class TestWithNetworkConnections {
                 }
             }
         });
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER)
+        if (channels != null)
             channels.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer);
         else if (clientType == ClientType.NIO_CLIENT)
             new NioClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer, 100);
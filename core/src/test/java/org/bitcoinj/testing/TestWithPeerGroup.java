@@ -41,7 +41,9 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
 
     public TestWithPeerGroup(ClientType clientType) {
         super(clientType);
-        if (clientType != ClientType.NIO_CLIENT_MANAGER && clientType != ClientType.BLOCKING_CLIENT_MANAGER)
+        if (clientType != ClientType.NIO_CLIENT_MANAGER && clientType != ClientType.NIO_CLIENT_MANAGER_GROUP
+                && clientType != ClientType.BLOCKING_CLIENT_MANAGER
+                && clientType != ClientType.BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS)
             throw new RuntimeException();
         this.clientType = clientType;
     }
@@ -78,6 +80,10 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
     protected void initPeerGroup() {
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
             peerGroup = createPeerGroup(new NioClientManager());
+        else if (clientType == ClientType.NIO_CLIENT_MANAGER_GROUP)
+            peerGroup = createPeerGroup(new NioClientManagerGroup(2, 2));
+        else if (clientType == ClientType.BLOCKING_CLIENT_MANAGER_VIRTUAL_THREADS)
+            peerGroup = createPeerGroup(createVirtualThreadClientManager());
         else
             peerGroup = createPeerGroup(new BlockingClientManager());
         peerGroup.setPingIntervalMsec(0);  // Disable the pings as they just get in the way of most tests.
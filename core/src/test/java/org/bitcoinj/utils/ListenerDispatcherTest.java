@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ListenerDispatcherTest {
+    @Test
+    public void singleThreadRunsEventsInQueueOrder() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Executor> executors = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            executors.add(dispatcher.newSerialExecutor());
+        executors.add(dispatcher);
+        for (int i = 0; i < 300; i++)
+            executors.get((i * 7) % executors.size()).execute(add(order, i));
+        dispatcher.waitForEventsQueuedBefore();
+        assertEquals(300, order.size());
+        for (int i = 0; i < 300; i++)
+            assertEquals(i, (int) order.get(i));
+        assertEquals(300, dispatcher.getEventsRun());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void slowListenerDoesNotDelayOthers() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        Executor slow = dispatcher.newSerialExecutor();
+        final List<Integer> slowOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        slow.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        for (int i = 0; i < 10; i++)
+            slow.execute(add(slowOrder, i));
+
+        final CountDownLatch fastDone = new CountDownLatch(100);
+        Executor fast = dispatcher.newSerialExecutor();
+        for (int i = 0; i < 100; i++) {
+            fast.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fastDone.countDown();
+                }
+            });
+        }
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        assertTrue(slowOrder.isEmpty());
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+        assertEquals(10, slowOrder.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, (int) slowOrder.get(i));
+    }
+
+    @Test
+    public void coalescing() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 1);
+        final AtomicInteger changes = new AtomicInteger();
+        Runnable change = new Runnable() {
+            @Override
+            public void run() {
+                changes.incrementAndGet();
+            }
+        };
+        Executor executor = dispatcher.newSerialExecutor();
+        CountDownLatch release = block(executor);
+        for (int i = 0; i < 10; i++)
+            executor.execute(ListenerDispatcher.coalescing("changed", change));
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+        // Coalescing is off by default.
+        assertEquals(10, changes.get());
+
+        dispatcher.setCoalescing(true);
+        changes.set(0);
+        release = block(executor);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(ListenerDispatcher.coalescing("changed", change));
+            executor.execute(ListenerDispatcher.coalescing("other", change));
+        }
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+        assertEquals(2, changes.get());
+        assertEquals(18, dispatcher.getEventsCoalesced());
+
+        // Coalesced tasks run normally on other executors.
+        changes.set(0);
+        Threading.SAME_THREAD.execute(ListenerDispatcher.coalescing("changed", change));
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void fullQueueOverflowsAfterWaiting() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 1, 2);
+        dispatcher.setMaxWait(10, TimeUnit.MILLISECONDS);
+        final AtomicInteger run = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                run.incrementAndGet();
+            }
+        };
+        CountDownLatch release = block(dispatcher);
+        for (int i = 0; i < 4; i++)
+            dispatcher.execute(task);
+        assertEquals(2, dispatcher.getQueueDepth());
+        // Only the first event beyond the capacity waits.
+        assertEquals(1, dispatcher.getProducersSlowed());
+        assertEquals(2, dispatcher.getOverflows());
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+        assertEquals(4, run.get());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getMaxQueueDepth());
+        assertTrue(dispatcher.getMaxLatency(TimeUnit.NANOSECONDS) >= dispatcher.getAverageLatency(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void burstWhileListenerIsBlockedWaitsOnce() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 1, 2);
+        dispatcher.setMaxWait(1, TimeUnit.SECONDS);
+        final AtomicInteger run = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                run.incrementAndGet();
+            }
+        };
+        CountDownLatch release = block(dispatcher);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++)
+            dispatcher.execute(task);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 5000);
+        assertEquals(1, dispatcher.getProducersSlowed());
+        assertEquals(18, dispatcher.getOverflows());
+
+        // Once the listener frees room, producers are slowed down again.
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+        assertEquals(20, run.get());
+        release = block(dispatcher);
+        for (int i = 0; i < 3; i++)
+            dispatcher.execute(task);
+        assertEquals(2, dispatcher.getProducersSlowed());
+        release.countDown();
+        dispatcher.waitForEventsQueuedBefore();
+    }
+
+    @Test
+    public void registrationsGetTheirOwnExecutor() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher("test", 1);
+        ListenerRegistration<Object> registration = new ListenerRegistration<>(new Object(), dispatcher);
+        assertNotSame(dispatcher, registration.executor);
+        registration = new ListenerRegistration<>(new Object(), Threading.SAME_THREAD);
+        assertSame(Threading.SAME_THREAD, registration.executor);
+    }
+
+    /** Occupies the executor until the returned latch is released. */
+    private static CountDownLatch block(Executor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        return release;
+    }
+
+    private static Runnable add(final List<Integer> list, final int i) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                list.add(i);
+            }
+        };
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journal = new WalletJournal(wallet, file);
+        journal.save();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        journal.close();
+        file.delete();
+        WalletJournal.getJournalFile(file).delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        journal.save();
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+
+        Address other = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction send = wallet.createSend(other, Coin.CENT);
+        wallet.commitTx(send);
+        wallet.freshReceiveKey();
+        wallet.importKey(new ECKey());
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        journal.save();
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+
+        // Confirm the spend and bury it, so that the depths of the transactions change.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        journal.save();
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertMatches(wallet, loaded);
+        assertEquals(2, loaded.getTransaction(send.getHash()).getConfidence().getDepthInBlocks());
+
+        // All of this was appended to the journal.
+        assertEquals(snapshot, Sha256Hash.of(file));
+    }
+
+    @Test
+    public void tornRecordIgnored() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        journal.save();
+        File journalFile = WalletJournal.getJournalFile(file);
+        long length = journalFile.length();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.save();
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        raf.setLength(journalFile.length() - 3);
+        raf.close();
+        assertTrue(journalFile.length() > length);
+        assertEquals(Coin.COIN, WalletJournal.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void staleJournalIgnored() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        journal.save();
+        wallet.freshReceiveKey();
+        wallet.saveToFile(file);
+        // The journal doesn't belong to the new file, so it's neither applied nor appended to.
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.save();
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+    }
+
+    @Test
+    public void compactsWhenLargerThanSnapshot() throws Exception {
+        journal.setMinCompactionSize(0);
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        File journalFile = WalletJournal.getJournalFile(file);
+        boolean compacted = false;
+        for (int i = 0; i < 20 && !compacted; i++) {
+            long length = journalFile.length();
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+            journal.save();
+            compacted = journalFile.length() < length;
+        }
+        assertTrue(compacted);
+        assertNotEquals(snapshot, Sha256Hash.of(file));
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+    }
+
+    @Test
+    public void recordsAreSmall() throws Exception {
+        for (int i = 0; i < 50; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.compact();
+        File journalFile = WalletJournal.getJournalFile(file);
+        long length = journalFile.length();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.save();
+        assertTrue(journalFile.length() - length < file.length() / 10);
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+    }
+
+    @Test
+    public void failedAppendCompactsNextTime() throws Exception {
+        journal.close();
+        final AtomicBoolean failNextWrite = new AtomicBoolean();
+        journal = new WalletJournal(wallet, file) {
+            @Override
+            void write(FileOutputStream journal, byte[] bytes) throws IOException {
+                if (failNextWrite.getAndSet(false)) {
+                    // Leave a torn record behind, like a full disk would.
+                    journal.write(bytes, 0, bytes.length / 2);
+                    throw new IOException("Disk full");
+                }
+                super.write(journal, bytes);
+            }
+        };
+        journal.save();
+        Sha256Hash snapshot = Sha256Hash.of(file);
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        failNextWrite.set(true);
+        try {
+            journal.save();
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(snapshot, Sha256Hash.of(file));
+
+        // The change that failed to be appended is saved by a compaction, and nothing is appended after the torn record.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.save();
+        assertNotEquals(snapshot, Sha256Hash.of(file));
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+        assertEquals(Coin.COIN.add(Coin.CENT), WalletJournal.loadFromFile(file).getBalance());
+
+        // Appending works again afterwards.
+        snapshot = Sha256Hash.of(file);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        journal.save();
+        assertEquals(snapshot, Sha256Hash.of(file));
+        assertMatches(wallet, WalletJournal.loadFromFile(file));
+    }
+
+    private static void assertMatches(Wallet expected, Wallet actual) {
+        assertEquals(expected.getLastBlockSeenHeight(), actual.getLastBlockSeenHeight());
+        assertEquals(expected.getLastBlockSeenHash(), actual.getLastBlockSeenHash());
+        for (Wallet.BalanceType type : Wallet.BalanceType.values())
+            assertEquals(expected.getBalance(type), actual.getBalance(type));
+        for (Pool pool : new Pool[] { Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.DEAD })
+            assertEquals(expected.getTransactionPool(pool).keySet(), actual.getTransactionPool(pool).keySet());
+        for (Transaction tx : expected.getTransactions(true))
+            assertEquals(tx.getConfidence().getDepthInBlocks(),
+                    actual.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(new HashSet<>(expected.getIssuedReceiveAddresses()),
+                new HashSet<>(actual.getIssuedReceiveAddresses()));
+        assertEquals(expected.getImportedKeys(), actual.getImportedKeys());
+        assertEquals(expected.getWatchedScripts(), actual.getWatchedScripts());
+        assertTrue(actual.isConsistent());
+    }
+}
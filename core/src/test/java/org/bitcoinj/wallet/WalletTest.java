@@ -17,6 +17,7 @@
 
 package org.bitcoinj.wallet;
 
+import org.bitcoinj.core.listeners.TransactionConfidenceBatchEventListener;
 import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
 import org.bitcoinj.core.AbstractBlockChain;
 import org.bitcoinj.core.Address;
@@ -27,6 +28,7 @@ import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
@@ -70,6 +72,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
@@ -201,6 +205,23 @@ public class WalletTest extends TestWithWallet {
 		basicSpendingCommon(wallet, myAddress, OTHER_ADDRESS, null);
 	}
 
+	@Test
+	public void spendingP2WPKHOutput() throws Exception {
+		ECKey key = wallet.freshReceiveKey();
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, SegwitAddress.fromKey(UNITTEST, key));
+		assertEquals(COIN, wallet.getBalance());
+
+		SendRequest req = SendRequest.to(OTHER_ADDRESS, CENT);
+		wallet.completeTx(req);
+		TransactionInput input = req.tx.getInput(0);
+		assertEquals(0, input.getScriptBytes().length);
+		assertEquals(2, input.getWitness().getPushCount());
+		assertArrayEquals(key.getPubKey(), input.getWitness().getPush(1));
+		TransactionOutput spent = input.getConnectedOutput();
+		input.getScriptSig().correctlySpends(req.tx, 0, input.getWitness(), spent.getValue(), spent.getScriptPubKey(),
+				Script.ALL_VERIFY_FLAGS);
+	}
+
 	static class TestRiskAnalysis implements RiskAnalysis {
 		private final boolean risky;
 
@@ -567,6 +588,271 @@ public class WalletTest extends TestWithWallet {
 		assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
 	}
 
+	@Test
+	public void cachedBalancesFollowWalletChanges() throws Exception {
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+		assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+
+		// A pending payment from someone else only counts towards the estimated balance until it confirms.
+		Transaction pending = createFakeTx(UNITTEST, CENT, myAddress);
+		wallet.receivePending(pending, null);
+		assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+		assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, pending);
+		assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+
+		// Changing the coin selector changes the available balance.
+		wallet.setCoinSelector(new CoinSelector() {
+			@Override
+			public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+				return new CoinSelection(ZERO, new ArrayList<TransactionOutput>());
+			}
+		});
+		assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+		wallet.setCoinSelector(new DefaultCoinSelector());
+		assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+
+		// Importing the key for a watched output makes it spendable.
+		ECKey key = new ECKey();
+		Address watchedAddress = LegacyAddress.fromKey(UNITTEST, key);
+		wallet.addWatchedAddress(watchedAddress);
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, watchedAddress);
+		assertEquals(COIN.add(COIN).add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+		assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+		wallet.importKey(key);
+		assertEquals(COIN.add(COIN).add(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+
+		// Spending reduces the balances straight away.
+		Transaction spend = wallet.createSend(OTHER_ADDRESS, COIN);
+		wallet.commitTx(spend);
+		assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+		assertEquals(spend.getValueSentToMe(wallet).add(wallet.getBalance(BalanceType.AVAILABLE)),
+				wallet.getBalance(BalanceType.ESTIMATED));
+	}
+
+	@Test
+	public void deferredTransactionHistory() throws Exception {
+		Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+		wallet.commitTx(spend);
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend);
+		assertTrue(wallet.getTransactionPool(Pool.SPENT).containsKey(received.getHash()));
+		int depth = received.getConfidence().getDepthInBlocks();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new WalletProtobufSerializer().writeWallet(wallet, output);
+		WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+		serializer.setDeferTransactionHistory(true);
+		Wallet loaded = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+		assertTrue(loaded.hasDeferredTransactions());
+		for (BalanceType type : BalanceType.values())
+			assertEquals(wallet.getBalance(type), loaded.getBalance(type));
+
+		// Receiving coins doesn't need the spent transaction.
+		sendMoneyToWallet(loaded, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, myAddress);
+		assertEquals(wallet.getBalance().add(CENT), loaded.getBalance());
+		assertTrue(loaded.hasDeferredTransactions());
+
+		// Looking at it reads it, connected to the spend and with the depth it gained in the meantime.
+		Transaction loadedReceived = loaded.getTransaction(received.getHash());
+		assertFalse(loaded.hasDeferredTransactions());
+		assertEquals(depth + 1, loadedReceived.getConfidence().getDepthInBlocks());
+		assertEquals(loadedReceived.getOutput(0),
+				loaded.getTransaction(spend.getHash()).getInput(0).getConnectedOutput());
+		assertEquals(3, loaded.getTransactions(true).size());
+		assertTrue(loaded.isConsistent());
+	}
+
+	@Test
+	public void savingDeferredTransactionHistoryDoesntReadIt() throws Exception {
+		Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+		wallet.commitTx(spend);
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend);
+		int depth = received.getConfidence().getDepthInBlocks();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new WalletProtobufSerializer().writeWallet(wallet, output);
+		WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+		serializer.setDeferTransactionHistory(true);
+		Wallet loaded = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+		sendMoneyToWallet(loaded, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, myAddress);
+		assertTrue(loaded.hasDeferredTransactions());
+
+		// Saving writes the spent transaction back as it was read, with the depth it gained in the meantime.
+		output = new ByteArrayOutputStream();
+		serializer.writeWallet(loaded, output);
+		assertEquals(3, serializer.walletToProto(loaded).getTransactionCount());
+		assertTrue(loaded.hasDeferredTransactions());
+
+		Wallet reloaded = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+		assertEquals(3, reloaded.getTransactions(true).size());
+		Transaction reloadedReceived = reloaded.getTransactionPool(Pool.SPENT).get(received.getHash());
+		assertEquals(depth + 1, reloadedReceived.getConfidence().getDepthInBlocks());
+		assertEquals(reloadedReceived.getOutput(0),
+				reloaded.getTransaction(spend.getHash()).getInput(0).getConnectedOutput());
+		assertEquals(loaded.getBalance(), reloaded.getBalance());
+		assertTrue(reloaded.isConsistent());
+	}
+
+	@Test
+	public void deferredTransactionHistoryStaysDeferredWithoutConflicts() throws Exception {
+		Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+		wallet.commitTx(spend);
+		sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new WalletProtobufSerializer().writeWallet(wallet, output);
+		WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+		serializer.setDeferTransactionHistory(true);
+		Wallet loaded = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+		assertTrue(loaded.hasDeferredTransactions());
+
+		// A transaction that is none of our business.
+		Transaction irrelevant = createFakeTx(UNITTEST, CENT, OTHER_ADDRESS);
+		assertFalse(loaded.isTransactionRelevant(irrelevant));
+		loaded.receivePending(irrelevant, null);
+		assertTrue(loaded.hasDeferredTransactions());
+
+		// Sending, and a double spend of what we sent.
+		Transaction send = loaded.createSend(OTHER_ADDRESS, CENT);
+		Transaction conflict = loaded.createSend(OTHER_ADDRESS, CENT.add(CENT));
+		loaded.commitTx(send);
+		loaded.receivePending(conflict, null);
+		assertEquals(ConfidenceType.IN_CONFLICT, send.getConfidence().getConfidenceType());
+		assertTrue(loaded.hasDeferredTransactions());
+
+		// A double spend of the spent transaction reads it.
+		Transaction doubleSpend = new Transaction(UNITTEST);
+		TransactionOutPoint outpoint = received.getInput(0).getOutpoint();
+		doubleSpend.addInput(new TransactionInput(UNITTEST, doubleSpend, new byte[0],
+				new TransactionOutPoint(UNITTEST, outpoint.getIndex(), outpoint.getHash())));
+		doubleSpend.addOutput(COIN, OTHER_ADDRESS);
+		assertTrue(loaded.isTransactionRelevant(doubleSpend));
+		assertFalse(loaded.hasDeferredTransactions());
+		assertTrue(loaded.getTransactionPool(Pool.SPENT).containsKey(received.getHash()));
+	}
+
+	@Test
+	public void snapshots() throws Exception {
+		WalletSnapshot empty = wallet.getSnapshot();
+		assertSame(empty, wallet.getSnapshot());
+		assertEquals(Coin.ZERO, empty.getBalance());
+		Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+
+		// A new snapshot is built after the change, the old one didn't change.
+		WalletSnapshot snapshot = wallet.getSnapshot();
+		assertTrue(snapshot.getVersion() > empty.getVersion());
+		assertTrue(empty.getTransactions(true).isEmpty());
+		assertEquals(COIN, snapshot.getBalance());
+		assertEquals(COIN, snapshot.getBalance(BalanceType.ESTIMATED));
+		assertEquals(tx, snapshot.getTransaction(tx.getHash()));
+		assertEquals(tx, snapshot.getTransactionPool(Pool.UNSPENT).get(tx.getHash()));
+		assertEquals(wallet.getLastBlockSeenHash(), snapshot.getLastBlockSeenHash());
+		assertEquals(wallet.getTransactions(true), snapshot.getTransactions(true));
+
+		// While another thread holds the wallet lock, the last snapshot is returned rather than waiting for it.
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				wallet.lock.lock();
+				try {
+					wallet.setLastBlockSeenHeight(1000);
+					locked.countDown();
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} finally {
+					wallet.lock.unlock();
+				}
+			}
+		};
+		writer.start();
+		locked.await();
+		assertSame(snapshot, wallet.getSnapshot());
+		release.countDown();
+		writer.join();
+		WalletSnapshot updated = wallet.getSnapshot();
+		assertEquals(1000, updated.getLastBlockSeenHeight());
+		assertEquals(1000, wallet.getLastBlockSeenHeight());
+		// The pools didn't change, so they are shared rather than copied again.
+		assertSame(snapshot.getTransactionPool(Pool.UNSPENT), updated.getTransactionPool(Pool.UNSPENT));
+	}
+
+	@Test
+	public void perBlockConfidenceEvents() throws Exception {
+		Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		final AtomicInteger txEvents = new AtomicInteger();
+		wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+			@Override
+			public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+				txEvents.incrementAndGet();
+			}
+		});
+		final List<Integer> heights = new ArrayList<>();
+		final List<Set<Sha256Hash>> batches = new ArrayList<>();
+		wallet.addTransactionConfidenceBatchEventListener(Threading.SAME_THREAD,
+				new TransactionConfidenceBatchEventListener() {
+			@Override
+			public void onTransactionConfidencesChanged(Wallet wallet, int bestChainHeight, Set<Sha256Hash> changed) {
+				heights.add(bestChainHeight);
+				batches.add(changed);
+			}
+		});
+		final AtomicInteger depthEvents = new AtomicInteger();
+		tx1.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+			@Override
+			public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+				if (reason == ChangeReason.DEPTH)
+					depthEvents.incrementAndGet();
+			}
+		});
+		wallet.setPerBlockConfidenceEvents(true);
+		assertTrue(wallet.isPerBlockConfidenceEvents());
+		assertEquals(1, tx1.getConfidence().getDepthInBlocks());
+
+		// An empty block makes every building transaction deeper, which is reported as a single event.
+		FakeTxBuilder.BlockPair block = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+		wallet.notifyNewBestBlock(block.storedBlock);
+		assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+		assertEquals(0, txEvents.get());
+		assertEquals(1, depthEvents.get());
+		assertEquals(Collections.singletonList(block.storedBlock.getHeight()), heights);
+		assertTrue(batches.get(0).isEmpty());
+
+		// A block with a new transaction reports it as changed.
+		Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+		assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+		assertEquals(1, tx2.getConfidence().getDepthInBlocks());
+		assertEquals(2, batches.size());
+		assertEquals(Collections.singleton(tx2.getHash()), batches.get(1));
+		assertEquals(1, txEvents.get());
+		assertEquals(2, depthEvents.get());
+		// Only transactions with listeners of their own, such as depth futures, are told about every block.
+		ListenableFuture<TransactionConfidence> depthFuture = tx2.getConfidence().getDepthFuture(2, Threading.SAME_THREAD);
+		assertFalse(depthFuture.isDone());
+		block = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+		wallet.notifyNewBestBlock(block.storedBlock);
+		assertEquals(2, tx2.getConfidence().getDepthInBlocks());
+		assertTrue(depthFuture.isDone());
+		assertEquals(3, depthEvents.get());
+
+		// Switching back keeps the depth and increments it again.
+		wallet.setPerBlockConfidenceEvents(false);
+		assertNull(tx1.getConfidence().getChainHeightSource());
+		assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+		block = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+		wallet.notifyNewBestBlock(block.storedBlock);
+		assertEquals(5, tx1.getConfidence().getDepthInBlocks());
+		assertEquals(3, tx2.getConfidence().getDepthInBlocks());
+		assertEquals(3, batches.size());
+		assertEquals(3, txEvents.get());
+	}
+
 	// Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
 	// identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
 	// with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test